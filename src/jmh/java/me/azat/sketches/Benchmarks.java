@@ -0,0 +1,46 @@
+package me.azat.sketches;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar: same command line as org.openjdk.jmh.Main,
+ * but the gc profiler is always on, so allocations per op are reported next to ns/op.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+
+    /**
+     * Uniform keys, materialized up front. Length is a power of two so that
+     * benchmarks can cycle through them with a mask instead of a modulo.
+     */
+    static String[] keys(int cardinality) {
+        return new StreamGenerator(12345, cardinality)
+                .uniformStream(cardinality, streamLength(cardinality))
+                .toArray(String[]::new);
+    }
+
+    /**
+     * Zipf keys, materialized up front, see {@link #keys(int)}.
+     */
+    static String[] zipfKeys(int cardinality, double exponent) {
+        return new StreamGenerator(12345, cardinality)
+                .zipfStream(cardinality, exponent, streamLength(cardinality))
+                .toArray(String[]::new);
+    }
+
+    private static int streamLength(int cardinality) {
+        return Integer.highestOneBit(Math.max(cardinality, 1)) << 1;
+    }
+}
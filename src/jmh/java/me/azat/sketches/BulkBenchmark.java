@@ -0,0 +1,119 @@
+package me.azat.sketches;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-key calls against the bulk methods on the same raw long keys, per key.
+ * batch = 1 is a loop of single calls, larger batches go through addAll / containsAll in slices of that size.
+ * HyperLogLogs have no per-key query, their query does nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkBenchmark {
+    private static final int KEYS_PER_INVOCATION = 4096;
+
+    @Param({"blocked", "concurrent", "countmin", "hllpp", "incremental"})
+    String impl;
+
+    @Param({"1000000"})
+    int cardinality;
+
+    @Param({"1", "16", "256", "4096"})
+    int batch;
+
+    private long[] keys;
+    private boolean[] results;
+    private long[] counts;
+    private int position;
+
+    private KeysOperation update;
+    private KeysOperation query;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = new StreamGenerator(12345, cardinality)
+                .uniformLongStream(cardinality, Integer.highestOneBit(cardinality) << 1)
+                .toArray();
+        results = new boolean[keys.length];
+        counts = new long[keys.length];
+
+        switch (impl) {
+            case "blocked":
+            case "concurrent":
+                BloomFilterApp.LongMembershipEstimator filter = "blocked".equals(impl)
+                        ? new BlockedBloomFilter(cardinality, 0.01)
+                        : new ConcurrentBloomFilter(cardinality, 0.01);
+                update = batch == 1 ? (k, from, n) -> {
+                    for (int i = from; i < from + n; i++) {
+                        filter.add(k[i]);
+                    }
+                } : filter::addAll;
+                query = batch == 1 ? (k, from, n) -> {
+                    for (int i = from; i < from + n; i++) {
+                        results[i] = filter.contains(k[i]);
+                    }
+                } : (k, from, n) -> filter.containsAll(k, from, n, results);
+                break;
+            case "countmin":
+                ConcurrentCountMinSketch sketch = new ConcurrentCountMinSketch(3, 32000, 12345);
+                update = batch == 1 ? (k, from, n) -> {
+                    for (int i = from; i < from + n; i++) {
+                        sketch.inc(k[i]);
+                    }
+                } : sketch::incAll;
+                query = batch == 1 ? (k, from, n) -> {
+                    for (int i = from; i < from + n; i++) {
+                        counts[i] = sketch.count(k[i]);
+                    }
+                } : (k, from, n) -> sketch.countAll(k, from, n, counts);
+                break;
+            case "hllpp":
+            case "incremental":
+                HyperLogLogApp.LongCardinalityEstimator hll = "hllpp".equals(impl)
+                        ? new HyperLogLogPlusPlus(0.01)
+                        : new IncrementalHyperLogLog(0.01);
+                update = batch == 1 ? (k, from, n) -> {
+                    for (int i = from; i < from + n; i++) {
+                        hll.add(k[i]);
+                    }
+                } : hll::addAll;
+                query = (k, from, n) -> { }; // nothing per key to query
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown bulk estimator: " + impl);
+        }
+        update.apply(keys, 0, keys.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS_PER_INVOCATION)
+    public void update() {
+        run(update);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS_PER_INVOCATION)
+    public void query() {
+        run(query);
+    }
+
+    private void run(KeysOperation operation) {
+        int from = position;
+        for (int done = 0; done < KEYS_PER_INVOCATION; done += batch) {
+            operation.apply(keys, from, batch);
+            from += batch;
+        }
+        position = from & (keys.length - 1);
+    }
+
+
+    private interface KeysOperation {
+        void apply(long[] keys, int offset, int length);
+    }
+}
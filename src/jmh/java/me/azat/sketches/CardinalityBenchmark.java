@@ -0,0 +1,64 @@
+package me.azat.sketches;
+
+import me.azat.sketches.HyperLogLogApp.CardinalityEstimator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * add / cardinality of every CardinalityEstimator on pre-materialized keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CardinalityBenchmark {
+
+    @Param({"streamlib", "algebird", "hllpp", "incremental"})
+    String impl;
+
+    @Param({"100000", "1000000"})
+    int cardinality;
+
+    @Param({"0.01"})
+    double error;
+
+    private String[] keys;
+    private int mask;
+    private int i;
+
+    private CardinalityEstimator estimator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = Benchmarks.keys(cardinality);
+        mask = keys.length - 1;
+        estimator = create(impl, error);
+        for (String key : keys) {
+            estimator.add(key);
+        }
+    }
+
+    @Benchmark
+    public void add() {
+        estimator.add(keys[i++ & mask]);
+    }
+
+    @Benchmark
+    public double cardinality() {
+        return estimator.cardinality();
+    }
+
+    static CardinalityEstimator create(String impl, double error) {
+        switch (impl) {
+            case "hashset": return new HyperLogLogApp.HashSetEstimator();
+            case "streamlib": return new HyperLogLogApp.StreamLibEstimator(error);
+            case "algebird": return new HyperLogLogApp.AlgebirdEstimator(error);
+            case "hllpp": return new HyperLogLogPlusPlus(error);
+            case "incremental": return new IncrementalHyperLogLog(error);
+            default: throw new IllegalArgumentException("Unknown cardinality estimator: " + impl);
+        }
+    }
+}
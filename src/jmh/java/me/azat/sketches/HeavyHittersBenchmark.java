@@ -0,0 +1,67 @@
+package me.azat.sketches;
+
+import me.azat.sketches.CountMinSketchApp.HeavyHittersEstimator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * inc / count of every HeavyHittersEstimator on a pre-materialized zipf stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeavyHittersBenchmark {
+
+    @Param({"streamlib", "algebird", "concurrent", "topn"})
+    String impl;
+
+    @Param({"100000", "1000000"})
+    int cardinality;
+
+    @Param({"3"})
+    int depth;
+
+    @Param({"32000"})
+    int width;
+
+    private String[] keys;
+    private int mask;
+    private int i;
+
+    private HeavyHittersEstimator estimator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = Benchmarks.zipfKeys(cardinality, 0.5);
+        mask = keys.length - 1;
+        estimator = create(impl, depth, width);
+        for (String key : keys) {
+            estimator.inc(key);
+        }
+    }
+
+    @Benchmark
+    public void inc() {
+        estimator.inc(keys[i++ & mask]);
+    }
+
+    @Benchmark
+    public long count() {
+        return estimator.count(keys[i++ & mask]);
+    }
+
+    static HeavyHittersEstimator create(String impl, int depth, int width) {
+        switch (impl) {
+            case "hashmap": return new CountMinSketchApp.HashMapEstimator();
+            case "streamlib": return new CountMinSketchApp.StreamLibEstimator(depth, width, 12345);
+            case "algebird": return new CountMinSketchApp.AlgebirdEstimator();
+            case "concurrent": return new ConcurrentCountMinSketch(depth, width, 12345);
+            case "topn": return new TopNCountMinSketch(depth, width, 12345, 100);
+            default: throw new IllegalArgumentException("Unknown heavy hitters estimator: " + impl);
+        }
+    }
+}
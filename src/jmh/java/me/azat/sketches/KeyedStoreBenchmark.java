@@ -0,0 +1,99 @@
+package me.azat.sketches;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many small sketches keyed by long, per event: a HashMap of stream-lib sketches against a keyed store over
+ * one {@link SketchSlab}. Events are zipf-distributed keys with uniform elements, every key is added in setup,
+ * so add measures updates of existing sketches and query reads one key's sketch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyedStoreBenchmark {
+    private static final int EVENTS = 1 << 20;
+
+    @Param({"hllMap", "hllStore", "cmsMap", "cmsStore"})
+    String impl;
+
+    @Param({"10000", "100000"})
+    int keys;
+
+    private long[] keyStream;
+    private long[] elementStream;
+    private int i;
+
+    private Map<Long, HyperLogLogApp.StreamLibEstimator> hllMap;
+    private KeyedHyperLogLogStore hllStore;
+    private Map<Long, CountMinSketchApp.StreamLibEstimator> cmsMap;
+    private KeyedCountMinStore cmsStore;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keyStream = new StreamGenerator(1, keys).zipfSampler(keys, 0.8, 1).stream(EVENTS).toArray();
+        elementStream = new StreamGenerator(2, EVENTS).uniformSampler(EVENTS, 2).stream(EVENTS).toArray();
+        switch (impl) {
+            case "hllMap":
+                hllMap = new HashMap<>();
+                break;
+            case "hllStore":
+                hllStore = new KeyedHyperLogLogStore(0.0325);
+                break;
+            case "cmsMap":
+                cmsMap = new HashMap<>();
+                break;
+            case "cmsStore":
+                cmsStore = new KeyedCountMinStore(3, 128, 12345);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown keyed store: " + impl);
+        }
+        for (int j = 0; j < EVENTS; j++) {
+            add();
+        }
+    }
+
+    @Benchmark
+    public void add() {
+        int j = i++ & (EVENTS - 1);
+        long key = keyStream[j];
+        long e = elementStream[j];
+        switch (impl) {
+            case "hllMap":
+                hllMap.computeIfAbsent(key, k -> new HyperLogLogApp.StreamLibEstimator(0.0325)).add(e);
+                break;
+            case "hllStore":
+                hllStore.add(key, e);
+                break;
+            case "cmsMap":
+                cmsMap.computeIfAbsent(key, k -> new CountMinSketchApp.StreamLibEstimator(3, 128, 12345)).inc(e);
+                break;
+            default:
+                cmsStore.inc(key, e);
+        }
+    }
+
+    @Benchmark
+    public double query() {
+        int j = i++ & (EVENTS - 1);
+        long key = keyStream[j];
+        long e = elementStream[j];
+        switch (impl) {
+            case "hllMap":
+                return hllMap.get(key).cardinality();
+            case "hllStore":
+                return hllStore.cardinality(key);
+            case "cmsMap":
+                return cmsMap.get(key).count(e);
+            default:
+                return cmsStore.count(key, e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package me.azat.sketches;
+
+import me.azat.sketches.BloomFilterApp.MembershipEstimator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * add / contains of every MembershipEstimator on pre-materialized keys,
+ * so neither StreamGenerator nor String creation is measured.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MembershipBenchmark {
+
+    @Param({"guava", "streamlib", "algebird", "blocked", "concurrent"})
+    String impl;
+
+    @Param({"100000", "1000000"})
+    int cardinality;
+
+    @Param({"0.01"})
+    double fpp;
+
+    private String[] keys;
+    private int mask;
+    private int i;
+
+    private MembershipEstimator estimator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = Benchmarks.keys(cardinality);
+        mask = keys.length - 1;
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        // every iteration starts from a filter holding exactly `cardinality` keys
+        estimator = create(impl, cardinality, fpp);
+        for (int j = 0; j < cardinality; j++) {
+            estimator.add(keys[j]);
+        }
+    }
+
+    @Benchmark
+    public void add() {
+        estimator.add(keys[i++ & mask]);
+    }
+
+    @Benchmark
+    public boolean contains() {
+        return estimator.contains(keys[i++ & mask]);
+    }
+
+    static MembershipEstimator create(String impl, int expectedInsertions, double fpp) {
+        switch (impl) {
+            case "hashset": return new BloomFilterApp.HashSetEstimator();
+            case "guava": return new BloomFilterApp.GuavaBloomEstimator(expectedInsertions, fpp);
+            case "streamlib": return new BloomFilterApp.StreamLibBloomEstimator(expectedInsertions, fpp);
+            case "algebird": return new BloomFilterApp.AlgebirdBloomEstimator(expectedInsertions, fpp);
+            case "blocked": return new BlockedBloomFilter(expectedInsertions, fpp);
+            case "concurrent": return new ConcurrentBloomFilter(expectedInsertions, fpp);
+            default: throw new IllegalArgumentException("Unknown membership estimator: " + impl);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package me.azat.sketches;
+
+import me.azat.sketches.HyperLogLogApp.CardinalityEstimator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes interleaved with cardinality polls: one op is an add, and every `writesPerRead`-th op also reads cardinality.
+ * Compares O(1) incremental estimate with register-rescanning implementations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MixedCardinalityBenchmark {
+
+    @Param({"streamlib", "hllpp", "incremental"})
+    String impl;
+
+    @Param({"1", "16", "256"})
+    int writesPerRead;
+
+    @Param({"1000000"})
+    int cardinality;
+
+    @Param({"0.01"})
+    double error;
+
+    private String[] keys;
+    private int mask;
+    private int i;
+
+    private CardinalityEstimator estimator;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = Benchmarks.keys(cardinality);
+        mask = keys.length - 1;
+        estimator = CardinalityBenchmark.create(impl, error);
+        for (String key : keys) {
+            estimator.add(key);
+        }
+    }
+
+    @Benchmark
+    public double addAndPoll() {
+        int n = i++;
+        estimator.add(keys[n & mask]);
+        return n % writesPerRead == 0 ? estimator.cardinality() : 0.0;
+    }
+}
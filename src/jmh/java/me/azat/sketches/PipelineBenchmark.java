@@ -0,0 +1,69 @@
+package me.azat.sketches;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One element into a Bloom filter, a count-min sketch and a HyperLogLog, per element:
+ * library estimators with their own hashers, hand-written sketches each hashing the key,
+ * and {@link SketchPipeline} hashing it once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    @Param({"libraries", "separate", "pipeline"})
+    String mode;
+
+    @Param({"1000000"})
+    int cardinality;
+
+    private String[] keys;
+    private int mask;
+    private int i;
+
+    private BloomFilterApp.MembershipEstimator filter;
+    private CountMinSketchApp.HeavyHittersEstimator counts;
+    private HyperLogLogApp.CardinalityEstimator distinct;
+    private SketchPipeline pipeline;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        keys = Benchmarks.keys(cardinality);
+        mask = keys.length - 1;
+        switch (mode) {
+            case "libraries":
+                filter = new BloomFilterApp.GuavaBloomEstimator(cardinality, 0.01);
+                counts = new CountMinSketchApp.StreamLibEstimator(3, 32000, 12345);
+                distinct = new HyperLogLogApp.StreamLibEstimator(0.01);
+                break;
+            case "separate":
+                filter = new BlockedBloomFilter(cardinality, 0.01);
+                counts = new ConcurrentCountMinSketch(3, 32000, 12345);
+                distinct = new HyperLogLogPlusPlus(0.01);
+                break;
+            case "pipeline":
+                pipeline = new SketchPipeline(cardinality, 0.01, 3, 32000, 12345, 0.01);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown pipeline mode: " + mode);
+        }
+    }
+
+    @Benchmark
+    public void add() {
+        String key = keys[i++ & mask];
+        if (pipeline != null) {
+            pipeline.add(key);
+        } else {
+            filter.add(key);
+            counts.inc(key);
+            distinct.add(key);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package me.azat.sketches;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of one union of many HyperLogLogs of the same precision, per union: stream-lib addAll into a fresh sketch,
+ * HyperLogLogPlusPlus.merge into a fresh sketch, and {@link HyperLogLogUnion} without its cache, in the calling
+ * thread or split across the common pool. Every sketch holds 1000 elements, half shared with the one before.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnionBenchmark {
+    private static final double ERROR = 0.0325; // log2m = 10
+    private static final int ELEMENTS = 1000;
+
+    @Param({"streamlib", "hllpp", "union", "parallelUnion"})
+    String impl;
+
+    @Param({"1000", "10000", "100000"})
+    int sketches;
+
+    private HyperLogLog[] streamLib;
+    private HyperLogLogPlusPlus[] hllpp;
+    private HyperLogLogUnion union;
+    private long[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (impl) {
+            case "streamlib":
+                streamLib = new HyperLogLog[sketches];
+                for (int i = 0; i < sketches; i++) {
+                    streamLib[i] = new HyperLogLog(ERROR);
+                    for (int j = 0; j < ELEMENTS; j++) {
+                        streamLib[i].offer((long) i * ELEMENTS / 2 + j);
+                    }
+                }
+                break;
+            case "hllpp":
+                hllpp = new HyperLogLogPlusPlus[sketches];
+                for (int i = 0; i < sketches; i++) {
+                    hllpp[i] = sketch(i);
+                }
+                break;
+            case "union":
+            case "parallelUnion":
+                union = new HyperLogLogUnion(ERROR, 0, "union".equals(impl) ? null : ForkJoinPool.commonPool());
+                ids = new long[sketches];
+                for (int i = 0; i < sketches; i++) {
+                    union.put(i, sketch(i));
+                    ids[i] = i;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown union impl: " + impl);
+        }
+    }
+
+    private static HyperLogLogPlusPlus sketch(int i) {
+        HyperLogLogPlusPlus sketch = new HyperLogLogPlusPlus(ERROR);
+        for (int j = 0; j < ELEMENTS; j++) {
+            sketch.add((long) i * ELEMENTS / 2 + j);
+        }
+        return sketch;
+    }
+
+    @Benchmark
+    public double union() throws CardinalityMergeException {
+        switch (impl) {
+            case "streamlib":
+                HyperLogLog streamLibUnion = new HyperLogLog(ERROR);
+                for (HyperLogLog sketch : streamLib) {
+                    streamLibUnion.addAll(sketch);
+                }
+                return streamLibUnion.cardinality();
+            case "hllpp":
+                HyperLogLogPlusPlus hllppUnion = new HyperLogLogPlusPlus(ERROR);
+                for (HyperLogLogPlusPlus sketch : hllpp) {
+                    hllppUnion.merge(sketch);
+                }
+                return hllppUnion.cardinality();
+            default:
+                return union.cardinality(ids);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary fuse filter (Graf, Lemire 2022), an xor filter laid out in overlapping segments: an 8-bit fingerprint of a
+ * key is the xor of three bytes of the array, one in each of three consecutive segments. About 9 bits per key
+ * (1.125 bytes) for large sets, 11 for 1000 keys, at fpp 1/256 = 0.39%, and contains is three reads and no branches.
+ * <p>
+ * The filter is static. Adds only collect 64-bit key hashes, the filter is built from them on the first contains,
+ * and the hashes are dropped. Adds after that throw IllegalStateException. Not thread-safe.
+ */
+class BinaryFuseFilter implements BloomFilterApp.MembershipEstimator, BloomFilterApp.LongMembershipEstimator {
+    static final double FPP = 1.0 / 256;
+    private static final int ARITY = 3;
+    private static final int MAX_SEGMENT_LENGTH = 1 << 18;
+    private static final int MAX_ATTEMPTS = 100;
+
+    private long[] hashes; // distinct once sorted, until built
+    private int hashCount;
+
+    private byte[] fingerprints;
+    private long seed;
+    private int segmentLength;
+    private int segmentCountLength;
+
+    /**
+     * @param expectedInsertions only sizes the buffer of hashes, the filter is sized for what is actually added
+     * @param fpp must be at least {@link #FPP}, fingerprints are always 8 bits
+     */
+    BinaryFuseFilter(int expectedInsertions, double fpp) {
+        Preconditions.checkArgument(expectedInsertions >= 0, "expectedInsertions >= 0");
+        Preconditions.checkArgument(fpp >= FPP && fpp < 1.0, "8-bit fingerprints give fpp of 1/256, can't do %s", fpp);
+        this.hashes = new long[Math.max(16, expectedInsertions)];
+    }
+
+    @Override
+    public void add(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(String e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(long e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(long e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    @Override
+    public boolean contains(ByteBuffer bytes, int offset, int length) {
+        return containsHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    private void addHash(long hash) {
+        Preconditions.checkState(fingerprints == null, "binary fuse filter is static, all adds must come before the first contains");
+        if (hashCount == hashes.length) {
+            deduplicate();
+            if (hashCount > hashes.length / 2) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+        }
+        hashes[hashCount++] = hash;
+    }
+
+    private boolean containsHash(long hash) {
+        if (fingerprints == null) {
+            build();
+        }
+        long h = Hashes.fmix64(hash + seed);
+        int position = position(h);
+        return (fingerprint(h)
+                ^ fingerprints[position]
+                ^ fingerprints[position + segmentLength ^ (int) (h >>> 18) & (segmentLength - 1)]
+                ^ fingerprints[position + 2 * segmentLength ^ (int) h & (segmentLength - 1)]) == 0;
+    }
+
+    /**
+     * Sorts hashes and drops repeated ones, a repeated key would never peel
+     */
+    private void deduplicate() {
+        Arrays.sort(hashes, 0, hashCount);
+        int distinct = 0;
+        for (int i = 0; i < hashCount; i++) {
+            if (distinct == 0 || hashes[i] != hashes[distinct - 1]) {
+                hashes[distinct++] = hashes[i];
+            }
+        }
+        hashCount = distinct;
+    }
+
+    /**
+     * Peels keys off array cells that only one key maps to, then assigns cells in the reverse order,
+     * each so that the key's three cells xor to its fingerprint. Retries with a new seed if peeling gets stuck.
+     */
+    private void build() {
+        deduplicate();
+        int size = hashCount;
+        segmentLength = size == 0 ? 4 : Math.min(MAX_SEGMENT_LENGTH, 1 << (int) Math.floor(Math.log(size) / Math.log(3.33) + 2.25));
+        double sizeFactor = size <= 1 ? 0 : Math.max(1.125, 0.875 + 0.25 * Math.log(1_000_000) / Math.log(size));
+        long capacity = Math.round(size * sizeFactor);
+        long segmentCount = Math.max(1, (capacity + segmentLength - 1) / segmentLength - (ARITY - 1));
+        long arrayLength = (segmentCount + ARITY - 1) * segmentLength;
+        Preconditions.checkState(arrayLength <= Integer.MAX_VALUE - 8, "filter does not fit in a byte[]");
+        segmentCountLength = (int) (segmentCount * segmentLength);
+
+        int[] counts = new int[(int) arrayLength]; // keys of a cell << 2 | xor of which of its 3 cells this is
+        long[] xors = new long[(int) arrayLength]; // xor of hashes of keys of a cell
+        int[] queue = new int[(int) arrayLength];
+        long[] stack = new long[size];
+        byte[] stackCell = new byte[size];
+
+        long random = 0x726b2b9d438b9d4dL;
+        int peeled = 0;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS && peeled < size; attempt++) {
+            random = Hashes.hash64(random);
+            seed = random;
+            Arrays.fill(counts, 0);
+            Arrays.fill(xors, 0);
+
+            for (int i = 0; i < size; i++) {
+                long h = Hashes.fmix64(hashes[i] + seed);
+                for (int cell = 0; cell < ARITY; cell++) {
+                    int index = cell(h, cell);
+                    counts[index] = (counts[index] + 4) ^ cell;
+                    xors[index] ^= h;
+                }
+            }
+
+            int queued = 0;
+            for (int index = 0; index < arrayLength; index++) {
+                if (counts[index] >> 2 == 1) {
+                    queue[queued++] = index;
+                }
+            }
+            peeled = 0;
+            while (queued > 0) {
+                int index = queue[--queued];
+                if (counts[index] >> 2 != 1) {
+                    continue;
+                }
+                long h = xors[index];
+                int found = counts[index] & 3;
+                stack[peeled] = h;
+                stackCell[peeled] = (byte) found;
+                peeled++;
+                for (int cell = 0; cell < ARITY; cell++) {
+                    int other = cell(h, cell);
+                    counts[other] = (counts[other] - 4) ^ cell;
+                    xors[other] ^= h;
+                    if (cell != found && counts[other] >> 2 == 1) {
+                        queue[queued++] = other;
+                    }
+                }
+            }
+        }
+        Preconditions.checkState(peeled == size, "could not build binary fuse filter in %s attempts", MAX_ATTEMPTS);
+
+        fingerprints = new byte[(int) arrayLength];
+        for (int i = size - 1; i >= 0; i--) {
+            long h = stack[i];
+            int found = stackCell[i];
+            int fingerprint = fingerprint(h);
+            for (int cell = 0; cell < ARITY; cell++) {
+                if (cell != found) {
+                    fingerprint ^= fingerprints[cell(h, cell)];
+                }
+            }
+            fingerprints[cell(h, found)] = (byte) fingerprint;
+        }
+        hashes = null;
+    }
+
+    /**
+     * Cell 0 is in a segment chosen by multiply-shift of the whole hash, cells 1 and 2 in the next two segments,
+     * at offsets from bits 18..35 and 0..17 of the hash
+     */
+    private int cell(long h, int cell) {
+        int position = position(h) + cell * segmentLength;
+        long low = h & ((1L << 36) - 1);
+        return position ^ (int) (low >>> (36 - 18 * cell)) & (segmentLength - 1);
+    }
+
+    /**
+     * Unsigned high 64 bits of h * segmentCountLength, without Math.unsignedMultiplyHigh
+     */
+    private int position(long h) {
+        return (int) (Math.multiplyHigh(h, segmentCountLength) + ((h >> 63) & segmentCountLength));
+    }
+
+    private static int fingerprint(long h) {
+        return (byte) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Collects other's hashes. Both filters must not be built yet.
+     */
+    @Override
+    public void merge(BloomFilterApp.MembershipEstimator estimator) {
+        Preconditions.checkArgument(estimator instanceof BinaryFuseFilter, "can't merge %s into BinaryFuseFilter", estimator);
+        BinaryFuseFilter other = (BinaryFuseFilter) estimator;
+        Preconditions.checkState(fingerprints == null && other.fingerprints == null, "can merge only filters that are not built yet");
+
+        for (int i = 0; i < other.hashCount; i++) {
+            addHash(other.hashes[i]);
+        }
+    }
+
+    /**
+     * The collected hashes until built, the fingerprints after
+     */
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(2 * ObjectLayout.REFERENCE + 3 * Integer.BYTES + Long.BYTES)
+                + (fingerprints == null ? ObjectLayout.longArray(hashes.length) : ObjectLayout.byteArray(fingerprints.length));
+    }
+
+    /**
+     * Fingerprints, seed and segment geometry, or the collected hashes until built
+     */
+    @Override
+    public long serializedBytes() {
+        return fingerprints == null
+                ? (long) hashCount * Long.BYTES
+                : fingerprints.length + Long.BYTES + 2 * Integer.BYTES;
+    }
+}
@@ -0,0 +1,204 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bloom filter where all k probes of a key land in one 64-byte block, i.e. one cache line,
+ * so add and contains cost a single cache miss instead of k.
+ * <p>
+ * Bits are stored off-heap, in a direct buffer aligned to cache lines, as little-endian longs: native on x86 and ARM,
+ * and the same bytes as in {@link SketchFormat}, so a filter can also run over a memory-mapped file.
+ * The price is a somewhat higher false-positive rate than a classic filter of the same size,
+ * because keys are not spread evenly over blocks.
+ * Not thread-safe.
+ */
+class BlockedBloomFilter implements BloomFilterApp.MembershipEstimator, BloomFilterApp.LongMembershipEstimator {
+    static final int BLOCK_BYTES = 64;
+    private static final int BLOCK_BITS = BLOCK_BYTES * 8;
+    private static final int MAX_HASHES = 16;
+
+    private final ByteBuffer bits;
+    private final int blocks;
+    private final int hashCount;
+
+    BlockedBloomFilter(int expectedInsertions, double fpp) {
+        Preconditions.checkArgument(expectedInsertions >= 0, "expectedInsertions >= 0");
+        Preconditions.checkArgument(fpp > 0.0 && fpp < 1.0, "0 < fpp < 1");
+
+        long blocks = blocksFor(expectedInsertions, fpp);
+        Preconditions.checkArgument(
+                blocks <= (Integer.MAX_VALUE - BLOCK_BYTES) / BLOCK_BYTES,
+                "filter does not fit in a single direct buffer");
+
+        this.blocks = (int) blocks;
+        this.hashCount = hashCountFor(fpp);
+        // over-allocate one block, so that the aligned slice still holds all of them
+        this.bits = ByteBuffer.allocateDirect((this.blocks + 1) * BLOCK_BYTES)
+                .alignedSlice(BLOCK_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Filter over existing bits, e.g. a mapped file, without copying them. A read-only buffer gives a read-only filter.
+     */
+    BlockedBloomFilter(ByteBuffer bits, int blocks, int hashCount) {
+        Preconditions.checkArgument(blocks > 0 && bits.capacity() >= blocks * BLOCK_BYTES, "bits must hold all blocks");
+        Preconditions.checkArgument(hashCount >= 1 && hashCount <= MAX_HASHES, "1 <= hashCount <= MAX_HASHES");
+
+        this.bits = bits.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.blocks = blocks;
+        this.hashCount = hashCount;
+    }
+
+    @Override
+    public void add(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(String e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(long e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(long e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void addAll(long[] keys, int offset, int length) {
+        for (Hashes.Rounds round = Hashes.rounds(keys, offset, length); round.next(); ) {
+            for (int i = 0; i < round.size(); i++) {
+                addHash(round.hash(i));
+            }
+        }
+    }
+
+    @Override
+    public void containsAll(long[] keys, int offset, int length, boolean[] results) {
+        for (Hashes.Rounds round = Hashes.rounds(keys, offset, length); round.next(); ) {
+            for (int i = 0; i < round.size(); i++) {
+                results[round.index(i)] = containsHash(round.hash(i));
+            }
+        }
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    @Override
+    public boolean contains(ByteBuffer bytes, int offset, int length) {
+        return containsHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    void addHash(long hash) {
+        addToBlock(bits, blockOffset(hash), hash, hashCount);
+    }
+
+    boolean containsHash(long hash) {
+        return blockContains(bits, blockOffset(hash), hash, hashCount);
+    }
+
+    /**
+     * Sets hashCount bits of the hash in the block starting at byte base
+     */
+    static void addToBlock(ByteBuffer bits, int base, long hash, int hashCount) {
+        long probes = Hashes.rehash(hash);
+        int a = (int) probes;
+        int b = (int) (probes >>> 32) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (a + i * b) >>> 23; // top 9 bits: 0..511
+            int index = base + ((bit >>> 6) << 3);
+            bits.putLong(index, bits.getLong(index) | (1L << bit));
+        }
+    }
+
+    static boolean blockContains(ByteBuffer bits, int base, long hash, int hashCount) {
+        long probes = Hashes.rehash(hash);
+        int a = (int) probes;
+        int b = (int) (probes >>> 32) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (a + i * b) >>> 23;
+            if ((bits.getLong(base + ((bit >>> 6) << 3)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Blocks needed for the optimal number of bits of a classic filter
+     */
+    static long blocksFor(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        double bitCount = -n * Math.log(fpp) / (Math.log(2) * Math.log(2));
+        return Math.max(1, (long) Math.ceil(bitCount / BLOCK_BITS));
+    }
+
+    /**
+     * Optimal k = bits per key * ln 2 = -log2(fpp), capped so that probes of a key fit in one block
+     */
+    static int hashCountFor(double fpp) {
+        return (int) Math.max(1, Math.min(MAX_HASHES, Math.round(-Math.log(fpp) / Math.log(2))));
+    }
+
+    /**
+     * Byte offset of the key's block: multiply-shift of the high half of the hash maps it to [0, blocks) without a modulo
+     */
+    private int blockOffset(long hash) {
+        return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_BYTES;
+    }
+
+    @Override
+    public void merge(BloomFilterApp.MembershipEstimator other) {
+        Preconditions.checkArgument(other instanceof BlockedBloomFilter, "can't merge %s into BlockedBloomFilter", other);
+        BlockedBloomFilter that = (BlockedBloomFilter) other;
+        Preconditions.checkArgument(
+                blocks == that.blocks && hashCount == that.hashCount,
+                "can merge only filters with the same blocks and hashCount");
+
+        for (int i = 0; i < blocks * BLOCK_BYTES; i += Long.BYTES) {
+            bits.putLong(i, bits.getLong(i) | that.bits.getLong(i));
+        }
+    }
+
+    int hashCount() {
+        return hashCount;
+    }
+
+    int blocks() {
+        return blocks;
+    }
+
+    /**
+     * Bits of all blocks, a view sharing content with the filter
+     */
+    ByteBuffer bits() {
+        ByteBuffer view = bits.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.clear().limit(blocks * BLOCK_BYTES);
+        return view;
+    }
+
+    /**
+     * Includes the off-heap buffer with its one block of alignment slack
+     */
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(2 * ObjectLayout.REFERENCE + 2 * Integer.BYTES) + (blocks + 1L) * BLOCK_BYTES;
+    }
+
+    @Override
+    public long serializedBytes() {
+        return (long) blocks * BLOCK_BYTES;
+    }
+}
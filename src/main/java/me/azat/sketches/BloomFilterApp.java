@@ -1,16 +1,19 @@
 package me.azat.sketches;
 
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.hash.BloomFilter;
 import com.google.common.hash.Funnels;
 import com.twitter.algebird.Hash128$;
 import gnu.trove.set.hash.THashSet;
+import gnu.trove.set.hash.TLongHashSet;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -18,23 +21,66 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Then test on 100% of them, and find false-positive rate.
  */
 public class BloomFilterApp {
-    public static void main(String[] args) {
-        System.out.printf("--- Test with fpp = %.2f ---\n", 0.1);
-        testEstimator(1_000_000, 0.1);
+    /**
+     * With two key files as arguments, stores the first one and tests the second one instead of generated streams
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2) {
+            testFileEstimator(KeyFile.open(Paths.get(args[0])), KeyFile.open(Paths.get(args[1])), 0.01,
+                    BlockedBloomFilter::new, Runtime.getRuntime().availableProcessors());
+            return;
+        }
+
+        for (double fpp : new double[]{ 0.1, 0.05, 0.03, 0.01 }) {
+            System.out.printf("--- Test with fpp = %.2f ---\n", fpp);
+            testEstimator(1_000_000, fpp, StreamLibBloomEstimator::new);
+//            testEstimator(1_000_000, fpp, GuavaBloomEstimator::new);
+//            testEstimator(1_000_000, fpp, AlgebirdBloomEstimator::new);
+
+            System.out.printf("--- Test blocked filter with fpp = %.2f ---\n", fpp);
+            testEstimator(1_000_000, fpp, BlockedBloomFilter::new);
+
+            System.out.printf("--- Test mapped filter with fpp = %.2f ---\n", fpp);
+            testEstimator(1_000_000, fpp, MappedBloomFilter::createTemporary);
+
+            System.out.printf("--- Test cuckoo filter with fpp = %.2f ---\n", fpp);
+            testEstimator(1_000_000, fpp, CuckooFilter::new);
+        }
+
+        System.out.printf("--- Test binary fuse filter, fpp = %.4f whatever the target ---\n", BinaryFuseFilter.FPP);
+        testEstimator(1_000_000, 0.01, BinaryFuseFilter::new);
+
+        System.out.printf("--- Test filter sized for %d keys with unknown cardinality, fpp = %.2f ---\n", 1000, 0.01);
+        testEstimator(1_000_000, 0.01, BlockedBloomFilter::new, 1000);
 
-        System.out.printf("--- Test with fpp = %.2f ---\n", 0.05);
-        testEstimator(1_000_000,0.05);
+        System.out.printf("--- Test scalable filter with unknown cardinality, fpp = %.2f ---\n", 0.01);
+        testEstimator(1_000_000, 0.01, ScalableBloomFilter::new, 1000);
 
-        System.out.printf("--- Test with fpp = %.2f ---\n", 0.03);
-        testEstimator(1_000_000,0.03);
+        System.out.printf("--- Test mapped filter on large sets with fpp = %.2f ---\n", 0.01);
+        testLargeEstimator(100_000_000, 0.01, MappedBloomFilter::createTemporary);
 
-        System.out.printf("--- Test with fpp = %.2f ---\n", 0.01);
-        testEstimator(1_000_000,0.01);
+        System.out.printf("--- Test windowed filter with fpp = %.2f ---\n", 0.01);
+        testWindowedEstimator(100_000, 5, 0.01, BlockedBloomFilter::new);
+
+        System.out.printf("--- Test concurrent filter with fpp = %.2f ---\n", 0.01);
+        testConcurrentEstimator(1_000_000, 0.1, 0.01, Runtime.getRuntime().availableProcessors());
     }
 
 
-    static void testEstimator(int maxCardinality, double falsePositiveProbability) {
+    static void testEstimator(int maxCardinality, double falsePositiveProbability, EstimatorFactory factory) {
+        testEstimator(maxCardinality, falsePositiveProbability, factory, 0);
+    }
+
+
+    /**
+     * Unknown cardinality mode: with expectedInsertions > 0 every estimator is created for that many keys, whatever it
+     * stores, and false positives are checked against the target among keys that were not stored.
+     * With 0 every estimator is sized for exactly what it stores.
+     */
+    static void testEstimator(int maxCardinality, double falsePositiveProbability, EstimatorFactory factory, int expectedInsertions) {
         Stopwatch stopwatch = Stopwatch.createStarted();
+        int tests = 0;
+        int withinTarget = 0;
 
         for (int testCardinality = 1000; testCardinality <= maxCardinality; testCardinality *= 10) {
             StreamGenerator gen = new StreamGenerator(12345, testCardinality);
@@ -43,64 +89,373 @@ public class BloomFilterApp {
                 int storeCardinality = (int)(testCardinality * fillRate); // store fillRate of all elements
                 int streamLength = testCardinality * 5;
 
-//                MembershipEstimator estimator = new GuavaBloomEstimator(storeCardinality, falsePositiveProbability);
-                MembershipEstimator estimator = new StreamLibBloomEstimator(storeCardinality, falsePositiveProbability);
-//                MembershipEstimator estimator = new AlgebirdBloomEstimator(storeCardinality, falsePositiveProbability);
-
-                MembershipEstimator trueEstimator = new HashSetEstimator();
-
-                // store
-                gen.uniformStream(storeCardinality, streamLength)
-                        .forEach(e -> {
-                            estimator.add(e);
-                            trueEstimator.add(e);
-                        });
-
-                // test
-                AtomicInteger truePositives = new AtomicInteger();
-                AtomicInteger falsePositives = new AtomicInteger();
-                AtomicInteger total = new AtomicInteger();
-                gen.uniformStream(testCardinality, streamLength)
-                        .forEach(e -> {
-                            boolean isTrue = trueEstimator.contains(e);
-                            boolean positive = estimator.contains(e);
-                            if (isTrue && positive) {
-                                truePositives.incrementAndGet();
-                            }
-                            if (!isTrue && positive) {
-                                falsePositives.incrementAndGet();
-                            }
-                            total.incrementAndGet();
-                            if (isTrue && !positive) {
-                                throw new AssertionError();
-                            }
-                        });
-
-                System.out.printf(
-                        "filled: %d%%, testCardinality: %d, tests: %d, truePositives: %d, falsePositives: %d, fpRate: %.2f%%, estimatorSize: %d, trueSize: %d\n",
-                        (int)(fillRate * 100.0),
-                        testCardinality,
-                        total.get(),
-                        truePositives.get(),
-                        falsePositives.get(),
-                        100.0 * falsePositives.get() / total.get(),
-                        estimator.size(),
-                        trueEstimator.size());
+                try (MembershipEstimator estimator = factory.create(
+                        expectedInsertions > 0 ? expectedInsertions : storeCardinality, falsePositiveProbability)) {
+                    MembershipEstimator trueEstimator = new HashSetEstimator();
+
+                    // store
+                    gen.uniformStream(storeCardinality, streamLength)
+                            .forEach(e -> {
+                                estimator.add(e);
+                                trueEstimator.add(e);
+                            });
+
+                    // test
+                    AtomicInteger truePositives = new AtomicInteger();
+                    AtomicInteger falsePositives = new AtomicInteger();
+                    AtomicInteger total = new AtomicInteger();
+                    gen.uniformStream(testCardinality, streamLength)
+                            .forEach(e -> {
+                                boolean isTrue = trueEstimator.contains(e);
+                                boolean positive = estimator.contains(e);
+                                if (isTrue && positive) {
+                                    truePositives.incrementAndGet();
+                                }
+                                if (!isTrue && positive) {
+                                    falsePositives.incrementAndGet();
+                                }
+                                total.incrementAndGet();
+                                if (isTrue && !positive) {
+                                    throw new AssertionError();
+                                }
+                            });
+
+                    if (expectedInsertions > 0) {
+                        double negativeFpRate = (double) falsePositives.get() / (total.get() - truePositives.get());
+                        tests++;
+                        if (negativeFpRate <= falsePositiveProbability) {
+                            withinTarget++;
+                        }
+                        System.out.printf(
+                                "overshoot: %.1fx, negativeFpRate: %.2f%%, withinTarget: %b, bitsPerKey: %.1f, ",
+                                (double) storeCardinality / expectedInsertions,
+                                100.0 * negativeFpRate,
+                                negativeFpRate <= falsePositiveProbability,
+                                estimator.serializedBytes() * 8.0 / Math.max(storeCardinality, 1));
+                    }
+                    System.out.printf(
+                            "filled: %d%%, testCardinality: %d, tests: %d, truePositives: %d, falsePositives: %d, fpRate: %.2f%%, estimatorSize: %d, estimatorHeap: %d, trueSize: %d, trueHeap: %d\n",
+                            (int)(fillRate * 100.0),
+                            testCardinality,
+                            total.get(),
+                            truePositives.get(),
+                            falsePositives.get(),
+                            100.0 * falsePositives.get() / total.get(),
+                            estimator.serializedBytes(),
+                            estimator.heapBytes(),
+                            trueEstimator.serializedBytes(),
+                            trueEstimator.heapBytes());
+                }
             }
         }
+        if (expectedInsertions > 0) {
+            System.out.printf("Within target: %d of %d\n", withinTarget, tests);
+        }
+        System.out.printf("Finished in %s\n", stopwatch);
+    }
+
+
+    /**
+     * Same sweep as {@link #testEstimator}, but fit for 100M+ keys: keys are 0, 1, 2, ... and the first storeCardinality
+     * of them are stored, each once, so membership is known without a hash set, and no key is materialized.
+     */
+    static void testLargeEstimator(long maxCardinality, double falsePositiveProbability, LongEstimatorFactory factory) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        for (long testCardinality = 1_000_000; testCardinality <= maxCardinality; testCardinality *= 10) {
+            for (double fillRate : new double[]{ 0.01, 0.05, 0.1, 0.2, 0.5 }) {
+                long storeCardinality = (long)(testCardinality * fillRate);
+
+                try (LongMembershipEstimator estimator = factory.create(storeCardinality, falsePositiveProbability)) {
+                    // store
+                    Stopwatch storeStopwatch = Stopwatch.createStarted();
+                    for (long e = 0; e < storeCardinality; e++) {
+                        estimator.add(e);
+                    }
+                    long storeNanos = storeStopwatch.elapsed(TimeUnit.NANOSECONDS);
+
+                    // test
+                    long falsePositives = 0;
+                    for (long e = 0; e < testCardinality; e++) {
+                        boolean isTrue = e < storeCardinality;
+                        boolean positive = estimator.contains(e);
+                        if (!isTrue && positive) {
+                            falsePositives++;
+                        }
+                        if (isTrue && !positive) {
+                            throw new AssertionError();
+                        }
+                    }
+
+                    System.out.printf(
+                            "filled: %d%%, testCardinality: %d, adds: %d, throughput: %.1f Mops/s, falsePositives: %d, fpRate: %.2f%%, estimatorSize: %d, estimatorHeap: %d\n",
+                            (int)(fillRate * 100.0),
+                            testCardinality,
+                            storeCardinality,
+                            storeCardinality * 1000.0 / storeNanos,
+                            falsePositives,
+                            100.0 * falsePositives / testCardinality,
+                            estimator.serializedBytes(),
+                            estimator.heapBytes());
+                }
+            }
+        }
+        System.out.printf("Finished in %s\n", stopwatch);
+    }
+
+
+    /**
+     * Same store-and-test as {@link #testEstimator}, over key files instead of StreamGenerator. Both files are read
+     * by parallel readers, one sketch per split, merged. The filter is sized for the exact number of distinct stored keys.
+     */
+    static void testFileEstimator(KeyFile store, KeyFile test, double falsePositiveProbability, EstimatorFactory factory, int threads) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            HashSetEstimator trueEstimator = (HashSetEstimator) ParallelIngestion.ingestMembership(pool, store, HashSetEstimator::new);
+            int storeCardinality = trueEstimator.elements.size();
+
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            MembershipEstimator estimator = ParallelIngestion.ingestMembership(
+                    pool, store, () -> factory.create(storeCardinality, falsePositiveProbability));
+            long nanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+
+            long[] counts = new long[3]; // tests, true positives, false positives
+            test.forEach((bytes, offset, length) -> {
+                boolean isTrue = trueEstimator.contains(bytes, offset, length);
+                boolean positive = estimator.contains(bytes, offset, length);
+                if (isTrue && positive) {
+                    counts[1]++;
+                }
+                if (!isTrue && positive) {
+                    counts[2]++;
+                }
+                counts[0]++;
+                if (isTrue && !positive) {
+                    throw new AssertionError();
+                }
+            });
+
+            System.out.printf(
+                    "file: %s, threads: %d, storeCardinality: %d, throughput: %.1f MB/s, tests: %d, truePositives: %d, falsePositives: %d, fpRate: %.2f%%, estimatorSize: %d, estimatorHeap: %d, trueSize: %d, trueHeap: %d\n",
+                    store.path().getFileName(),
+                    threads,
+                    storeCardinality,
+                    store.size() * 1000.0 / nanos,
+                    counts[0],
+                    counts[1],
+                    counts[2],
+                    100.0 * counts[2] / counts[0],
+                    estimator.serializedBytes(),
+                    estimator.heapBytes(),
+                    trueEstimator.serializedBytes(),
+                    trueEstimator.heapBytes());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    /**
+     * Simulated clock: every second keysPerSecond new keys are added into a window of the last windowSeconds seconds.
+     * Keys of the window must all be found, keys of the second that has just left the window should be found only
+     * as often as false positives.
+     */
+    static void testWindowedEstimator(int keysPerSecond, int windowSeconds, double falsePositiveProbability, EstimatorFactory factory) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long[] now = { 0 };
+        MembershipEstimator estimator = new WindowedMembershipEstimator(windowSeconds, 1000, () -> now[0],
+                () -> factory.create(keysPerSecond * windowSeconds, falsePositiveProbability));
+
+        for (int second = 0; second < 4 * windowSeconds; second++) {
+            for (int i = 0; i < keysPerSecond; i++) {
+                now[0] = second * 1000L + i * 1000L / keysPerSecond;
+                estimator.add(second + "-" + i);
+            }
+
+            for (int s = Math.max(0, second - windowSeconds + 1); s <= second; s++) {
+                for (int i = 0; i < keysPerSecond; i++) {
+                    if (!estimator.contains(s + "-" + i)) {
+                        throw new AssertionError("false negative within the window: " + s + "-" + i);
+                    }
+                }
+            }
+            int expired = second - windowSeconds;
+            int expiredPositives = 0;
+            for (int i = 0; expired >= 0 && i < keysPerSecond; i++) {
+                if (estimator.contains(expired + "-" + i)) {
+                    expiredPositives++;
+                }
+            }
+
+            System.out.printf(
+                    "second: %d, windowKeys: %d, expiredTests: %d, expiredPositives: %d, expiredFpRate: %.2f%%, estimatorSize: %d, estimatorHeap: %d\n",
+                    second,
+                    keysPerSecond * Math.min(second + 1, windowSeconds),
+                    expired >= 0 ? keysPerSecond : 0,
+                    expiredPositives,
+                    expired >= 0 ? 100.0 * expiredPositives / keysPerSecond : 0.0,
+                    estimator.serializedBytes(),
+                    estimator.heapBytes());
+        }
         System.out.printf("Finished in %s\n", stopwatch);
     }
 
 
-    interface MembershipEstimator {
+    /**
+     * Filters release what they hold outside the heap, e.g. mapped files, on close. Nothing by default.
+     */
+    interface Releasable extends MemoryFootprint, AutoCloseable {
+        @Override
+        default void close() {
+        }
+    }
+
+
+    interface MembershipEstimator extends Releasable {
         void add(String e);
         boolean contains(String e);
-        long size();
+
+        /**
+         * Key as bytes, e.g. a slice of a {@link KeyFile}. Decoded into a String by default; hand-written sketches
+         * hash the bytes in place, exactly as they hash the String of an ASCII key.
+         */
+        default void add(ByteBuffer bytes, int offset, int length) {
+            add(KeyFile.decode(bytes, offset, length));
+        }
+
+        default boolean contains(ByteBuffer bytes, int offset, int length) {
+            return contains(KeyFile.decode(bytes, offset, length));
+        }
+
+        /**
+         * Adds all elements of other estimator into this one. Other must be of the same class and created with the same
+         * parameters, otherwise IllegalArgumentException is thrown.
+         */
+        void merge(MembershipEstimator other);
+    }
+
+
+    /**
+     * Same store-and-test as {@link #testEstimator}, but the store phase is split between 1, 2, 4, ... maxThreads threads,
+     * all adding into one shared filter. Keys are materialized up front, so only the filter is timed.
+     */
+    static void testConcurrentEstimator(int testCardinality, double fillRate, double falsePositiveProbability, int maxThreads) {
+        StreamGenerator gen = new StreamGenerator(12345, testCardinality);
+        int storeCardinality = (int)(testCardinality * fillRate);
+        int streamLength = testCardinality * 5;
+
+        long[] store = gen.uniformLongStream(storeCardinality, streamLength).toArray();
+        long[] test = gen.uniformLongStream(testCardinality, streamLength).toArray();
+        TLongHashSet trueSet = new TLongHashSet(store);
+
+        for (int threads = 1; threads <= maxThreads; threads = Workers.nextThreadCount(threads, maxThreads)) {
+            ConcurrentBloomFilter estimator = new ConcurrentBloomFilter(storeCardinality, falsePositiveProbability);
+
+            long nanos = Workers.timeSplit(threads, store.length, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    estimator.add(store[i]);
+                }
+            });
+
+            int falsePositives = 0;
+            for (long e : test) {
+                boolean isTrue = trueSet.contains(e);
+                boolean positive = estimator.contains(e);
+                if (!isTrue && positive) {
+                    falsePositives++;
+                }
+                if (isTrue && !positive) {
+                    throw new AssertionError();
+                }
+            }
+
+            System.out.printf(
+                    "threads: %d, adds: %d, throughput: %.1f Mops/s, tests: %d, falsePositives: %d, fpRate: %.2f%%, estimatorHeap: %d\n",
+                    threads,
+                    store.length,
+                    store.length * 1000.0 / nanos,
+                    test.length,
+                    falsePositives,
+                    100.0 * falsePositives / test.length,
+                    estimator.heapBytes());
+        }
+    }
+
+
+    interface EstimatorFactory {
+        MembershipEstimator create(int expectedInsertions, double fpp);
+    }
+
+
+    interface LongEstimatorFactory {
+        LongMembershipEstimator create(long expectedInsertions, double fpp);
+    }
+
+
+    /**
+     * Same as {@link MembershipEstimator}, but over raw 64-bit keys, so that no String is created per element
+     */
+    interface LongMembershipEstimator extends Releasable {
+        void add(long e);
+        boolean contains(long e);
+
+        /**
+         * Adds keys[offset, offset + length). One call per key by default; hand-written filters hash a batch of keys
+         * in one tight loop first, see {@link Hashes#rounds}, and then set bits in key order.
+         */
+        default void addAll(long[] keys, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                add(keys[i]);
+            }
+        }
+
+        /**
+         * results[i] = contains(keys[i]) for i in [offset, offset + length)
+         */
+        default void containsAll(long[] keys, int offset, int length, boolean[] results) {
+            for (int i = offset; i < offset + length; i++) {
+                results[i] = contains(keys[i]);
+            }
+        }
+    }
+
+
+    /**
+     * Feeds long keys into any string-keyed estimator as their decimal representation,
+     * i.e. gives exactly the same answers as the String path. Still allocates a String per call.
+     */
+    static class LongKeysAdapter implements LongMembershipEstimator {
+        private final MembershipEstimator estimator;
+
+        LongKeysAdapter(MembershipEstimator estimator) {
+            this.estimator = estimator;
+        }
+
+        @Override
+        public void add(long e) {
+            estimator.add(String.valueOf(e));
+        }
+
+        @Override
+        public boolean contains(long e) {
+            return estimator.contains(String.valueOf(e));
+        }
+
+        @Override
+        public long heapBytes() {
+            return estimator.heapBytes();
+        }
+
+        @Override
+        public long serializedBytes() {
+            return estimator.serializedBytes();
+        }
     }
 
 
     static class HashSetEstimator implements MembershipEstimator {
         private final THashSet<String> elements;
+        private long chars; // of all elements, for footprint
 
         public HashSetEstimator() {
             this.elements = new THashSet<>();
@@ -108,7 +463,9 @@ public class BloomFilterApp {
 
         @Override
         public void add(String e) {
-            elements.add(e);
+            if (elements.add(e)) {
+                chars += e.length();
+            }
         }
 
         @Override
@@ -117,26 +474,38 @@ public class BloomFilterApp {
         }
 
         @Override
-        public long size() {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                elements.writeExternal(new ObjectOutputStream(baos));
-                return baos.size();
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+        public void merge(MembershipEstimator other) {
+            Preconditions.checkArgument(other instanceof HashSetEstimator, "can't merge %s into HashSetEstimator", other);
+            for (String e : ((HashSetEstimator) other).elements) {
+                add(e);
             }
         }
+
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.troveSet(elements.capacity()) + ObjectLayout.latin1Strings(elements.size(), chars);
+        }
+
+        /**
+         * Java serialization writes each element as a string record: tag, 2-byte length, chars
+         */
+        @Override
+        public long serializedBytes() {
+            return ObjectLayout.TROVE_SERIALIZATION_OVERHEAD + 3L * elements.size() + chars;
+        }
     }
 
 
     static class GuavaBloomEstimator implements MembershipEstimator {
         private final BloomFilter<String> bloomFilter;
+        private final long words;
 
         GuavaBloomEstimator(int expectedInsertions, double fpp) {
             this.bloomFilter = BloomFilter.create(
                     Funnels.stringFunnel(Charset.defaultCharset()),
                     expectedInsertions,
                     fpp);
+            this.words = guavaWords(expectedInsertions, fpp);
         }
 
         @Override
@@ -150,19 +519,88 @@ public class BloomFilterApp {
         }
 
         @Override
-        public long size() {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                bloomFilter.writeTo(baos);
-                return baos.size();
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
+        public void merge(MembershipEstimator other) {
+            Preconditions.checkArgument(other instanceof GuavaBloomEstimator, "can't merge %s into GuavaBloomEstimator", other);
+            bloomFilter.putAll(((GuavaBloomEstimator) other).bloomFilter);
+        }
+
+        @Override
+        public long heapBytes() {
+            return guavaHeapBytes(words);
+        }
+
+        @Override
+        public long serializedBytes() {
+            return guavaSerializedBytes(words);
+        }
+    }
+
+
+    /**
+     * Number of longs in the bit array of a Guava filter, same formula as BloomFilter.optimalNumOfBits
+     */
+    private static long guavaWords(int expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        long bits = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        return (bits + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /**
+     * BloomFilter, its LockFreeBitArray with AtomicLongArray and LongAdder, and the long[] itself
+     */
+    private static long guavaHeapBytes(long words) {
+        return ObjectLayout.object(3 * ObjectLayout.REFERENCE + Integer.BYTES)
+                + ObjectLayout.object(2 * ObjectLayout.REFERENCE)
+                + ObjectLayout.object(ObjectLayout.REFERENCE)
+                + ObjectLayout.object(Long.BYTES + 2 * ObjectLayout.REFERENCE + Integer.BYTES)
+                + ObjectLayout.longArray(words);
+    }
+
+    /**
+     * BloomFilter.writeTo: strategy byte, hash count byte, array length int, then the longs
+     */
+    private static long guavaSerializedBytes(long words) {
+        return 1 + 1 + Integer.BYTES + words * Long.BYTES;
+    }
+
+
+    /**
+     * Guava filter over 8-byte keys: no String and no UTF-8 encoding, but Guava still boxes the key and allocates a Hasher.
+     */
+    static class GuavaLongBloomEstimator implements LongMembershipEstimator {
+        private final BloomFilter<Long> bloomFilter;
+        private final long words;
+
+        GuavaLongBloomEstimator(int expectedInsertions, double fpp) {
+            this.bloomFilter = BloomFilter.create(Funnels.longFunnel(), expectedInsertions, fpp);
+            this.words = guavaWords(expectedInsertions, fpp);
+        }
+
+        @Override
+        public void add(long e) {
+            bloomFilter.put(e);
+        }
+
+        @Override
+        public boolean contains(long e) {
+            return bloomFilter.mightContain(e);
+        }
+
+        @Override
+        public long heapBytes() {
+            return guavaHeapBytes(words);
+        }
+
+        @Override
+        public long serializedBytes() {
+            return guavaSerializedBytes(words);
         }
     }
 
 
     static class StreamLibBloomEstimator implements MembershipEstimator {
+        private static final int BITSET_SERIALIZATION_OVERHEAD = 77;
+
         private final com.clearspring.analytics.stream.membership.BloomFilter filter;
 
         StreamLibBloomEstimator(int expectedInsertions, double fpp) {
@@ -180,13 +618,43 @@ public class BloomFilterApp {
         }
 
         @Override
-        public long size() {
-            return com.clearspring.analytics.stream.membership.BloomFilter.serialize(filter).length;
+        public void merge(MembershipEstimator other) {
+            Preconditions.checkArgument(other instanceof StreamLibBloomEstimator, "can't merge %s into StreamLibBloomEstimator", other);
+            com.clearspring.analytics.stream.membership.BloomFilter otherFilter = ((StreamLibBloomEstimator) other).filter;
+            Preconditions.checkArgument(filter.buckets() == otherFilter.buckets(), "can merge only filters of the same size");
+            filter.addAll(otherFilter);
+        }
+
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.object(Integer.BYTES + ObjectLayout.REFERENCE)
+                    + ObjectLayout.object(ObjectLayout.REFERENCE + Integer.BYTES + 1)
+                    + ObjectLayout.longArray(filter.buckets() / Long.SIZE);
+        }
+
+        /**
+         * Hash count, then the BitSet with Java serialization: constant overhead plus the words up to the last set bit,
+         * which is practically the whole array once the filter holds anything
+         */
+        @Override
+        public long serializedBytes() {
+            return BITSET_SERIALIZATION_OVERHEAD + filter.buckets() / Byte.SIZE;
         }
     }
 
 
+    /**
+     * Algebird's filter changes representation as it is used: empty, a single item, a sparse EWAH compressed bitmap
+     * once items are added one by one, dense bits once merged with a dense filter. Footprints follow the current one.
+     */
     static class AlgebirdBloomEstimator implements MembershipEstimator {
+        // Java serialization besides the bits: class descriptors of each representation, its hashes and bit set
+        private static final int ZERO_SERIALIZED_BYTES = 1194;
+        private static final int ITEM_SERIALIZATION_OVERHEAD = 1225;
+        private static final int SPARSE_SERIALIZATION_OVERHEAD = 1314;
+        private static final int DENSE_SERIALIZATION_OVERHEAD = 1385;
+        private static final int BLOCK_BYTES = 1024;
+
         private com.twitter.algebird.BF<String> bloomFilter;
 
         AlgebirdBloomEstimator(int expectedInsertions, double fpp) {
@@ -206,15 +674,61 @@ public class BloomFilterApp {
         }
 
         @Override
-        public long size() {
-            try(ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(baos))
-            {
-                oos.writeObject(bloomFilter);
-                return baos.size();
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+        public void merge(MembershipEstimator other) {
+            Preconditions.checkArgument(other instanceof AlgebirdBloomEstimator, "can't merge %s into AlgebirdBloomEstimator", other);
+            bloomFilter = bloomFilter.$plus$plus(((AlgebirdBloomEstimator) other).bloomFilter);
+        }
+
+        /**
+         * Sparse bits are the bitmap, its buffer and running length word, the buffer counted up to its used words.
+         * Computed from fields only, without copying bits, so it is cheap enough to export as a live metric.
+         */
+        @Override
+        public long heapBytes() {
+            long filter = ObjectLayout.object(2 * ObjectLayout.REFERENCE + Integer.BYTES);
+            if (bloomFilter instanceof com.twitter.algebird.BFSparse) {
+                com.googlecode.javaewah.EWAHCompressedBitmap bits = ((com.twitter.algebird.BFSparse<String>) bloomFilter).bits();
+                return filter + ObjectLayout.object(2 * ObjectLayout.REFERENCE + Integer.BYTES)
+                        + 2 * ObjectLayout.object(ObjectLayout.REFERENCE + Integer.BYTES)
+                        + ObjectLayout.longArray(bits.sizeInBytes() / Long.BYTES);
+            }
+            if (bloomFilter instanceof com.twitter.algebird.BFInstance) {
+                return filter + ObjectLayout.object(ObjectLayout.REFERENCE) + ObjectLayout.longArray(denseWords());
+            }
+            if (bloomFilter instanceof com.twitter.algebird.BFItem) {
+                return filter + ObjectLayout.latin1Strings(1, ((com.twitter.algebird.BFItem<String>) bloomFilter).item().length());
+            }
+            return filter;
+        }
+
+        /**
+         * Java serialization, as measured for this hash: sparse bits are written in block data mode, with a header
+         * per block of at most 1 KB. Dense bits are written as words up to the last set one, counted here as all
+         * words of the width: an upper bound, exact once the last word has a bit set. An item is counted a byte
+         * per char, exact for ASCII.
+         */
+        @Override
+        public long serializedBytes() {
+            if (bloomFilter instanceof com.twitter.algebird.BFSparse) {
+                long bits = ((com.twitter.algebird.BFSparse<String>) bloomFilter).bits().serializedSizeInBytes();
+                long rest = bits % BLOCK_BYTES;
+                long headers = bits / BLOCK_BYTES * 5 + (rest == 0 ? 0 : rest <= 255 ? 2 : 5);
+                return SPARSE_SERIALIZATION_OVERHEAD + headers + bits;
             }
+            if (bloomFilter instanceof com.twitter.algebird.BFInstance) {
+                return DENSE_SERIALIZATION_OVERHEAD + (long) denseWords() * Long.BYTES;
+            }
+            if (bloomFilter instanceof com.twitter.algebird.BFItem) {
+                return ITEM_SERIALIZATION_OVERHEAD + ((com.twitter.algebird.BFItem<String>) bloomFilter).item().length();
+            }
+            return ZERO_SERIALIZED_BYTES;
+        }
+
+        /**
+         * Words of the width, an upper bound on the words of the bit set, which ends at the last set bit
+         */
+        private int denseWords() {
+            return (bloomFilter.width() + Long.SIZE - 1) / Long.SIZE;
         }
     }
 
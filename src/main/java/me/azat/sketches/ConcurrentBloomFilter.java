@@ -0,0 +1,141 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * Classic Bloom filter that any number of threads can add to and query at the same time, without locks.
+ * <p>
+ * Bits are set with an atomic getAndBitwiseOr on the backing long[], so concurrent adds never lose each other's bits,
+ * and an add is visible to contains in every thread once it returns.
+ * A bit that is already set is not written again, so hot words are not bounced between cores.
+ */
+class ConcurrentBloomFilter implements BloomFilterApp.MembershipEstimator, BloomFilterApp.LongMembershipEstimator {
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final long[] words;
+    private final long bitCount;
+    private final int hashCount;
+
+    ConcurrentBloomFilter(int expectedInsertions, double fpp) {
+        Preconditions.checkArgument(expectedInsertions >= 0, "expectedInsertions >= 0");
+        Preconditions.checkArgument(fpp > 0.0 && fpp < 1.0, "0 < fpp < 1");
+
+        long n = Math.max(expectedInsertions, 1);
+        double optimalBits = -n * Math.log(fpp) / (Math.log(2) * Math.log(2));
+        long wordCount = Math.max(1, (long) Math.ceil(optimalBits / Long.SIZE));
+        Preconditions.checkArgument(wordCount <= Integer.MAX_VALUE - 8, "filter does not fit in a long[]");
+
+        this.words = new long[(int) wordCount];
+        this.bitCount = wordCount * Long.SIZE;
+        this.hashCount = (int) Math.max(1, Math.round((double) bitCount / n * Math.log(2)));
+    }
+
+    @Override
+    public void add(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(String e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(long e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(long e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void addAll(long[] keys, int offset, int length) {
+        for (Hashes.Rounds round = Hashes.rounds(keys, offset, length); round.next(); ) {
+            for (int i = 0; i < round.size(); i++) {
+                addHash(round.hash(i));
+            }
+        }
+    }
+
+    @Override
+    public void containsAll(long[] keys, int offset, int length, boolean[] results) {
+        for (Hashes.Rounds round = Hashes.rounds(keys, offset, length); round.next(); ) {
+            for (int i = 0; i < round.size(); i++) {
+                results[round.index(i)] = containsHash(round.hash(i));
+            }
+        }
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    @Override
+    public boolean contains(ByteBuffer bytes, int offset, int length) {
+        return containsHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    /**
+     * Kirsch-Mitzenmacher: k indexes from two hashes, h1 + i * h2
+     */
+    void addHash(long hash) {
+        long h1 = hash;
+        long h2 = Hashes.rehash(hash) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if (((long) WORDS.getAcquire(words, index) & mask) == 0) {
+                WORDS.getAndBitwiseOr(words, index, mask);
+            }
+        }
+    }
+
+    boolean containsHash(long hash) {
+        long h1 = hash;
+        long h2 = Hashes.rehash(hash) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if (((long) WORDS.getAcquire(words, (int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Safe to call while other threads add to either filter, bits added concurrently may or may not be merged
+     */
+    @Override
+    public void merge(BloomFilterApp.MembershipEstimator other) {
+        Preconditions.checkArgument(other instanceof ConcurrentBloomFilter, "can't merge %s into ConcurrentBloomFilter", other);
+        ConcurrentBloomFilter that = (ConcurrentBloomFilter) other;
+        Preconditions.checkArgument(
+                bitCount == that.bitCount && hashCount == that.hashCount,
+                "can merge only filters with the same bitCount and hashCount");
+
+        for (int i = 0; i < words.length; i++) {
+            long word = (long) WORDS.getAcquire(that.words, i);
+            if (word != 0) {
+                WORDS.getAndBitwiseOr(words, i, word);
+            }
+        }
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(ObjectLayout.REFERENCE + Long.BYTES + Integer.BYTES) + ObjectLayout.longArray(words.length);
+    }
+
+    @Override
+    public long serializedBytes() {
+        return (long) words.length * Long.BYTES;
+    }
+}
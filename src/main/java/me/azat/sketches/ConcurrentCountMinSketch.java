@@ -0,0 +1,314 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Count-min sketch that many threads can update at once, split into stripes of counter tables.
+ * <p>
+ * A thread updates only the table of its stripe, so threads hammering the same hot element (the head of a zipf stream)
+ * mostly touch different cache lines. Stripes are summed lazily: count adds up the depth cells of every stripe,
+ * nothing is merged on the update path.
+ * <p>
+ * Like LongAdder, an adaptive sketch starts with one table and doubles the number of stripes whenever a thread loses
+ * a CAS, up to the number of cores; a thread that lost also moves to another stripe.
+ * A fixed number of stripes can be requested instead, e.g. one per ingestion thread.
+ */
+class ConcurrentCountMinSketch implements CountMinSketchApp.HeavyHittersEstimator, CountMinSketchApp.LongHeavyHittersEstimator {
+    private static final VarHandle COUNTERS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int MAX_STRIPES = ceilPowerOfTwo(Runtime.getRuntime().availableProcessors());
+    private static final ThreadLocal<long[][]> ROW_HASHES = ThreadLocal.withInitial(() -> new long[2][Hashes.BATCH]); // h1 and h2 of a round
+
+    private final int depth;
+    private final int width;
+    private final long seed;
+    private final int maxStripes;
+    private final ThreadLocal<int[]> probe = ThreadLocal.withInitial(() -> new int[]{ probeSeed(Thread.currentThread().getId()) });
+
+    private volatile long[][] stripes;
+
+    /**
+     * Adaptive: grows from one stripe up to the number of cores under contention
+     */
+    ConcurrentCountMinSketch(int depth, int width, long seed) {
+        this(depth, width, seed, 1, MAX_STRIPES);
+    }
+
+    /**
+     * Fixed number of stripes, rounded up to a power of two
+     */
+    ConcurrentCountMinSketch(int depth, int width, long seed, int stripes) {
+        this(depth, width, seed, ceilPowerOfTwo(stripes), ceilPowerOfTwo(stripes));
+    }
+
+    private ConcurrentCountMinSketch(int depth, int width, long seed, int initialStripes, int maxStripes) {
+        Preconditions.checkArgument(depth > 0 && width > 0, "depth > 0 && width > 0");
+        Preconditions.checkArgument((long) depth * width <= Integer.MAX_VALUE - 8, "depth * width does not fit in a long[]");
+
+        this.depth = depth;
+        this.width = width;
+        this.seed = seed;
+        this.maxStripes = maxStripes;
+        this.stripes = new long[initialStripes][];
+        for (int i = 0; i < initialStripes; i++) {
+            this.stripes[i] = new long[depth * width];
+        }
+    }
+
+    @Override
+    public void inc(String e) {
+        addHash(Hashes.hash64(e), 1);
+    }
+
+    @Override
+    public long count(String e) {
+        return countHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void inc(long e) {
+        addHash(Hashes.hash64(e), 1);
+    }
+
+    @Override
+    public long count(long e) {
+        return countHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void inc(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length), 1);
+    }
+
+    @Override
+    public long count(ByteBuffer bytes, int offset, int length) {
+        return countHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    /**
+     * Hashes a batch, then updates row by row: a row is a contiguous width of counters,
+     * so a batch touches one row's pages and cache lines at a time instead of depth of them per key.
+     * All keys of a batch go into one stripe.
+     */
+    @Override
+    public void incAll(long[] keys, int offset, int length) {
+        long[][] round = ROW_HASHES.get();
+        long[] h1 = round[0];
+        long[] h2 = round[1];
+        for (int from = offset; from < offset + length; from += Hashes.BATCH) {
+            int n = Math.min(Hashes.BATCH, offset + length - from);
+            rowHashes(keys, from, n, h1, h2);
+
+            int[] probe = this.probe.get();
+            long[][] stripes = this.stripes;
+            long[] table = stripes[probe[0] & (stripes.length - 1)];
+            boolean contended = false;
+            for (int row = 0; row < depth; row++) {
+                for (int i = 0; i < n; i++) {
+                    int index = row * width + column(h1[i] + row * h2[i], width);
+                    long value = (long) COUNTERS.getOpaque(table, index);
+                    if (!COUNTERS.compareAndSet(table, index, value, value + 1)) {
+                        contended = true;
+                        COUNTERS.getAndAdd(table, index, 1L);
+                    }
+                }
+            }
+
+            if (contended) {
+                probe[0] = xorShift(probe[0]);
+                if (stripes.length < maxStripes) {
+                    grow(stripes);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void countAll(long[] keys, int offset, int length, long[] counts) {
+        long[][] round = ROW_HASHES.get();
+        long[] h1 = round[0];
+        long[] h2 = round[1];
+        for (int from = offset; from < offset + length; from += Hashes.BATCH) {
+            int n = Math.min(Hashes.BATCH, offset + length - from);
+            rowHashes(keys, from, n, h1, h2);
+
+            long[][] stripes = this.stripes;
+            Arrays.fill(counts, from, from + n, Long.MAX_VALUE);
+            for (int row = 0; row < depth; row++) {
+                for (int i = 0; i < n; i++) {
+                    int index = row * width + column(h1[i] + row * h2[i], width);
+                    long sum = 0;
+                    for (long[] table : stripes) {
+                        sum += (long) COUNTERS.getOpaque(table, index);
+                    }
+                    counts[from + i] = Math.min(counts[from + i], sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * h1 and h2 of addHash for keys[from, from + n)
+     */
+    private void rowHashes(long[] keys, int from, int n, long[] h1, long[] h2) {
+        Hashes.hash64(keys, from, n, h1);
+        for (int i = 0; i < n; i++) {
+            h1[i] = Hashes.fmix64(h1[i] ^ seed);
+            h2[i] = Hashes.rehash(h1[i]) | 1;
+        }
+    }
+
+    void addHash(long hash, long delta) {
+        long h1 = Hashes.fmix64(hash ^ seed);
+        long h2 = Hashes.rehash(h1) | 1;
+        int[] probe = this.probe.get();
+        long[][] stripes = this.stripes;
+        long[] table = stripes[probe[0] & (stripes.length - 1)];
+
+        boolean contended = false;
+        for (int row = 0; row < depth; row++) {
+            int index = row * width + column(h1 + row * h2, width);
+            long value = (long) COUNTERS.getOpaque(table, index);
+            if (!COUNTERS.compareAndSet(table, index, value, value + delta)) {
+                contended = true;
+                COUNTERS.getAndAdd(table, index, delta);
+            }
+        }
+
+        if (contended) {
+            probe[0] = xorShift(probe[0]);
+            if (stripes.length < maxStripes) {
+                grow(stripes);
+            }
+        }
+    }
+
+    long countHash(long hash) {
+        long h1 = Hashes.fmix64(hash ^ seed);
+        long h2 = Hashes.rehash(h1) | 1;
+        long[][] stripes = this.stripes;
+
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = row * width + column(h1 + row * h2, width);
+            long sum = 0;
+            for (long[] table : stripes) {
+                sum += (long) COUNTERS.getOpaque(table, index);
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * Adds all counters of other sketch into this one. Sketches must have the same depth, width and seed.
+     * Safe to call while other threads increment either sketch.
+     */
+    @Override
+    public void merge(CountMinSketchApp.HeavyHittersEstimator estimator) {
+        Preconditions.checkArgument(
+                estimator instanceof ConcurrentCountMinSketch,
+                "can't merge %s into ConcurrentCountMinSketch", estimator);
+        ConcurrentCountMinSketch other = (ConcurrentCountMinSketch) estimator;
+        Preconditions.checkArgument(
+                depth == other.depth && width == other.width && seed == other.seed,
+                "can merge only sketches with same depth, width and seed");
+
+        long[] table = stripes[0];
+        for (long[] otherTable : other.stripes) {
+            for (int i = 0; i < otherTable.length; i++) {
+                long value = (long) COUNTERS.getOpaque(otherTable, i);
+                if (value != 0) {
+                    COUNTERS.getAndAdd(table, i, value);
+                }
+            }
+        }
+    }
+
+    int stripes() {
+        return stripes.length;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    int width() {
+        return width;
+    }
+
+    long seed() {
+        return seed;
+    }
+
+    /**
+     * Row-major depth x width counters, summed over all stripes
+     */
+    long[] table() {
+        long[] table = new long[depth * width];
+        for (long[] stripe : stripes) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] += (long) COUNTERS.getOpaque(stripe, i);
+            }
+        }
+        return table;
+    }
+
+    @Override
+    public long heapBytes() {
+        long[][] stripes = this.stripes;
+        return ObjectLayout.object(2 * Integer.BYTES + Long.BYTES + Integer.BYTES + 2 * ObjectLayout.REFERENCE)
+                + ObjectLayout.referenceArray(stripes.length)
+                + stripes.length * ObjectLayout.longArray((long) depth * width);
+    }
+
+    /**
+     * Stripes are summed into one table when persisted
+     */
+    @Override
+    public long serializedBytes() {
+        return (long) depth * width * Long.BYTES;
+    }
+
+    /**
+     * Maps the high half of a 64-bit hash to [0, width) without a modulo
+     */
+    static int column(long hash, int width) {
+        return (int) (((hash >>> 32) * width) >>> 32);
+    }
+
+    private synchronized void grow(long[][] seen) {
+        if (stripes != seen) {
+            return; // somebody has already grown it
+        }
+        long[][] grown = Arrays.copyOf(seen, seen.length * 2);
+        for (int i = seen.length; i < grown.length; i++) {
+            grown[i] = new long[depth * width];
+        }
+        stripes = grown;
+    }
+
+    private static int xorShift(int probe) {
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        return probe;
+    }
+
+    /**
+     * Initial stripe probe of a thread: all bits of the hash, so threads spread over all stripes; only 0 is remapped,
+     * as xorShift never leaves it
+     */
+    private static int probeSeed(long threadId) {
+        int h = (int) Hashes.hash64(threadId);
+        return h == 0 ? 1 : h;
+    }
+
+    private static int ceilPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+}
@@ -1,15 +1,25 @@
 package me.azat.sketches;
 
 import com.clearspring.analytics.stream.frequency.CountMinSketch;
+import com.clearspring.analytics.stream.frequency.FrequencyMergeException;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.twitter.algebird.*;
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.map.hash.TObjectLongHashMap;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Azat Abdulvaliev on 07/06/2018.
@@ -17,7 +27,15 @@ import java.util.concurrent.ThreadLocalRandom;
 public class CountMinSketchApp {
 
 
-    public static void main(String[] args) {
+    /**
+     * With a key file as argument, counts its keys instead of generated streams
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1) {
+            testFileEstimator(KeyFile.open(Paths.get(args[0])), 3, 111000,
+                    (depth, width) -> new ConcurrentCountMinSketch(depth, width, 12345), Runtime.getRuntime().availableProcessors());
+            return;
+        }
 
         testEstimator(1_000, 5, 350);
         testEstimator(1_000, 5, 350);
@@ -46,59 +64,318 @@ public class CountMinSketchApp {
         testEstimator(10_000_000, 3, 111000);
         testEstimator(10_000_000, 3, 111000);
         testEstimator(10_000_000, 3, 111000);
+
+        testEstimator(100_000, 3, 9000, (depth, width) -> new TopNCountMinSketch(depth, width, 12345, 100));
+        testEstimator(1_000_000, 3, 32000, (depth, width) -> new TopNCountMinSketch(depth, width, 12345, 100));
+        testEstimator(10_000_000, 3, 111000, (depth, width) -> new TopNCountMinSketch(depth, width, 12345, 100));
+
+        testConcurrentEstimator(1_000_000, 3, 32000, Runtime.getRuntime().availableProcessors());
+
+        testDecayedEstimator(100_000, 3, 32000, 10_000);
     }
 
     private static void testEstimator(int testCardinality, int depth, int width) {
+        testEstimator(testCardinality, depth, width,
+                (d, w) -> new StreamLibEstimator(d, w, ThreadLocalRandom.current().nextInt()));
+//        testEstimator(testCardinality, depth, width, (d, w) -> new AlgebirdEstimator());
+    }
+
+    /**
+     * top10 errors are computed over the true top10. If the estimator can list heavy hitters by itself,
+     * top10_hits is how many of its own top10 are in the true top10.
+     */
+    private static void testEstimator(int testCardinality, int depth, int width, EstimatorFactory factory) {
         System.out.printf("--- Test with depth = %d, width = %d ---\n", depth, width);
 
         StreamGenerator gen = new StreamGenerator(testCardinality, testCardinality);
 
-        HeavyHittersEstimator estimator = new StreamLibEstimator(depth, width, ThreadLocalRandom.current().nextInt());
-//                HeavyHittersEstimator estimator = new AlgebirdEstimator();
+        HeavyHittersEstimator estimator = factory.create(depth, width);
         HashMapEstimator trueEstimator = new HashMapEstimator();
 
         // store
-        gen.zipfStream(testCardinality, 0.5, testCardinality * 10)
+        gen.zipfSampler(testCardinality, 0.5, testCardinality)
+                .stream(testCardinality * 10L)
+                .mapToObj(String::valueOf)
                 .forEach(e -> {
                     estimator.inc(e);
                     trueEstimator.inc(e);
                 });
 
         // test
+        report("testCardinality: " + testCardinality, estimator, trueEstimator);
+    }
 
-        String top1e = trueEstimator.topN(1).keySet().stream().findFirst().get();
+    /**
+     * Same as {@link #testEstimator(int, int, int, EstimatorFactory)}, over a key file instead of StreamGenerator.
+     * The file is read by parallel readers, one sketch per split, merged, so the factory must create mergeable sketches,
+     * e.g. with the same seed.
+     */
+    static void testFileEstimator(KeyFile keys, int depth, int width, EstimatorFactory factory, int threads) throws IOException {
+        System.out.printf("--- Test %s with depth = %d, width = %d ---\n", keys.path().getFileName(), depth, width);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            HashMapEstimator trueEstimator = (HashMapEstimator) ParallelIngestion.ingestCounts(pool, keys, HashMapEstimator::new);
+
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            HeavyHittersEstimator estimator = ParallelIngestion.ingestCounts(pool, keys, () -> factory.create(depth, width));
+            long nanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+
+            report(String.format("threads: %d, throughput: %.1f MB/s", threads, keys.size() * 1000.0 / nanos), estimator, trueEstimator);
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-        TObjectIntHashMap<String> top10 = trueEstimator.topN(10);
-        double top10_sum_error = top10.keySet().stream()
-                .mapToDouble(e -> Math.abs(trueEstimator.count(e) - estimator.count(e)))
-                .sum()
-                / top10.keySet().stream().mapToDouble(trueEstimator::count).sum();
+    private static void report(String source, HeavyHittersEstimator estimator, HashMapEstimator trueEstimator) {
+        TObjectIntHashMap<String> trueTop10Counts = trueEstimator.parallelTopN(10);
+        Set<String> trueTop10 = trueTop10Counts.keySet();
+        String top1e = trueTop10.stream().max(Comparator.comparingInt(trueTop10Counts::get)).get();
+        double top10_sum_error = top10SumError(estimator, trueEstimator, trueTop10);
+        long top10_hits = top10Hits(estimator, trueTop10);
 
         System.out.printf(
-                "testCardinality: %d, trueCardinality: %d, top1_real: %d, top1_estimate: %d, top10_sum_error: %.2f%%, estimatorSize: %d, trueSize: %d\n",
-                testCardinality,
+                "%s, trueCardinality: %d, top1_real: %d, top1_estimate: %d, top10_sum_error: %.2f%%, top10_hits: %d, estimatorSize: %d, estimatorHeap: %d, trueSize: %d, trueHeap: %d\n",
+                source,
                 trueEstimator.map.size(),
                 trueEstimator.count(top1e),
                 estimator.count(top1e),
                 100.0 * top10_sum_error,
-                estimator.size(),
-                trueEstimator.size());
+                top10_hits,
+                estimator.serializedBytes(),
+                estimator.heapBytes(),
+                trueEstimator.serializedBytes(),
+                trueEstimator.heapBytes());
+    }
+
+    /**
+     * How many of the estimator's own top10 are in the true top10; 10 if it can't list heavy hitters,
+     * as then the true top10 is what it is asked about
+     */
+    static long top10Hits(HeavyHittersEstimator estimator, Set<String> trueTop10) {
+        return estimator instanceof TopNEstimator
+                ? ((TopNEstimator) estimator).topN(10).keySet().stream().filter(trueTop10::contains).count()
+                : trueTop10.size();
+    }
+
+    /**
+     * Sum of absolute count errors over the true top10, relative to the sum of their true counts
+     */
+    static double top10SumError(HeavyHittersEstimator estimator, HashMapEstimator trueEstimator, Set<String> trueTop10) {
+        return trueTop10.stream()
+                .mapToDouble(e -> Math.abs(trueEstimator.count(e) - estimator.count(e)))
+                .sum()
+                / trueTop10.stream().mapToDouble(trueEstimator::count).sum();
+    }
+
+
+    /**
+     * Zipf stream, materialized up front, is split between 1, 2, 4, ... maxThreads threads, all incrementing one shared
+     * sketch. Checks that the sketch never underestimates the top element.
+     */
+    static void testConcurrentEstimator(int testCardinality, int depth, int width, int maxThreads) {
+        System.out.printf("--- Test concurrent sketch with depth = %d, width = %d ---\n", depth, width);
+
+        StreamGenerator gen = new StreamGenerator(testCardinality, testCardinality);
+        long[] stream = gen.zipfSampler(testCardinality, 0.5, testCardinality)
+                .stream(testCardinality * 10L)
+                .parallel()
+                .toArray();
+
+        TLongIntHashMap trueCounts = new TLongIntHashMap();
+        for (long e : stream) {
+            trueCounts.adjustOrPutValue(e, 1, 1);
+        }
+        long top1e = 0;
+        int top1Count = 0;
+        for (TLongIntIterator it = trueCounts.iterator(); it.hasNext(); ) {
+            it.advance();
+            if (it.value() > top1Count) {
+                top1e = it.key();
+                top1Count = it.value();
+            }
+        }
+
+        for (int threads = 1; threads <= maxThreads; threads = Workers.nextThreadCount(threads, maxThreads)) {
+            ConcurrentCountMinSketch estimator = new ConcurrentCountMinSketch(depth, width, 12345);
+
+            long nanos = Workers.timeSplit(threads, stream.length, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    estimator.inc(stream[i]);
+                }
+            });
+
+            long top1Estimate = estimator.count(top1e);
+            if (top1Estimate < top1Count) {
+                throw new AssertionError();
+            }
+
+            System.out.printf(
+                    "threads: %d, incs: %d, throughput: %.1f Mops/s, top1_real: %d, top1_estimate: %d, stripes: %d, estimatorHeap: %d\n",
+                    threads,
+                    stream.length,
+                    stream.length * 1000.0 / nanos,
+                    top1Count,
+                    top1Estimate,
+                    estimator.stripes(),
+                    estimator.heapBytes());
+        }
+    }
+
+
+    /**
+     * Simulated clock: a zipf stream of eventsPerSecond, whose elements are all replaced by new ones halfway through.
+     * Every 10 seconds compares the decayed count of the heaviest element with its exact decayed count: once the old
+     * heavy hitter fades by half per half-life, a new one takes its place.
+     */
+    static void testDecayedEstimator(int eventsPerSecond, int depth, int width, long halfLifeMillis) {
+        System.out.printf("--- Test decayed sketch with depth = %d, width = %d, halfLife = %d ms ---\n", depth, width, halfLifeMillis);
+
+        long[] now = { 0 };
+        DecayedCountMinSketch estimator = new DecayedCountMinSketch(depth, width, 12345, halfLifeMillis, () -> now[0]);
+        TObjectDoubleHashMap<String> trueWeights = new TObjectDoubleHashMap<>(); // weights of occurrences, as if landmark is 0
+
+        int seconds = 60;
+        for (int phase = 0; phase < 2; phase++) {
+            StreamGenerator gen = new StreamGenerator(phase, eventsPerSecond);
+            String[] stream = gen.zipfStream(eventsPerSecond, 0.5, (long) eventsPerSecond * seconds / 2).toArray(String[]::new);
+            for (int i = 0; i < stream.length; i++) {
+                long event = (long) phase * stream.length + i;
+                now[0] = event * 1000 / eventsPerSecond;
+                double weight = Math.pow(2, now[0] / (double) halfLifeMillis);
+                estimator.inc(stream[i]);
+                trueWeights.adjustOrPutValue(stream[i], weight, weight);
+
+                if ((event + 1) % (eventsPerSecond * 10L) == 0) {
+                    double decay = Math.pow(2, now[0] / (double) halfLifeMillis);
+                    String top1e = null;
+                    double top1 = 0;
+                    for (String e : trueWeights.keySet()) {
+                        if (trueWeights.get(e) > top1) {
+                            top1e = e;
+                            top1 = trueWeights.get(e);
+                        }
+                    }
+                    System.out.printf(
+                            "second: %d, top1: %s, top1_real: %.1f, top1_estimate: %.1f, error: %.2f%%, estimatorHeap: %d\n",
+                            (event + 1) / eventsPerSecond,
+                            top1e,
+                            top1 / decay,
+                            estimator.decayedCount(top1e),
+                            100.0 * (estimator.decayedCount(top1e) - top1 / decay) / (top1 / decay),
+                            estimator.heapBytes());
+                }
+            }
+        }
     }
 
 
-    interface HeavyHittersEstimator {
+    interface HeavyHittersEstimator extends MemoryFootprint {
         void inc(String e);
         long count(String e);
-        long size();
+
+        /**
+         * Key as bytes, e.g. a slice of a {@link KeyFile}. Decoded into a String by default; hand-written sketches
+         * hash the bytes in place, exactly as they hash the String of an ASCII key.
+         */
+        default void inc(ByteBuffer bytes, int offset, int length) {
+            inc(KeyFile.decode(bytes, offset, length));
+        }
+
+        default long count(ByteBuffer bytes, int offset, int length) {
+            return count(KeyFile.decode(bytes, offset, length));
+        }
+
+        /**
+         * Adds all counts of other estimator into this one. Other must be of the same class and created with the same
+         * parameters, otherwise IllegalArgumentException is thrown.
+         */
+        void merge(HeavyHittersEstimator other);
+    }
+
+
+    /**
+     * Heavy hitters estimator that can list the heaviest elements by itself, not only count a given one
+     */
+    interface TopNEstimator extends HeavyHittersEstimator {
+        TObjectLongHashMap<String> topN(int n);
+    }
+
+
+    interface EstimatorFactory {
+        HeavyHittersEstimator create(int depth, int width);
+    }
+
+
+    /**
+     * Same as {@link HeavyHittersEstimator}, but over raw 64-bit keys, so that no String is created per element
+     */
+    interface LongHeavyHittersEstimator extends MemoryFootprint {
+        void inc(long e);
+        long count(long e);
+
+        /**
+         * Increments keys[offset, offset + length). One call per key by default; hand-written sketches hash a batch
+         * of keys first and then update one row at a time.
+         */
+        default void incAll(long[] keys, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                inc(keys[i]);
+            }
+        }
+
+        /**
+         * counts[i] = count(keys[i]) for i in [offset, offset + length)
+         */
+        default void countAll(long[] keys, int offset, int length, long[] counts) {
+            for (int i = offset; i < offset + length; i++) {
+                counts[i] = count(keys[i]);
+            }
+        }
+    }
+
+
+    /**
+     * Feeds long keys into any string-keyed estimator as their decimal representation,
+     * i.e. gives exactly the same answers as the String path. Still allocates a String per call.
+     */
+    static class LongKeysAdapter implements LongHeavyHittersEstimator {
+        private final HeavyHittersEstimator estimator;
+
+        LongKeysAdapter(HeavyHittersEstimator estimator) {
+            this.estimator = estimator;
+        }
+
+        @Override
+        public void inc(long e) {
+            estimator.inc(String.valueOf(e));
+        }
+
+        @Override
+        public long count(long e) {
+            return estimator.count(String.valueOf(e));
+        }
+
+        @Override
+        public long heapBytes() {
+            return estimator.heapBytes();
+        }
+
+        @Override
+        public long serializedBytes() {
+            return estimator.serializedBytes();
+        }
     }
 
 
     static class HashMapEstimator implements HeavyHittersEstimator {
-        private final TObjectIntHashMap<String> map = new TObjectIntHashMap<>();
+        private final CountMap map = new CountMap();
+        private long chars; // of all keys, for footprint
 
         @Override
         public void inc(String e) {
-            map.adjustOrPutValue(e, 1, 1);
+            if (map.adjustOrPutValue(e, 1, 1) == 1) {
+                chars += e.length();
+            }
         }
 
         @Override
@@ -106,24 +383,176 @@ public class CountMinSketchApp {
             return map.get(e);
         }
 
+        @Override
+        public void merge(HeavyHittersEstimator other) {
+            Preconditions.checkArgument(other instanceof HashMapEstimator, "can't merge %s into HashMapEstimator", other);
+            ((HashMapEstimator) other).map.forEachEntry((e, count) -> {
+                if (!map.containsKey(e)) {
+                    chars += e.length();
+                }
+                map.adjustOrPutValue(e, count, count);
+                return true;
+            });
+        }
+
+        /**
+         * n most frequent elements: one pass over the map's own slots with a bounded min-heap, O(size * log n), no boxing
+         */
         public TObjectIntHashMap<String> topN(int n) {
+            return map.toMap(map.topSlots(n, 0, map.slots()));
+        }
+
+        /**
+         * Same as {@link #topN(int)}, but slots are scanned by the common fork-join pool, for large maps
+         */
+        public TObjectIntHashMap<String> parallelTopN(int n) {
+            return map.toMap(ForkJoinPool.commonPool().invoke(new TopSlotsTask(map, n, 0, map.slots())));
+        }
+
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.troveObjectIntMap(map.capacity()) + ObjectLayout.latin1Strings(map.size(), chars);
+        }
+
+        /**
+         * Java serialization writes each key as a string record (tag, 2-byte length, chars)
+         * and each count as a 4-byte block data record with its 2-byte header
+         */
+        @Override
+        public long serializedBytes() {
+            return ObjectLayout.TROVE_SERIALIZATION_OVERHEAD + 9L * map.size() + chars;
+        }
+    }
+
+
+    /**
+     * Trove map that lets top-N scan its slot arrays directly
+     */
+    @SuppressWarnings("serial")
+    static class CountMap extends TObjectIntHashMap<String> {
+
+        int slots() {
+            return _set.length;
+        }
+
+        /**
+         * Slots of the n largest counts among slots [from, to)
+         */
+        TopSlots topSlots(int n, int from, int to) {
+            TopSlots top = new TopSlots(_values, n);
+            Object[] keys = _set;
+            for (int slot = from; slot < to; slot++) {
+                Object key = keys[slot];
+                if (key != FREE && key != REMOVED) {
+                    top.offer(slot);
+                }
+            }
+            return top;
+        }
+
+        TObjectIntHashMap<String> toMap(TopSlots top) {
             TObjectIntHashMap<String> result = new TObjectIntHashMap<>();
-            map.keySet().stream()
-                    .sorted(Comparator.comparing(map::get).reversed())
-                    .limit(n)
-                    .forEach(e -> result.put(e, map.get(e)));
+            for (int i = 0; i < top.size; i++) {
+                String key = (String) _set[top.slots[i]];
+                result.put(key, _values[top.slots[i]]);
+            }
             return result;
         }
+    }
+
+
+    /**
+     * Min-heap of at most n slot numbers, ordered by count in that slot
+     */
+    static class TopSlots {
+        private final int[] values;
+        private final int[] slots;
+        private int size;
+
+        TopSlots(int[] values, int n) {
+            this.values = values;
+            this.slots = new int[n];
+        }
+
+        void offer(int slot) {
+            if (size < slots.length) {
+                slots[size] = slot;
+                siftUp(size++);
+            } else if (size > 0 && values[slot] > values[slots[0]]) {
+                slots[0] = slot;
+                siftDown(0);
+            }
+        }
+
+        void offerAll(TopSlots other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.slots[i]);
+            }
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (values[slots[parent]] <= values[slots[i]]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    return;
+                }
+                if (child + 1 < size && values[slots[child + 1]] < values[slots[child]]) {
+                    child++;
+                }
+                if (values[slots[i]] <= values[slots[child]]) {
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int slot = slots[i];
+            slots[i] = slots[j];
+            slots[j] = slot;
+        }
+    }
+
+
+    @SuppressWarnings("serial")
+    static class TopSlotsTask extends RecursiveTask<TopSlots> {
+        private static final int SEQUENTIAL_SLOTS = 1 << 16;
+
+        private final CountMap map;
+        private final int n;
+        private final int from;
+        private final int to;
+
+        TopSlotsTask(CountMap map, int n, int from, int to) {
+            this.map = map;
+            this.n = n;
+            this.from = from;
+            this.to = to;
+        }
 
         @Override
-        public long size() {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                map.writeExternal(new ObjectOutputStream(baos));
-                return baos.size();
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+        protected TopSlots compute() {
+            if (to - from <= SEQUENTIAL_SLOTS) {
+                return map.topSlots(n, from, to);
             }
+            int middle = (from + to) >>> 1;
+            TopSlotsTask right = new TopSlotsTask(map, n, middle, to);
+            right.fork();
+            TopSlots top = new TopSlotsTask(map, n, from, middle).compute();
+            top.offerAll(right.join());
+            return top;
         }
     }
 
@@ -148,28 +577,47 @@ public class CountMinSketchApp {
         }
 
         @Override
-        public long size() {
-            try(ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(baos))
-            {
-                oos.writeObject(cms);
-                return baos.size();
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
+        public void merge(HeavyHittersEstimator other) {
+            Preconditions.checkArgument(other instanceof AlgebirdEstimator, "can't merge %s into AlgebirdEstimator", other);
+            cms = monoid.plus(cms, ((AlgebirdEstimator) other).cms);
+        }
+
+        /**
+         * As if the table were dense, with boxed counters. Algebird keeps small sketches as sparse maps,
+         * so the real size is smaller until the sketch fills up.
+         */
+        @Override
+        public long heapBytes() {
+            return (long) cms.depth() * (ObjectLayout.referenceArray(cms.width()) + (long) cms.width() * ObjectLayout.object(Long.BYTES));
+        }
+
+        @Override
+        public long serializedBytes() {
+            return (long) cms.depth() * cms.width() * Long.BYTES;
         }
     }
 
 
-    static class StreamLibEstimator implements HeavyHittersEstimator {
-        private final CountMinSketch sketch;
+    /**
+     * Long keys go through CountMinSketch.add(long, long) and are hashed without any allocation.
+     * String and long keys are hashed differently, so don't mix them in one instance.
+     */
+    static class StreamLibEstimator implements HeavyHittersEstimator, LongHeavyHittersEstimator {
+        private CountMinSketch sketch;
+        private final int depth;
+        private final int width;
 
         public StreamLibEstimator(double error, double confidence) {
             this.sketch = new CountMinSketch(error, confidence, 1);
+            // same formulas as the CountMinSketch constructor
+            this.depth = (int) Math.ceil(-Math.log(1 - confidence) / Math.log(2));
+            this.width = (int) Math.ceil(2 / error);
         }
 
         public StreamLibEstimator(int depth, int width, int seed) {
             this.sketch = new CountMinSketch(depth, width, seed);
+            this.depth = depth;
+            this.width = width;
         }
 
         @Override
@@ -183,8 +631,42 @@ public class CountMinSketchApp {
         }
 
         @Override
-        public long size() {
-            return CountMinSketch.serialize(sketch).length;
+        public void inc(long e) {
+            sketch.add(e, 1);
+        }
+
+        @Override
+        public long count(long e) {
+            return sketch.estimateCount(e);
+        }
+
+        @Override
+        public void merge(HeavyHittersEstimator other) {
+            Preconditions.checkArgument(other instanceof StreamLibEstimator, "can't merge %s into StreamLibEstimator", other);
+            try {
+                sketch = CountMinSketch.merge(sketch, ((StreamLibEstimator) other).sketch);
+            } catch (FrequencyMergeException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        /**
+         * Sketch with its eps and confidence, row hashes, and rows of the table
+         */
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.object(2 * Integer.BYTES + 3 * Long.BYTES + 2 * ObjectLayout.REFERENCE)
+                    + ObjectLayout.longArray(depth)
+                    + ObjectLayout.referenceArray(depth)
+                    + depth * ObjectLayout.longArray(width);
+        }
+
+        /**
+         * CountMinSketch.serialize: total count, depth, width, then a hash and a row of counters per row
+         */
+        @Override
+        public long serializedBytes() {
+            return Long.BYTES + 2 * Integer.BYTES + (long) depth * (1 + width) * Long.BYTES;
         }
     }
 }
@@ -0,0 +1,299 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cuckoo filter: a short fingerprint of each key lives in one of two buckets of 4 slots, the second bucket is derived
+ * from the first one and the fingerprint alone, so fingerprints can be moved between their buckets without the keys.
+ * Contains reads two buckets, i.e. at most two cache lines, and unlike a Bloom filter keys can be removed.
+ * <p>
+ * With f-bit fingerprints fpp is about 8 / 2^f, at 95% load that is (log2(1/fpp) + 3) / 0.95 bits per key,
+ * less than a Bloom filter's 1.44 * log2(1/fpp) once fpp is below about 0.3%.
+ * Fingerprints are bit-packed into a long[], 4 * f bits per bucket.
+ * <p>
+ * Adds are idempotent: a key that is already found is not stored again, so repeated keys do not fill buckets, but
+ * two keys with the same fingerprint and buckets share one slot, and removing one of them removes the other as well:
+ * after removals about fpp of the remaining keys are lost. Remove only keys that were added.
+ * Once a key can't be placed the filter is full and further adds throw.
+ * Not thread-safe.
+ */
+class CuckooFilter implements BloomFilterApp.MembershipEstimator, BloomFilterApp.LongMembershipEstimator {
+    private static final int BUCKET_SLOTS = 4;
+    private static final double LOAD_FACTOR = 0.95;
+    private static final int MAX_KICKS = 500;
+    private static final int MAX_FINGERPRINT_BITS = Long.SIZE / BUCKET_SLOTS;
+
+    private final long[] words;
+    private final int buckets;
+    private final int fingerprintBits;
+    private final int fingerprintMask;
+
+    private int victimBucket;
+    private int victimFingerprint; // 0 if none: a key that was kicked out and could not be placed
+    private long count;
+    private long random = 12345;
+
+    CuckooFilter(int expectedInsertions, double fpp) {
+        Preconditions.checkArgument(expectedInsertions >= 0, "expectedInsertions >= 0");
+        Preconditions.checkArgument(fpp > 0.0 && fpp < 1.0, "0 < fpp < 1");
+
+        this.fingerprintBits = (int) Math.max(2, Math.ceil(Math.log(2.0 * BUCKET_SLOTS / fpp) / Math.log(2)));
+        Preconditions.checkArgument(fingerprintBits <= MAX_FINGERPRINT_BITS, "fpp %s needs more than 16-bit fingerprints", fpp);
+        this.fingerprintMask = (1 << fingerprintBits) - 1;
+
+        long buckets = Math.max(1, (long) Math.ceil(expectedInsertions / (BUCKET_SLOTS * LOAD_FACTOR)));
+        long wordCount = (buckets * BUCKET_SLOTS * fingerprintBits + Long.SIZE - 1) / Long.SIZE + 1; // +1 for the last bucket's spill
+        Preconditions.checkArgument(wordCount <= Integer.MAX_VALUE - 8, "filter does not fit in a long[]");
+        this.buckets = (int) buckets;
+        this.words = new long[(int) wordCount];
+    }
+
+    @Override
+    public void add(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(String e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(long e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(long e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    @Override
+    public boolean contains(ByteBuffer bytes, int offset, int length) {
+        return containsHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    /**
+     * @return false if the key was not found
+     */
+    boolean remove(String e) {
+        return removeHash(Hashes.hash64(e));
+    }
+
+    boolean remove(long e) {
+        return removeHash(Hashes.hash64(e));
+    }
+
+    private void addHash(long hash) {
+        if (containsHash(hash)) {
+            return;
+        }
+        insert(bucketOf(hash), fingerprintOf(hash));
+    }
+
+    private boolean containsHash(long hash) {
+        int fingerprint = fingerprintOf(hash);
+        int first = bucketOf(hash);
+        int second = alternate(first, fingerprint);
+        return slotOf(first, fingerprint) >= 0
+                || slotOf(second, fingerprint) >= 0
+                || (victimFingerprint == fingerprint && (victimBucket == first || victimBucket == second));
+    }
+
+    private boolean removeHash(long hash) {
+        int fingerprint = fingerprintOf(hash);
+        int first = bucketOf(hash);
+        int second = alternate(first, fingerprint);
+        if (victimFingerprint == fingerprint && (victimBucket == first || victimBucket == second)) {
+            victimFingerprint = 0;
+            count--;
+            return true;
+        }
+        int bucket = first;
+        int slot = slotOf(first, fingerprint);
+        if (slot < 0) {
+            bucket = second;
+            slot = slotOf(second, fingerprint);
+        }
+        if (slot < 0) {
+            return false;
+        }
+        setSlot(bucket, slot, 0);
+        count--;
+        if (victimFingerprint != 0) {
+            // there is room now
+            int fingerprintToPlace = victimFingerprint;
+            victimFingerprint = 0;
+            count--;
+            insert(victimBucket, fingerprintToPlace);
+        }
+        return true;
+    }
+
+    /**
+     * Puts the fingerprint into one of its buckets, kicking fingerprints to their other buckets if both are full
+     */
+    private void insert(int bucket, int fingerprint) {
+        Preconditions.checkState(victimFingerprint == 0, "cuckoo filter is full");
+        count++;
+        if (tryInsert(bucket, fingerprint) || tryInsert(alternate(bucket, fingerprint), fingerprint)) {
+            return;
+        }
+        if ((nextRandom() & 1) == 0) {
+            bucket = alternate(bucket, fingerprint);
+        }
+        for (int kick = 0; kick < MAX_KICKS; kick++) {
+            int slot = (int) (nextRandom() >>> 62);
+            int kicked = slot(bucket, slot);
+            setSlot(bucket, slot, fingerprint);
+            fingerprint = kicked;
+            bucket = alternate(bucket, fingerprint);
+            if (tryInsert(bucket, fingerprint)) {
+                return;
+            }
+        }
+        // keep the last kicked one aside, so that no key is lost
+        victimBucket = bucket;
+        victimFingerprint = fingerprint;
+    }
+
+    private boolean tryInsert(int bucket, int fingerprint) {
+        int slot = slotOf(bucket, 0);
+        if (slot < 0) {
+            return false;
+        }
+        setSlot(bucket, slot, fingerprint);
+        return true;
+    }
+
+    /**
+     * Slot of the bucket holding the fingerprint, or -1
+     */
+    private int slotOf(int bucket, int fingerprint) {
+        long bits = bucketBits(bucket);
+        for (int slot = 0; slot < BUCKET_SLOTS; slot++) {
+            if (((int) (bits >>> (slot * fingerprintBits)) & fingerprintMask) == fingerprint) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int slot(int bucket, int slot) {
+        return (int) (bucketBits(bucket) >>> (slot * fingerprintBits)) & fingerprintMask;
+    }
+
+    /**
+     * All slots of a bucket, in the low 4 * f bits: one or two words
+     */
+    private long bucketBits(int bucket) {
+        long bit = (long) bucket * BUCKET_SLOTS * fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int shift = (int) bit & 63;
+        long bits = words[word] >>> shift;
+        if (shift != 0) {
+            bits |= words[word + 1] << (Long.SIZE - shift);
+        }
+        return bits;
+    }
+
+    private void setSlot(int bucket, int slot, int fingerprint) {
+        long bit = (long) bucket * BUCKET_SLOTS * fingerprintBits + slot * fingerprintBits;
+        int word = (int) (bit >>> 6);
+        int shift = (int) bit & 63;
+        long mask = fingerprintMask;
+        words[word] = (words[word] & ~(mask << shift)) | ((long) fingerprint << shift);
+        if (shift + fingerprintBits > Long.SIZE) {
+            words[word + 1] = (words[word + 1] & ~(mask >>> (Long.SIZE - shift))) | ((long) fingerprint >>> (Long.SIZE - shift));
+        }
+    }
+
+    /**
+     * Multiply-shift of the high half of the hash, same as the block of {@link BlockedBloomFilter}
+     */
+    private int bucketOf(long hash) {
+        return (int) (((hash >>> 32) * buckets) >>> 32);
+    }
+
+    /**
+     * Low bits of the hash, 0 is reserved for empty slots
+     */
+    private int fingerprintOf(long hash) {
+        int fingerprint = (int) hash & fingerprintMask;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    /**
+     * h(fingerprint) - bucket mod buckets: its own inverse, so it maps either bucket of a key to the other one,
+     * for any number of buckets, not only powers of two
+     */
+    private int alternate(int bucket, int fingerprint) {
+        int h = (int) (((Hashes.hash64(fingerprint) >>> 32) * buckets) >>> 32);
+        int alternate = h - bucket;
+        return alternate < 0 ? alternate + buckets : alternate;
+    }
+
+    private long nextRandom() {
+        random = Hashes.hash64(random);
+        return random;
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * Inserts every fingerprint of other that is not here yet. Filters must have the same buckets and fingerprint bits.
+     * Throws IllegalStateException if the union does not fit.
+     */
+    @Override
+    public void merge(BloomFilterApp.MembershipEstimator estimator) {
+        Preconditions.checkArgument(estimator instanceof CuckooFilter, "can't merge %s into CuckooFilter", estimator);
+        CuckooFilter other = (CuckooFilter) estimator;
+        Preconditions.checkArgument(
+                buckets == other.buckets && fingerprintBits == other.fingerprintBits,
+                "can merge only filters with the same buckets and fingerprintBits");
+
+        for (int bucket = 0; bucket < other.buckets; bucket++) {
+            for (int slot = 0; slot < BUCKET_SLOTS; slot++) {
+                int fingerprint = other.slot(bucket, slot);
+                if (fingerprint != 0) {
+                    mergeFingerprint(bucket, fingerprint);
+                }
+            }
+        }
+        if (other.victimFingerprint != 0) {
+            mergeFingerprint(other.victimBucket, other.victimFingerprint);
+        }
+    }
+
+    private void mergeFingerprint(int bucket, int fingerprint) {
+        int second = alternate(bucket, fingerprint);
+        boolean found = slotOf(bucket, fingerprint) >= 0
+                || slotOf(second, fingerprint) >= 0
+                || (victimFingerprint == fingerprint && (victimBucket == bucket || victimBucket == second));
+        if (!found) {
+            insert(bucket, fingerprint);
+        }
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(ObjectLayout.REFERENCE + 5 * Integer.BYTES + 2 * Long.BYTES) + ObjectLayout.longArray(words.length);
+    }
+
+    /**
+     * Packed buckets, the count and the victim
+     */
+    @Override
+    public long serializedBytes() {
+        return (long) words.length * Long.BYTES + Long.BYTES + 2 * Integer.BYTES;
+    }
+}
@@ -0,0 +1,149 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongSupplier;
+
+/**
+ * Count-min sketch of exponentially decayed counts: an occurrence t ms ago weighs 2^(-t / halfLifeMillis).
+ * <p>
+ * Forward decay: rather than scaling every counter down as time goes, an occurrence at time t adds
+ * 2^((t - landmark) / halfLife) and a count is divided by the weight of now when read. Both cost O(1), and since
+ * all counters age at the same rate, the min over rows is still the min. Weights grow with time, so once the weight of
+ * now passes 2^64 all counters are scaled down and the landmark moves forward, O(depth * width) per 64 half-lives.
+ * Not thread-safe.
+ */
+class DecayedCountMinSketch implements CountMinSketchApp.HeavyHittersEstimator {
+    private static final int RENORMALIZE_EXPONENT = 64;
+
+    private final int depth;
+    private final int width;
+    private final long seed;
+    private final double halfLifeMillis;
+    private final LongSupplier clock;
+    private final double[] table;
+
+    private long landmark;
+
+    /**
+     * @param clock milliseconds, e.g. System::currentTimeMillis
+     */
+    DecayedCountMinSketch(int depth, int width, long seed, long halfLifeMillis, LongSupplier clock) {
+        Preconditions.checkArgument(depth > 0 && width > 0, "depth > 0 && width > 0");
+        Preconditions.checkArgument((long) depth * width <= Integer.MAX_VALUE - 8, "depth * width does not fit in a double[]");
+        Preconditions.checkArgument(halfLifeMillis > 0, "halfLifeMillis > 0");
+
+        this.depth = depth;
+        this.width = width;
+        this.seed = seed;
+        this.halfLifeMillis = halfLifeMillis;
+        this.clock = clock;
+        this.table = new double[depth * width];
+        this.landmark = clock.getAsLong();
+    }
+
+    @Override
+    public void inc(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public long count(String e) {
+        return Math.round(decayedCount(Hashes.hash64(e)));
+    }
+
+    @Override
+    public void inc(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    @Override
+    public long count(ByteBuffer bytes, int offset, int length) {
+        return Math.round(decayedCount(Hashes.hash64(bytes, offset, length)));
+    }
+
+    /**
+     * Decayed count as is, without rounding
+     */
+    double decayedCount(String e) {
+        return decayedCount(Hashes.hash64(e));
+    }
+
+    private void addHash(long hash) {
+        double weight = weight();
+        long h1 = Hashes.fmix64(hash ^ seed);
+        long h2 = Hashes.rehash(h1) | 1;
+        for (int row = 0; row < depth; row++) {
+            table[row * width + ConcurrentCountMinSketch.column(h1 + row * h2, width)] += weight;
+        }
+    }
+
+    private double decayedCount(long hash) {
+        double weight = weight();
+        long h1 = Hashes.fmix64(hash ^ seed);
+        long h2 = Hashes.rehash(h1) | 1;
+        double min = Double.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, table[row * width + ConcurrentCountMinSketch.column(h1 + row * h2, width)]);
+        }
+        return min / weight;
+    }
+
+    /**
+     * Weight of an occurrence now, relative to the landmark
+     */
+    private double weight() {
+        double exponent = (clock.getAsLong() - landmark) / halfLifeMillis;
+        if (exponent >= RENORMALIZE_EXPONENT) {
+            long shift = (long) (Math.floor(exponent) * halfLifeMillis);
+            rescale(Math.pow(2, -(double) shift / halfLifeMillis));
+            landmark += shift;
+            exponent = (clock.getAsLong() - landmark) / halfLifeMillis;
+        }
+        return Math.pow(2, exponent);
+    }
+
+    private void rescale(double factor) {
+        for (int i = 0; i < table.length; i++) {
+            table[i] *= factor;
+        }
+    }
+
+    /**
+     * Adds other's decayed counts, brought to the later of both landmarks. Sketches must have the same depth, width, seed and half-life.
+     */
+    @Override
+    public void merge(CountMinSketchApp.HeavyHittersEstimator estimator) {
+        Preconditions.checkArgument(
+                estimator instanceof DecayedCountMinSketch,
+                "can't merge %s into DecayedCountMinSketch", estimator);
+        DecayedCountMinSketch other = (DecayedCountMinSketch) estimator;
+        Preconditions.checkArgument(
+                depth == other.depth && width == other.width && seed == other.seed && halfLifeMillis == other.halfLifeMillis,
+                "can merge only sketches with same depth, width, seed and halfLifeMillis");
+
+        if (other.landmark > landmark) {
+            rescale(Math.pow(2, (landmark - other.landmark) / halfLifeMillis));
+            landmark = other.landmark;
+        }
+        double factor = Math.pow(2, (other.landmark - landmark) / halfLifeMillis);
+        for (int i = 0; i < table.length; i++) {
+            table[i] += other.table[i] * factor;
+        }
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(2 * Integer.BYTES + 3 * Long.BYTES + 2 * ObjectLayout.REFERENCE)
+                + ObjectLayout.doubleArray(table.length);
+    }
+
+    /**
+     * Counters and the landmark
+     */
+    @Override
+    public long serializedBytes() {
+        return (long) table.length * Double.BYTES + Long.BYTES;
+    }
+}
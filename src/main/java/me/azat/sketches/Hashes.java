@@ -0,0 +1,165 @@
+package me.azat.sketches;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocation-free 64-bit hashes for the hand-written sketches.
+ * Library wrappers keep using their own hashing.
+ */
+final class Hashes {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+
+    /**
+     * Keys per round of the bulk methods: a round of hashes stays in L1 while the sketch is updated
+     */
+    static final int BATCH = 256;
+
+    private static final ThreadLocal<long[]> ROUND = ThreadLocal.withInitial(() -> new long[BATCH]);
+
+    private Hashes() {
+    }
+
+    /**
+     * Hash of a 64-bit key: murmur3 finalizer, which is a bijection, so distinct keys never collide
+     */
+    static long hash64(long key) {
+        return fmix64(key + GOLDEN);
+    }
+
+    /**
+     * hash64 of keys[offset, offset + length) into hashes[0, length): a loop without calls or branches,
+     * which the JIT unrolls and, where the CPU has 64-bit vector multiplies, vectorizes
+     */
+    static void hash64(long[] keys, int offset, int length, long[] hashes) {
+        for (int i = 0; i < length; i++) {
+            hashes[i] = fmix64(keys[offset + i] + GOLDEN);
+        }
+    }
+
+    /**
+     * Rounds of hash64 of keys[offset, offset + length), BATCH keys each, hashed into a per-thread buffer: the bulk path
+     * of the sketches, without an allocation per call. The caller applies each round itself, in key order, so that
+     * the sketch update is a direct call the JIT inlines rather than a callback shared by all sketches.
+     * A round is overwritten by the next rounds of the same thread, of this or any other call.
+     */
+    static Rounds rounds(long[] keys, int offset, int length) {
+        return new Rounds(keys, offset, offset + length, ROUND.get());
+    }
+
+    /**
+     * Hash of chars of a string, 4 chars per round, murmur3-style. No allocation, no charset encoding.
+     */
+    static long hash64(CharSequence s) {
+        int n = s.length();
+        long h = GOLDEN ^ n;
+        int i = 0;
+        for (; i + 4 <= n; i += 4) {
+            long k = s.charAt(i)
+                    | (long) s.charAt(i + 1) << 16
+                    | (long) s.charAt(i + 2) << 32
+                    | (long) s.charAt(i + 3) << 48;
+            h ^= mixK(k);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        long k = 0;
+        for (int shift = 0; i < n; i++, shift += 16) {
+            k |= (long) s.charAt(i) << shift;
+        }
+        h ^= mixK(k);
+        return fmix64(h);
+    }
+
+    /**
+     * Hash of bytes of a key, e.g. a slice of a mapped file: each byte is taken as a Latin-1 char, so an ASCII key
+     * hashes exactly as its String does with {@link #hash64(CharSequence)}
+     */
+    static long hash64(ByteBuffer bytes, int offset, int length) {
+        long h = GOLDEN ^ length;
+        int i = offset;
+        int end = offset + length;
+        for (; i + 4 <= end; i += 4) {
+            long k = (bytes.get(i) & 0xFF)
+                    | (long) (bytes.get(i + 1) & 0xFF) << 16
+                    | (long) (bytes.get(i + 2) & 0xFF) << 32
+                    | (long) (bytes.get(i + 3) & 0xFF) << 48;
+            h ^= mixK(k);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        long k = 0;
+        for (int shift = 0; i < end; i++, shift += 16) {
+            k |= (long) (bytes.get(i) & 0xFF) << shift;
+        }
+        h ^= mixK(k);
+        return fmix64(h);
+    }
+
+    /**
+     * Second, independent hash derived from the first one, for double hashing
+     */
+    static long rehash(long hash) {
+        return fmix64(hash ^ C2);
+    }
+
+    private static long mixK(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        k *= C2;
+        return k;
+    }
+
+    static long fmix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+
+
+    static final class Rounds {
+        private final long[] keys;
+        private final int end;
+        private final long[] hashes;
+        private int from;
+        private int to;
+
+        private Rounds(long[] keys, int from, int end, long[] hashes) {
+            this.keys = keys;
+            this.end = end;
+            this.hashes = hashes;
+            this.to = from;
+        }
+
+        /**
+         * Hashes the next round, false if there is none
+         */
+        boolean next() {
+            from = to;
+            if (from >= end) {
+                return false;
+            }
+            to = Math.min(from + BATCH, end);
+            hash64(keys, from, to - from, hashes);
+            return true;
+        }
+
+        int size() {
+            return to - from;
+        }
+
+        /**
+         * Index in keys of the i-th key of the round
+         */
+        int index(int i) {
+            return from + i;
+        }
+
+        long hash(int i) {
+            return hashes[i];
+        }
+    }
+}
@@ -1,42 +1,71 @@
 package me.azat.sketches;
 
+import com.clearspring.analytics.hash.MurmurHash;
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
 import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.twitter.algebird.HLL;
 import com.twitter.algebird.Hash128$;
 import com.twitter.algebird.HyperLogLogMonoid;
+import gnu.trove.map.hash.TLongObjectHashMap;
 import gnu.trove.set.hash.THashSet;
+import gnu.trove.set.hash.TLongHashSet;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Azat Abdulvaliev on 07/06/2018.
  */
 public class HyperLogLogApp {
 
-    public static void main(String[] args) {
-        System.out.printf("--- Test with error = %.2f ---\n", 0.1);
-        testEstimator(1_000_000, 0.1);
+    /**
+     * With a key file as argument, counts its distinct keys instead of generated streams
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 1) {
+            testFileEstimator(KeyFile.open(Paths.get(args[0])), 0.01, HyperLogLogPlusPlus::new, Runtime.getRuntime().availableProcessors());
+            return;
+        }
+
+        for (double error : new double[]{ 0.1, 0.05, 0.01 }) {
+            System.out.printf("--- Test with error = %.2f ---\n", error);
+            testEstimator(1_000_000, error, StreamLibEstimator::new);
+//            testEstimator(1_000_000, error, AlgebirdEstimator::new);
 
-        System.out.printf("--- Test with error = %.2f ---\n", 0.05);
-        testEstimator(1_000_000, 0.05);
+            System.out.printf("--- Test HLL++ with error = %.2f ---\n", error);
+            testEstimator(1_000_000, error, HyperLogLogPlusPlus::new);
+
+            System.out.printf("--- Test incremental HLL with error = %.2f ---\n", error);
+            testEstimator(1_000_000, error, IncrementalHyperLogLog::new);
+        }
 
-        System.out.printf("--- Test with error = %.2f ---\n", 0.01);
-        testEstimator(1_000_000, 0.01);
+        System.out.printf("--- Test windowed incremental HLL with error = %.2f ---\n", 0.01);
+        testWindowedEstimator(100_000, 5, 0.01, IncrementalHyperLogLog::new);
+
+        System.out.printf("--- Test keyed HLL store with error = %.3f ---\n", 0.0325);
+        testKeyedEstimator(100_000, 1_000_000, 5_000_000, 0.0325);
+
+        System.out.printf("--- Test union of hourly HLL++ sketches with error = %.2f ---\n", 0.01);
+        testUnionEstimator(4 * 7 * 24, 10_000, 0.01, false);
+        testUnionEstimator(4 * 7 * 24, 10_000, 0.01, true);
     }
 
-    private static void testEstimator(int maxCardinality, double error) {
+    private static void testEstimator(int maxCardinality, double error, EstimatorFactory factory) {
         Stopwatch stopwatch = Stopwatch.createStarted();
 
         for (int testCardinality = 1000; testCardinality <= maxCardinality; testCardinality *= 10) {
             for (int i = 0; i < 5; i++) {
                 StreamGenerator gen = new StreamGenerator(i, testCardinality);
 
-                CardinalityEstimator estimator = new StreamLibEstimator(error);
-//                CardinalityEstimator estimator = new AlgebirdEstimator(error);
+                CardinalityEstimator estimator = factory.create(error);
                 CardinalityEstimator trueEstimator = new HashSetEstimator();
 
                 // store
@@ -52,32 +81,303 @@ public class HyperLogLogApp {
                 double statError = Math.abs(estimatedCardinality - trueCardinality) / trueCardinality;
 
                 System.out.printf(
-                        "streamCardinality: %d, trueCardinality: %.1f, estimatedCardinality: %.1f, error: %.2f%%, estimatorSize: %d, trueSize: %d\n",
+                        "streamCardinality: %d, trueCardinality: %.1f, estimatedCardinality: %.1f, error: %.2f%%, estimatorSize: %d, estimatorHeap: %d, trueSize: %d, trueHeap: %d\n",
                         testCardinality,
                         trueCardinality,
                         estimatedCardinality,
                         100 * statError,
-                        estimator.size(),
-                        trueEstimator.size());
+                        estimator.serializedBytes(),
+                        estimator.heapBytes(),
+                        trueEstimator.serializedBytes(),
+                        trueEstimator.heapBytes());
             }
         }
         System.out.printf("Finished in %s\n", stopwatch);
     }
 
 
-    interface CardinalityEstimator {
+    /**
+     * Same as {@link #testEstimator}, over a key file instead of StreamGenerator. The file is read by parallel readers,
+     * one sketch per split, merged.
+     */
+    static void testFileEstimator(KeyFile keys, double error, EstimatorFactory factory, int threads) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            CardinalityEstimator trueEstimator = ParallelIngestion.ingestCardinality(pool, keys, HashSetEstimator::new);
+
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            CardinalityEstimator estimator = ParallelIngestion.ingestCardinality(pool, keys, () -> factory.create(error));
+            long nanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+
+            double trueCardinality = trueEstimator.cardinality();
+            double estimatedCardinality = estimator.cardinality();
+            System.out.printf(
+                    "file: %s, threads: %d, throughput: %.1f MB/s, trueCardinality: %.1f, estimatedCardinality: %.1f, error: %.2f%%, estimatorSize: %d, estimatorHeap: %d, trueSize: %d, trueHeap: %d\n",
+                    keys.path().getFileName(),
+                    threads,
+                    keys.size() * 1000.0 / nanos,
+                    trueCardinality,
+                    estimatedCardinality,
+                    100 * Math.abs(estimatedCardinality - trueCardinality) / trueCardinality,
+                    estimator.serializedBytes(),
+                    estimator.heapBytes(),
+                    trueEstimator.serializedBytes(),
+                    trueEstimator.heapBytes());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+
+    /**
+     * Simulated clock: every second keysPerSecond keys are added, half of them seen the second before, into a window of
+     * the last windowSeconds seconds. The true distinct count of the window comes from a window of hash sets.
+     */
+    static void testWindowedEstimator(int keysPerSecond, int windowSeconds, double error, EstimatorFactory factory) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long[] now = { 0 };
+        CardinalityEstimator estimator = new WindowedCardinalityEstimator(windowSeconds, 1000, () -> now[0], () -> factory.create(error));
+        CardinalityEstimator trueEstimator = new WindowedCardinalityEstimator(windowSeconds, 1000, () -> now[0], HashSetEstimator::new);
+
+        for (int second = 0; second < 4 * windowSeconds; second++) {
+            for (int i = 0; i < keysPerSecond; i++) {
+                now[0] = second * 1000L + i * 1000L / keysPerSecond;
+                String e = String.valueOf(second * (keysPerSecond / 2) + i);
+                estimator.add(e);
+                trueEstimator.add(e);
+            }
+
+            double trueCardinality = trueEstimator.cardinality();
+            double estimatedCardinality = estimator.cardinality();
+            System.out.printf(
+                    "second: %d, trueCardinality: %.1f, estimatedCardinality: %.1f, error: %.2f%%, estimatorSize: %d, estimatorHeap: %d\n",
+                    second,
+                    trueCardinality,
+                    estimatedCardinality,
+                    100 * Math.abs(estimatedCardinality - trueCardinality) / trueCardinality,
+                    estimator.serializedBytes(),
+                    estimator.heapBytes());
+        }
+        System.out.printf("Finished in %s\n", stopwatch);
+    }
+
+
+    /**
+     * Distinct users per page: events of zipf-distributed pages and uniform users go into a {@link KeyedHyperLogLogStore}
+     * and into a HashMap of stream-lib sketches of the same error. Reports the mean error over pages with at least 100
+     * users, the error of the union of 100 pages, and the footprint of both.
+     */
+    static void testKeyedEstimator(int pages, int users, int events, double error) {
+        StreamGenerator pageGen = new StreamGenerator(1, pages);
+        StreamGenerator userGen = new StreamGenerator(2, users);
+        long[] pageStream = pageGen.zipfSampler(pages, 0.8, 1).stream(events).toArray();
+        long[] userStream = userGen.uniformSampler(users, 2).stream(events).toArray();
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        KeyedHyperLogLogStore store = new KeyedHyperLogLogStore(error);
+        for (int i = 0; i < events; i++) {
+            store.add(pageStream[i], userStream[i]);
+        }
+        long storeNanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+
+        stopwatch.reset().start();
+        Map<Long, StreamLibEstimator> map = new HashMap<>();
+        for (int i = 0; i < events; i++) {
+            map.computeIfAbsent(pageStream[i], page -> new StreamLibEstimator(error)).add(userStream[i]);
+        }
+        long mapNanos = stopwatch.elapsed(TimeUnit.NANOSECONDS);
+
+        TLongObjectHashMap<TLongHashSet> truth = new TLongObjectHashMap<>();
+        for (int i = 0; i < events; i++) {
+            TLongHashSet pageUsers = truth.get(pageStream[i]);
+            if (pageUsers == null) {
+                pageUsers = new TLongHashSet();
+                truth.put(pageStream[i], pageUsers);
+            }
+            pageUsers.add(userStream[i]);
+        }
+
+        double errorSum = 0;
+        int tested = 0;
+        TLongHashSet unionUsers = new TLongHashSet();
+        long[] unionPages = Arrays.copyOf(truth.keys(), Math.min(100, truth.size()));
+        for (long page : truth.keys()) {
+            double trueCardinality = truth.get(page).size();
+            if (trueCardinality >= 100) {
+                errorSum += Math.abs(store.cardinality(page) - trueCardinality) / trueCardinality;
+                tested++;
+            }
+        }
+        for (long page : unionPages) {
+            unionUsers.addAll(truth.get(page));
+        }
+        double unionError = Math.abs(store.unionCardinality(unionPages) - unionUsers.size()) / unionUsers.size();
+
+        // HashMap: table, and per entry a node, a boxed key, the estimator
+        long mapHeap = ObjectLayout.object(4 * Integer.BYTES + Float.BYTES + 4 * ObjectLayout.REFERENCE)
+                + ObjectLayout.referenceArray(Integer.highestOneBit(Math.max(1, (int) (map.size() / 0.75))) << 1);
+        for (StreamLibEstimator estimator : map.values()) {
+            mapHeap += ObjectLayout.object(Integer.BYTES + 3 * ObjectLayout.REFERENCE) + ObjectLayout.object(Long.BYTES) + estimator.heapBytes();
+        }
+        System.out.printf(
+                "pages: %d, events: %d, meanError: %.2f%%, unionError: %.2f%%, storeNsPerAdd: %.1f, mapNsPerAdd: %.1f, storeHeap: %d, mapHeap: %d\n",
+                store.size(),
+                events,
+                100 * errorSum / tested,
+                100 * unionError,
+                (double) storeNanos / events,
+                (double) mapNanos / events,
+                store.heapBytes(),
+                mapHeap);
+    }
+
+
+    /**
+     * Hourly sketches, each hour's users half new and half from the hour before, unioned by a {@link HyperLogLogUnion}
+     * into rolling 7-day windows of days, so that every day's union comes from the cache after its first window,
+     * and into all hours. True counts come from the contiguous user ranges.
+     *
+     * @param streamLib hourly stream-lib HyperLogLogs instead of {@link HyperLogLogPlusPlus}
+     */
+    static void testUnionEstimator(int hours, int usersPerHour, double error, boolean streamLib) {
+        HyperLogLogUnion union = new HyperLogLogUnion(error, 1024, ForkJoinPool.commonPool());
+        for (int hour = 0; hour < hours; hour++) {
+            if (streamLib) {
+                HyperLogLog sketch = new HyperLogLog(HyperLogLogPlusPlus.precisionFor(error));
+                for (int i = 0; i < usersPerHour; i++) {
+                    sketch.offerHashed(MurmurHash.hashLong(hour * (usersPerHour / 2) + i));
+                }
+                union.put(hour, sketch);
+            } else {
+                HyperLogLogPlusPlus sketch = new HyperLogLogPlusPlus(error);
+                for (int i = 0; i < usersPerHour; i++) {
+                    sketch.add(hour * (usersPerHour / 2) + i);
+                }
+                union.put(hour, sketch);
+            }
+        }
+
+        long[][] days = new long[hours / 24][24];
+        for (int hour = 0; hour < days.length * 24; hour++) {
+            days[hour / 24][hour % 24] = hour;
+        }
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        double maxError = 0;
+        for (int day = 6; day < days.length; day++) {
+            double estimated = union.cardinality(Arrays.copyOfRange(days, day - 6, day + 1));
+            double trueCardinality = (7 * 24 - 1) * (usersPerHour / 2) + usersPerHour;
+            maxError = Math.max(maxError, Math.abs(estimated - trueCardinality) / trueCardinality);
+        }
+        System.out.printf(
+                "sketches: %s, rolling weeks: %d, maxError: %.2f%%, cacheHits: %d, cacheMisses: %d, took: %s\n",
+                streamLib ? "streamlib" : "hllpp",
+                days.length - 6,
+                100 * maxError,
+                union.cacheHits(),
+                union.cacheMisses(),
+                stopwatch);
+
+        long[] all = new long[hours];
+        for (int hour = 0; hour < hours; hour++) {
+            all[hour] = hour;
+        }
+        double estimated = union.cardinality(all);
+        double trueCardinality = (hours - 1) * (usersPerHour / 2) + usersPerHour;
+        System.out.printf(
+                "hours: %d, trueCardinality: %.1f, estimatedCardinality: %.1f, error: %.2f%%\n",
+                hours,
+                trueCardinality,
+                estimated,
+                100 * Math.abs(estimated - trueCardinality) / trueCardinality);
+    }
+
+
+    interface CardinalityEstimator extends MemoryFootprint {
         void add(String e);
         double cardinality();
-        int size();
+
+        /**
+         * Key as bytes, e.g. a slice of a {@link KeyFile}. Decoded into a String by default; hand-written sketches
+         * hash the bytes in place, exactly as they hash the String of an ASCII key.
+         */
+        default void add(ByteBuffer bytes, int offset, int length) {
+            add(KeyFile.decode(bytes, offset, length));
+        }
+
+        /**
+         * Adds all elements of other estimator into this one. Other must be of the same class and created with the same
+         * parameters, otherwise IllegalArgumentException is thrown.
+         */
+        void merge(CardinalityEstimator other);
+    }
+
+
+    interface EstimatorFactory {
+        CardinalityEstimator create(double error);
+    }
+
+
+    /**
+     * Same as {@link CardinalityEstimator}, but over raw 64-bit keys, so that no String is created per element
+     */
+    interface LongCardinalityEstimator extends MemoryFootprint {
+        void add(long e);
+        double cardinality();
+
+        /**
+         * Adds keys[offset, offset + length). One call per key by default; hand-written sketches hash a batch of keys
+         * first and then update registers.
+         */
+        default void addAll(long[] keys, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                add(keys[i]);
+            }
+        }
+    }
+
+
+    /**
+     * Feeds long keys into any string-keyed estimator as their decimal representation,
+     * i.e. gives exactly the same answers as the String path. Still allocates a String per call.
+     */
+    static class LongKeysAdapter implements LongCardinalityEstimator {
+        private final CardinalityEstimator estimator;
+
+        LongKeysAdapter(CardinalityEstimator estimator) {
+            this.estimator = estimator;
+        }
+
+        @Override
+        public void add(long e) {
+            estimator.add(String.valueOf(e));
+        }
+
+        @Override
+        public double cardinality() {
+            return estimator.cardinality();
+        }
+
+        @Override
+        public long heapBytes() {
+            return estimator.heapBytes();
+        }
+
+        @Override
+        public long serializedBytes() {
+            return estimator.serializedBytes();
+        }
     }
 
 
     static class HashSetEstimator implements CardinalityEstimator {
         private final THashSet<String> elements = new THashSet<>();
+        private long chars; // of all elements, for footprint
 
         @Override
         public void add(String e) {
-            elements.add(e);
+            if (elements.add(e)) {
+                chars += e.length();
+            }
         }
 
         @Override
@@ -86,19 +386,32 @@ public class HyperLogLogApp {
         }
 
         @Override
-        public int size() {
-            try {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                elements.writeExternal(new ObjectOutputStream(baos));
-                return baos.size();
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+        public void merge(CardinalityEstimator other) {
+            Preconditions.checkArgument(other instanceof HashSetEstimator, "can't merge %s into HashSetEstimator", other);
+            for (String e : ((HashSetEstimator) other).elements) {
+                add(e);
             }
         }
+
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.troveSet(elements.capacity()) + ObjectLayout.latin1Strings(elements.size(), chars);
+        }
+
+        /**
+         * Java serialization writes each element as a string record: tag, 2-byte length, chars
+         */
+        @Override
+        public long serializedBytes() {
+            return ObjectLayout.TROVE_SERIALIZATION_OVERHEAD + 3L * elements.size() + chars;
+        }
     }
 
 
-    static class StreamLibEstimator implements CardinalityEstimator {
+    /**
+     * Long keys are hashed with the same MurmurHash.hashLong that HyperLogLog.offer(Long) would use, but without boxing.
+     */
+    static class StreamLibEstimator implements CardinalityEstimator, LongCardinalityEstimator {
         private final HyperLogLog hll;
 
         public StreamLibEstimator(double error) {
@@ -111,14 +424,42 @@ public class HyperLogLogApp {
             hll.offer(e);
         }
 
+        @Override
+        public void add(long e) {
+            hll.offerHashed(MurmurHash.hashLong(e));
+        }
+
         @Override
         public double cardinality() {
             return hll.cardinality();
         }
 
         @Override
-        public int size() {
-            return hll.sizeof();
+        public void merge(CardinalityEstimator other) {
+            Preconditions.checkArgument(other instanceof StreamLibEstimator, "can't merge %s into StreamLibEstimator", other);
+            try {
+                hll.addAll(((StreamLibEstimator) other).hll);
+            } catch (CardinalityMergeException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        /**
+         * HyperLogLog with its RegisterSet, registers packed 6 to an int
+         */
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.object(Integer.BYTES + ObjectLayout.REFERENCE)
+                    + ObjectLayout.object(2 * Integer.BYTES + ObjectLayout.REFERENCE)
+                    + ObjectLayout.ARRAY_HEADER + hll.sizeof();
+        }
+
+        /**
+         * HyperLogLog.getBytes: log2m, byte length, registers
+         */
+        @Override
+        public long serializedBytes() {
+            return 2 * Integer.BYTES + hll.sizeof();
         }
     }
 
@@ -145,7 +486,22 @@ public class HyperLogLogApp {
         }
 
         @Override
-        public int size() {
+        public void merge(CardinalityEstimator other) {
+            Preconditions.checkArgument(other instanceof AlgebirdEstimator, "can't merge %s into AlgebirdEstimator", other);
+            hll = hll.$plus(((AlgebirdEstimator) other).hll);
+        }
+
+        /**
+         * As if dense, a byte per register. Algebird keeps small sketches sparse, so the real size is smaller until
+         * the sketch fills up.
+         */
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.object(ObjectLayout.REFERENCE + Integer.BYTES) + ObjectLayout.byteArray(hll.size());
+        }
+
+        @Override
+        public long serializedBytes() {
             return hll.size();
         }
     }
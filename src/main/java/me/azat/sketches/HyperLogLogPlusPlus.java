@@ -0,0 +1,344 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog++ over 64-bit hashes: sparse while the set is small, dense registers once that becomes cheaper.
+ * <p>
+ * Sparse mode keeps a sorted list of (index, rank) pairs at precision 25, plus a small unsorted buffer that is merged
+ * into the list when full, and estimates with linear counting at that precision. Dense mode keeps one byte per register,
+ * so add is a hash, a shift and a compare, with no allocation.
+ * <p>
+ * Bias correction uses Ertl's improved estimator ("New cardinality estimation algorithms for HyperLogLog sketches", 2017)
+ * computed from the register histogram, instead of the empirical bias tables of the HLL++ paper: it is unbiased over the
+ * whole range, including the small-range region where raw HLL needs linear counting. Not thread-safe.
+ */
+class HyperLogLogPlusPlus implements HyperLogLogApp.CardinalityEstimator, HyperLogLogApp.LongCardinalityEstimator {
+    static final int MIN_PRECISION = 4;
+    static final int MAX_PRECISION = 18;
+    private static final int SPARSE_PRECISION = 25;
+    private static final int RANK_BITS = 6;
+    private static final int BUFFER_SIZE = 256;
+
+    private final int p;
+    private final int m;
+
+    // sparse mode: sorted entries (index' << RANK_BITS | rank') and an unsorted buffer of fresh ones
+    private int[] sparse;
+    private int sparseSize;
+    private int[] scratch;
+    private int[] buffer;
+    private int bufferSize;
+
+    // dense mode, null while sparse
+    private byte[] registers;
+
+    /**
+     * @param error relative standard error, 1.04 / sqrt(m)
+     */
+    HyperLogLogPlusPlus(double error) {
+        this(precisionFor(error));
+    }
+
+    HyperLogLogPlusPlus(int precision) {
+        Preconditions.checkArgument(
+                precision >= MIN_PRECISION && precision <= MAX_PRECISION,
+                "MIN_PRECISION <= precision <= MAX_PRECISION");
+
+        this.p = precision;
+        this.m = 1 << precision;
+        this.sparse = new int[16];
+        this.scratch = new int[16];
+        this.buffer = new int[Math.min(BUFFER_SIZE, m / 4)];
+    }
+
+    static int precisionFor(double error) {
+        int log2m = (int)Math.ceil(2.0 * Math.log(1.04 / error) / Math.log(2.0));
+        return Math.max(MIN_PRECISION, Math.min(MAX_PRECISION, log2m));
+    }
+
+    @Override
+    public void add(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(long e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void addAll(long[] keys, int offset, int length) {
+        for (Hashes.Rounds round = Hashes.rounds(keys, offset, length); round.next(); ) {
+            for (int i = 0; i < round.size(); i++) {
+                addHash(round.hash(i));
+            }
+        }
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    void addHash(long hash) {
+        if (registers != null) {
+            int index = (int) (hash >>> (64 - p));
+            byte rank = (byte) (Long.numberOfLeadingZeros((hash << p) | (1L << (p - 1))) + 1);
+            if (rank > registers[index]) {
+                registers[index] = rank;
+            }
+            return;
+        }
+
+        int sparseIndex = (int) (hash >>> (64 - SPARSE_PRECISION));
+        int sparseRank = Long.numberOfLeadingZeros((hash << SPARSE_PRECISION) | (1L << (SPARSE_PRECISION - 1))) + 1;
+        addSparse(sparseIndex << RANK_BITS | sparseRank);
+    }
+
+    private void addSparse(int entry) {
+        buffer[bufferSize++] = entry;
+        if (bufferSize == buffer.length) {
+            compact();
+        }
+    }
+
+    @Override
+    public double cardinality() {
+        if (registers == null) {
+            compact();
+        }
+        if (registers == null) {
+            return sparseEstimate(sparseSize);
+        }
+
+        int q = 64 - p;
+        int[] histogram = new int[q + 2];
+        for (byte register : registers) {
+            histogram[register]++;
+        }
+        return estimate(histogram, m, q);
+    }
+
+    /**
+     * Ertl's improved estimator from a histogram of register values, q is the number of hash bits left for the rank
+     */
+    static double estimate(int[] histogram, int m, int q) {
+        double z = m * tau(1.0 - (double) histogram[q + 1] / m);
+        for (int k = q; k >= 1; k--) {
+            z = 0.5 * (z + histogram[k]);
+        }
+        z += m * sigma((double) histogram[0] / m);
+        return m / (2.0 * Math.log(2)) * m / z;
+    }
+
+    private static double sigma(double x) {
+        if (x == 1.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double y = 1.0;
+        double z = x;
+        double previous;
+        do {
+            x *= x;
+            previous = z;
+            z += x * y;
+            y += y;
+        } while (z != previous);
+        return z;
+    }
+
+    private static double tau(double x) {
+        if (x == 0.0 || x == 1.0) {
+            return 0.0;
+        }
+        double y = 1.0;
+        double z = 1.0 - x;
+        double previous;
+        do {
+            x = Math.sqrt(x);
+            previous = z;
+            y *= 0.5;
+            z -= (1.0 - x) * (1.0 - x) * y;
+        } while (z != previous);
+        return z / 3.0;
+    }
+
+    /**
+     * Register-wise max. The result does not depend on how elements were split between sketches:
+     * it is sparse or dense exactly when a single sketch fed with all of them would be.
+     */
+    @Override
+    public void merge(HyperLogLogApp.CardinalityEstimator other) {
+        Preconditions.checkArgument(other instanceof HyperLogLogPlusPlus, "can't merge %s into HyperLogLogPlusPlus", other);
+        HyperLogLogPlusPlus that = (HyperLogLogPlusPlus) other;
+        Preconditions.checkArgument(p == that.p, "can merge only sketches with the same precision");
+        if (that == this) {
+            return;
+        }
+
+        if (that.registers == null) {
+            that.compact();
+        }
+        if (that.registers != null) {
+            if (registers == null) {
+                compact();
+                if (registers == null) {
+                    toDense();
+                }
+            }
+            for (int i = 0; i < m; i++) {
+                if (that.registers[i] > registers[i]) {
+                    registers[i] = that.registers[i];
+                }
+            }
+            return;
+        }
+
+        for (int i = 0; i < that.sparseSize; i++) {
+            if (registers != null) {
+                addDense(registers, that.sparse[i]);
+            } else {
+                addSparse(that.sparse[i]);
+            }
+        }
+        if (registers == null) {
+            compact();
+        }
+    }
+
+    boolean isSparse() {
+        return registers == null;
+    }
+
+    int precision() {
+        return p;
+    }
+
+    /**
+     * Copy of dense registers, computed from sparse entries when sparse
+     */
+    byte[] registers() {
+        if (registers != null) {
+            return registers.clone();
+        }
+        flushBuffer();
+        byte[] dense = new byte[m];
+        for (int i = 0; i < sparseSize; i++) {
+            addDense(dense, sparse[i]);
+        }
+        return dense;
+    }
+
+    /**
+     * Sorted sparse entries, each (index << 6 | rank) at precision 25, or null when dense. Flushes the buffer first,
+     * and so may turn the sketch dense, exactly as {@link #cardinality()} would.
+     */
+    int[] sparseEntries() {
+        compact();
+        return registers == null ? Arrays.copyOf(sparse, sparseSize) : null;
+    }
+
+    /**
+     * Linear counting over 2^25 sparse registers, of which entries are set
+     */
+    static double sparseEstimate(int entries) {
+        double sparseM = 1 << SPARSE_PRECISION;
+        return sparseM * Math.log(sparseM / (sparseM - entries));
+    }
+
+    @Override
+    public long heapBytes() {
+        long fields = ObjectLayout.object(4 * Integer.BYTES + 4 * ObjectLayout.REFERENCE);
+        if (registers != null) {
+            return fields + ObjectLayout.byteArray(registers.length);
+        }
+        return fields + ObjectLayout.intArray(sparse.length) + ObjectLayout.intArray(scratch.length)
+                + ObjectLayout.intArray(buffer.length);
+    }
+
+    /**
+     * Registers when dense, otherwise the sparse and buffered entries, 4 bytes each
+     */
+    @Override
+    public long serializedBytes() {
+        if (registers != null) {
+            return registers.length;
+        }
+        return (long) (sparseSize + bufferSize) * Integer.BYTES;
+    }
+
+    /**
+     * Flushes the buffer, then converts to dense once sparse entries take more memory than dense registers would:
+     * 4 bytes per entry against 1 byte per register
+     */
+    private void compact() {
+        flushBuffer();
+        if (sparseSize >= m / 4) {
+            toDense();
+        }
+    }
+
+    /**
+     * Sorts the buffer and merges it into the sparse list, keeping the highest rank per sparse index
+     */
+    private void flushBuffer() {
+        if (bufferSize == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, bufferSize);
+        int capacity = sparseSize + bufferSize;
+        if (scratch.length < capacity) {
+            scratch = new int[Math.max(capacity, scratch.length * 2)];
+        }
+
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < sparseSize || j < bufferSize) {
+            int entry = j >= bufferSize || (i < sparseSize && sparse[i] <= buffer[j]) ? sparse[i++] : buffer[j++];
+            if (size > 0 && (scratch[size - 1] >>> RANK_BITS) == (entry >>> RANK_BITS)) {
+                scratch[size - 1] = entry; // same index, entries are sorted, so this rank is not lower
+            } else {
+                scratch[size++] = entry;
+            }
+        }
+
+        int[] merged = scratch;
+        scratch = sparse;
+        sparse = merged;
+        sparseSize = size;
+        bufferSize = 0;
+    }
+
+    private void toDense() {
+        registers = new byte[m];
+        for (int i = 0; i < sparseSize; i++) {
+            addDense(registers, sparse[i]);
+        }
+        sparse = null;
+        scratch = null;
+        buffer = null;
+        sparseSize = 0;
+    }
+
+    /**
+     * Applies a sparse entry to dense registers: the bits between the dense and the sparse index come first in the dense rank
+     */
+    private void addDense(byte[] registers, int entry) {
+        int shift = SPARSE_PRECISION - p;
+        int sparseIndex = entry >>> RANK_BITS;
+        int sparseRank = entry & ((1 << RANK_BITS) - 1);
+        int low = sparseIndex & ((1 << shift) - 1);
+        int rank = low != 0
+                ? Integer.numberOfLeadingZeros(low) - (Integer.SIZE - shift) + 1
+                : shift + sparseRank;
+        int index = sparseIndex >>> shift;
+        if (rank > registers[index]) {
+            registers[index] = (byte) rank;
+        }
+    }
+}
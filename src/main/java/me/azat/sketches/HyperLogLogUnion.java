@@ -0,0 +1,291 @@
+package me.azat.sketches;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import com.google.common.base.Preconditions;
+import gnu.trove.map.hash.TLongObjectHashMap;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Unions of many HyperLogLogs of one precision, e.g. a day from 24 hourly sketches, or global from per-shard ones.
+ * <p>
+ * Sketches are registered by id as copies of their dense registers, 8 byte registers to a long. A union is then
+ * a word-level max: registers are below 128, so one subtraction of a word from the other with the high bit of every
+ * byte set tells which register of each byte is larger, and 8 registers are merged without a branch. Unions over
+ * many register words are split across a fork-join pool by sketches, each task max-ing its sketches into its own
+ * partial union, and partial unions are max-ed together as tasks join.
+ * <p>
+ * Unions are cached by id set in an LRU, so a rollup of groups, e.g. a week of days of hours, merges each day once.
+ * Registering a sketch again drops the cached unions that contain its id.
+ * <p>
+ * Stream-lib HyperLogLogs hash to 32 bits, the others to 64, so a union takes sketches of one kind only and estimates
+ * with the hash length of its kind. Its estimate of stream-lib sketches comes from the same estimator as for the others,
+ * not from stream-lib's, so it is close to, not equal to, the cardinality of stream-lib's own merge. Not thread-safe.
+ */
+class HyperLogLogUnion {
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long PARALLEL_WORDS = 1 << 18; // sketches * words below which a union is not split
+    private static final int SEQUENTIAL_WORDS = 1 << 16; // sketches * words of a fork-join task
+    private static final int STREAM_LIB_REGISTER_BITS = 5;
+    private static final int STREAM_LIB_REGISTERS_PER_INT = 6;
+
+    private final int p;
+    private final int m;
+    private final int words;
+    private final ForkJoinPool pool;
+    private final TLongObjectHashMap<long[]> sketches = new TLongObjectHashMap<>();
+    private final LinkedHashMap<IdSet, long[]> cache;
+    private int hashBits; // 32 for stream-lib sketches, 64 for the others, 0 before the first put
+
+    private long cacheHits;
+    private long cacheMisses;
+
+    /**
+     * @param error relative standard error of the sketches, 1.04 / sqrt(m): the same precision as
+     *              {@link HyperLogLogApp.StreamLibEstimator} takes for log2m
+     * @param cacheSize number of unions to keep, 0 for none
+     * @param pool for large unions, or null to merge in the calling thread only
+     */
+    HyperLogLogUnion(double error, int cacheSize, ForkJoinPool pool) {
+        this(HyperLogLogPlusPlus.precisionFor(error), cacheSize, pool);
+    }
+
+    HyperLogLogUnion(int precision, int cacheSize, ForkJoinPool pool) {
+        Preconditions.checkArgument(
+                precision >= HyperLogLogPlusPlus.MIN_PRECISION && precision <= HyperLogLogPlusPlus.MAX_PRECISION,
+                "MIN_PRECISION <= precision <= MAX_PRECISION");
+        Preconditions.checkArgument(cacheSize >= 0, "cacheSize >= 0");
+
+        this.p = precision;
+        this.m = 1 << precision;
+        this.words = m / Long.BYTES;
+        this.pool = pool;
+        this.cache = new LinkedHashMap<IdSet, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<IdSet, long[]> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    void put(long id, HyperLogLogPlusPlus sketch) {
+        Preconditions.checkArgument(sketch.precision() == p, "can union only sketches with the same precision");
+        put(id, sketch.registers(), Long.SIZE);
+    }
+
+    void put(long id, IncrementalHyperLogLog sketch) {
+        Preconditions.checkArgument(sketch.precision() == p, "can union only sketches with the same precision");
+        put(id, sketch.registers(), Long.SIZE);
+    }
+
+    /**
+     * Registers are read from the sketch's serialized form: log2m, the byte length of its RegisterSet,
+     * then the RegisterSet's ints, 5-bit registers packed 6 to an int
+     */
+    void put(long id, HyperLogLog sketch) {
+        ByteBuffer bytes;
+        try {
+            bytes = ByteBuffer.wrap(sketch.getBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Preconditions.checkArgument(bytes.getInt() == p, "can union only sketches with the same precision");
+        int offset = 2 * Integer.BYTES;
+        byte[] registers = new byte[m];
+        for (int i = 0; i < m; i++) {
+            int word = bytes.getInt(offset + (i / STREAM_LIB_REGISTERS_PER_INT) * Integer.BYTES);
+            int shift = (i % STREAM_LIB_REGISTERS_PER_INT) * STREAM_LIB_REGISTER_BITS;
+            registers[i] = (byte) ((word >>> shift) & ((1 << STREAM_LIB_REGISTER_BITS) - 1));
+        }
+        put(id, registers, Integer.SIZE);
+    }
+
+    private void put(long id, byte[] registers, int sketchHashBits) {
+        Preconditions.checkArgument(hashBits == 0 || hashBits == sketchHashBits,
+                "can't union stream-lib sketches, of 32-bit hashes, with sketches of 64-bit hashes");
+        hashBits = sketchHashBits;
+
+        long[] packed = new long[words];
+        for (int i = 0; i < m; i++) {
+            packed[i >>> 3] |= (long) registers[i] << ((i & 7) << 3);
+        }
+        sketches.put(id, packed);
+
+        for (Iterator<IdSet> it = cache.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().contains(id)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Distinct count of the union of the given sketches. Ids that were never registered are skipped.
+     */
+    double cardinality(long... ids) {
+        return estimate(union(ids));
+    }
+
+    /**
+     * Distinct count of the union of groups of sketches, each group's union through the cache,
+     * e.g. a week as 7 groups of 24 hourly ids
+     */
+    double cardinality(long[][] groups) {
+        long[] union = new long[words];
+        for (long[] group : groups) {
+            long[] groupUnion = union(group);
+            for (int w = 0; w < words; w++) {
+                union[w] = max(union[w], groupUnion[w]);
+            }
+        }
+        return estimate(union);
+    }
+
+    /**
+     * Packed registers of the union, shared with the cache: read only
+     */
+    private long[] union(long[] ids) {
+        IdSet key = new IdSet(ids);
+        long[] union = cache.get(key);
+        if (union != null) {
+            cacheHits++;
+            return union;
+        }
+        cacheMisses++;
+
+        long[][] selected = new long[key.ids.length][];
+        int n = 0;
+        for (long id : key.ids) {
+            long[] sketch = sketches.get(id);
+            if (sketch != null) {
+                selected[n++] = sketch;
+            }
+        }
+        union = new long[words];
+        if (pool != null && (long) n * words >= PARALLEL_WORDS) {
+            pool.invoke(new UnionTask(selected, 0, n, union));
+        } else {
+            maxInto(selected, 0, n, union);
+        }
+        cache.put(key, union);
+        return union;
+    }
+
+    private static void maxInto(long[][] sketches, int from, int to, long[] union) {
+        for (int i = from; i < to; i++) {
+            long[] sketch = sketches[i];
+            for (int w = 0; w < sketch.length; w++) {
+                union[w] = max(union[w], sketch[w]);
+            }
+        }
+    }
+
+    /**
+     * Byte-wise max of 8 registers below 128: (a | 0x80) - b has the high bit of a byte set where a >= b,
+     * and no byte borrows from the next one
+     */
+    static long max(long a, long b) {
+        long greaterOrEqual = (((a | HIGH_BITS) - b) & HIGH_BITS) >>> 7;
+        long mask = greaterOrEqual * 0xFF;
+        return b ^ ((a ^ b) & mask);
+    }
+
+    private double estimate(long[] union) {
+        int q = (hashBits == 0 ? Long.SIZE : hashBits) - p;
+        int[] histogram = new int[q + 2];
+        for (long word : union) {
+            for (int shift = 0; shift < Long.SIZE; shift += Byte.SIZE) {
+                histogram[(int) (word >>> shift) & 0xFF]++;
+            }
+        }
+        return HyperLogLogPlusPlus.estimate(histogram, m, q);
+    }
+
+    int size() {
+        return sketches.size();
+    }
+
+    long cacheHits() {
+        return cacheHits;
+    }
+
+    long cacheMisses() {
+        return cacheMisses;
+    }
+
+
+    /**
+     * Union of a range of sketches into the given words, the right half into its own words, max-ed in after the join
+     */
+    @SuppressWarnings("serial")
+    private static class UnionTask extends RecursiveAction {
+        private final long[][] sketches;
+        private final int from;
+        private final int to;
+        private final long[] union;
+
+        UnionTask(long[][] sketches, int from, int to, long[] union) {
+            this.sketches = sketches;
+            this.from = from;
+            this.to = to;
+            this.union = union;
+        }
+
+        @Override
+        protected void compute() {
+            if ((long) (to - from) * union.length <= SEQUENTIAL_WORDS || to - from < 2) {
+                maxInto(sketches, from, to, union);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            long[] right = new long[union.length];
+            invokeAll(new UnionTask(sketches, from, middle, union), new UnionTask(sketches, middle, to, right));
+            for (int w = 0; w < union.length; w++) {
+                union[w] = max(union[w], right[w]);
+            }
+        }
+    }
+
+
+    /**
+     * Sorted distinct ids, the cache key of a union
+     */
+    private static final class IdSet {
+        private final long[] ids;
+        private final int hash;
+
+        IdSet(long[] ids) {
+            long[] sorted = ids.clone();
+            Arrays.sort(sorted);
+            int n = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[n++] = sorted[i];
+                }
+            }
+            this.ids = n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+            this.hash = Arrays.hashCode(this.ids);
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, id) >= 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdSet && Arrays.equals(ids, ((IdSet) o).ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Dense HyperLogLog that keeps its estimate up to date on every register change, so cardinality is O(1)
+ * instead of a scan of all registers.
+ * <p>
+ * The running sum of 2^-register and the number of zero registers change only when a register grows, by exact powers
+ * of two. A register can grow at most 65 - p times, so the rounding error of the running sum stays far below
+ * the error of the sketch itself. Small range uses linear counting, as in the original HLL paper;
+ * 64-bit hashes need no large range correction. Not thread-safe.
+ */
+class IncrementalHyperLogLog implements HyperLogLogApp.CardinalityEstimator, HyperLogLogApp.LongCardinalityEstimator {
+    private static final double[] INVERSE_POWERS_OF_TWO = new double[66];
+
+    static {
+        for (int k = 0; k < INVERSE_POWERS_OF_TWO.length; k++) {
+            INVERSE_POWERS_OF_TWO[k] = Math.scalb(1.0, -k);
+        }
+    }
+
+    private final int p;
+    private final int m;
+    private final byte[] registers;
+
+    private double inverseSum;
+    private int zeros;
+
+    /**
+     * @param error relative standard error, 1.04 / sqrt(m)
+     */
+    IncrementalHyperLogLog(double error) {
+        this(HyperLogLogPlusPlus.precisionFor(error));
+    }
+
+    IncrementalHyperLogLog(int precision) {
+        Preconditions.checkArgument(
+                precision >= HyperLogLogPlusPlus.MIN_PRECISION && precision <= HyperLogLogPlusPlus.MAX_PRECISION,
+                "MIN_PRECISION <= precision <= MAX_PRECISION");
+
+        this.p = precision;
+        this.m = 1 << precision;
+        this.registers = new byte[m];
+        this.inverseSum = m;
+        this.zeros = m;
+    }
+
+    @Override
+    public void add(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(long e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void addAll(long[] keys, int offset, int length) {
+        for (Hashes.Rounds round = Hashes.rounds(keys, offset, length); round.next(); ) {
+            for (int i = 0; i < round.size(); i++) {
+                addHash(round.hash(i));
+            }
+        }
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    void addHash(long hash) {
+        int index = (int) (hash >>> (64 - p));
+        int rank = Long.numberOfLeadingZeros((hash << p) | (1L << (p - 1))) + 1;
+        int old = registers[index];
+        if (rank > old) {
+            registers[index] = (byte) rank;
+            inverseSum += INVERSE_POWERS_OF_TWO[rank] - INVERSE_POWERS_OF_TWO[old];
+            if (old == 0) {
+                zeros--;
+            }
+        }
+    }
+
+    @Override
+    public double cardinality() {
+        return estimate(inverseSum, zeros, m);
+    }
+
+    /**
+     * Raw HLL estimate from the sum of 2^-register over m registers, linear counting while it is at most 2.5 m
+     */
+    static double estimate(double inverseSum, int zeros, int m) {
+        double estimate = alpha(m) * m * m / inverseSum;
+        if (estimate <= 2.5 * m && zeros != 0) {
+            return m * Math.log((double) m / zeros);
+        }
+        return estimate;
+    }
+
+    /**
+     * Register-wise max, running sum and zeros are recomputed from scratch afterwards
+     */
+    @Override
+    public void merge(HyperLogLogApp.CardinalityEstimator other) {
+        Preconditions.checkArgument(other instanceof IncrementalHyperLogLog, "can't merge %s into IncrementalHyperLogLog", other);
+        IncrementalHyperLogLog that = (IncrementalHyperLogLog) other;
+        Preconditions.checkArgument(p == that.p, "can merge only sketches with the same precision");
+
+        double inverseSum = 0;
+        int zeros = 0;
+        for (int i = 0; i < m; i++) {
+            int register = Math.max(registers[i], that.registers[i]);
+            registers[i] = (byte) register;
+            inverseSum += INVERSE_POWERS_OF_TWO[register];
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        this.inverseSum = inverseSum;
+        this.zeros = zeros;
+    }
+
+    int precision() {
+        return p;
+    }
+
+    byte[] registers() {
+        return registers.clone();
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(3 * Integer.BYTES + Double.BYTES + ObjectLayout.REFERENCE)
+                + ObjectLayout.byteArray(registers.length);
+    }
+
+    @Override
+    public long serializedBytes() {
+        return registers.length;
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16: return 0.673;
+            case 32: return 0.697;
+            case 64: return 0.709;
+            default: return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
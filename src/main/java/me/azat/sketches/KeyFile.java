@@ -0,0 +1,242 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * File of keys, replayed as an alternative to {@link StreamGenerator}: either newline-delimited (a trailing '\r' and
+ * empty lines are skipped), or length-prefixed, where each key follows its little-endian int length.
+ * <p>
+ * The file is split on record boundaries into ranges of at most 1 GB, each range is memory-mapped and scanned in place,
+ * and keys are passed on as slices of the mapping, so nothing is copied or decoded per key.
+ * Splits are independent, one reader thread per split.
+ */
+final class KeyFile {
+    static final int MAX_SPLIT_BYTES = 1 << 30;
+
+    enum Format { LINES, LENGTH_PREFIXED }
+
+    /**
+     * Receives a key as bytes [offset, offset + length) of the buffer, valid only during the call
+     */
+    interface KeyConsumer {
+        void accept(ByteBuffer bytes, int offset, int length);
+    }
+
+    private final Path path;
+    private final Format format;
+    private final long size;
+
+    private KeyFile(Path path, Format format, long size) {
+        this.path = path;
+        this.format = format;
+        this.size = size;
+    }
+
+    static KeyFile open(Path path, Format format) throws IOException {
+        return new KeyFile(path, format, Files.size(path));
+    }
+
+    /**
+     * Format from the keys.format system property, LINES by default
+     */
+    static KeyFile open(Path path) throws IOException {
+        return open(path, Format.valueOf(System.getProperty("keys.format", Format.LINES.name())));
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * About parts splits of equal size, more if needed to keep each of them within {@link #MAX_SPLIT_BYTES}.
+     * Lines are split at the first newline after each cut; length-prefixed records are walked from the start,
+     * reading only their length prefixes.
+     */
+    List<Split> split(int parts) throws IOException {
+        Preconditions.checkArgument(parts > 0, "parts > 0");
+        parts = (int) Math.max(parts, (size + MAX_SPLIT_BYTES / 2 - 1) / (MAX_SPLIT_BYTES / 2));
+        long target = Math.max(1, (size + parts - 1) / parts);
+
+        List<Split> splits = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long start = 0;
+            while (start < size) {
+                long end = format == Format.LINES
+                        ? nextLine(channel, Math.min(size, start + target))
+                        : nextRecord(channel, start, Math.min(size, start + target));
+                Preconditions.checkArgument(end - start <= MAX_SPLIT_BYTES, "%s has a key longer than 512 MB", path);
+                splits.add(new Split(start, end));
+                start = end;
+            }
+        }
+        return splits;
+    }
+
+    /**
+     * All keys, sequentially
+     */
+    void forEach(KeyConsumer consumer) throws IOException {
+        for (Split split : split(1)) {
+            split.forEach(consumer);
+        }
+    }
+
+    /**
+     * Offset right after the first newline at or after from, or the end of file
+     */
+    private long nextLine(FileChannel channel, long from) throws IOException {
+        if (from == 0 || from >= size) {
+            return from;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        long position = from - 1; // the cut may fall right after a newline
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    /**
+     * Offset of the first record that starts at or after from, walking length prefixes from start
+     */
+    private long nextRecord(FileChannel channel, long start, long from) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        long windowStart = 0;
+        window.limit(0);
+
+        long position = start;
+        while (position < from) {
+            if (position < windowStart || position + Integer.BYTES > windowStart + window.limit()) {
+                // refill the window from the prefix on, short keys need no further reads for a while
+                windowStart = position;
+                window.clear();
+                while (window.position() < Integer.BYTES) {
+                    if (channel.read(window, windowStart + window.position()) < 0) {
+                        throw new IllegalArgumentException(path + " ends within a length prefix at " + position);
+                    }
+                }
+                window.flip();
+            }
+            int length = window.getInt((int) (position - windowStart));
+            Preconditions.checkArgument(length >= 0, "%s has a negative key length at %s", path, position);
+            position += Integer.BYTES + length;
+        }
+        Preconditions.checkArgument(position <= size, "%s ends within a key", path);
+        return position;
+    }
+
+
+    /**
+     * Range of whole records of the file
+     */
+    final class Split {
+        private final long start;
+        private final long end;
+
+        private Split(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        long start() {
+            return start;
+        }
+
+        long end() {
+            return end;
+        }
+
+        void forEach(KeyConsumer consumer) throws IOException {
+            MappedByteBuffer bytes;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            }
+            bytes.order(ByteOrder.LITTLE_ENDIAN);
+            int limit = (int) (end - start);
+
+            if (format == Format.LENGTH_PREFIXED) {
+                for (int i = 0; i < limit; ) {
+                    int length = bytes.getInt(i);
+                    consumer.accept(bytes, i + Integer.BYTES, length);
+                    i += Integer.BYTES + length;
+                }
+                return;
+            }
+
+            int from = 0;
+            for (int i = 0; i < limit; i++) {
+                if (bytes.get(i) == '\n') {
+                    acceptLine(bytes, from, i, consumer);
+                    from = i + 1;
+                }
+            }
+            acceptLine(bytes, from, limit, consumer); // last line without a newline
+        }
+
+        private void acceptLine(ByteBuffer bytes, int from, int to, KeyConsumer consumer) {
+            if (to > from && bytes.get(to - 1) == '\r') {
+                to--;
+            }
+            if (to > from) {
+                consumer.accept(bytes, from, to - from);
+            }
+        }
+    }
+
+
+    /**
+     * Key as a String, for estimators that can't take bytes
+     */
+    static String decode(ByteBuffer bytes, int offset, int length) {
+        byte[] key = new byte[length];
+        ByteBuffer slice = bytes.duplicate();
+        slice.position(offset);
+        slice.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes keys as UTF-8 in the given format, e.g. a {@link StreamGenerator} stream to replay later
+     */
+    static void write(Path path, Format format, Iterator<String> keys) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16)) {
+            ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (keys.hasNext()) {
+                byte[] key = keys.next().getBytes(StandardCharsets.UTF_8);
+                if (format == Format.LINES) {
+                    out.write(key);
+                    out.write('\n');
+                } else {
+                    out.write(prefix.putInt(0, key.length).array());
+                    out.write(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Element frequencies per long key, e.g. item counts per tenant, for millions of keys: one count-min sketch per key
+ * in a {@link SketchSlab} slot, 32-bit counters packed two to a long.
+ * <p>
+ * Columns are chosen as {@link ConcurrentCountMinSketch} chooses them, so a key's counts are those of a standalone
+ * sketch with the same depth, width and seed fed with the key's elements, as long as no counter passes 2^32 - 1;
+ * counters saturate there.
+ * <p>
+ * As {@link KeyedHyperLogLogStore}, a map of sketches rather than one, so not a
+ * {@link CountMinSketchApp.HeavyHittersEstimator}: inc and count take the key. Not thread-safe.
+ */
+class KeyedCountMinStore implements MemoryFootprint {
+    private static final long COUNTER_MASK = 0xFFFFFFFFL;
+
+    private final int depth;
+    private final int width;
+    private final long seed;
+    private final SketchSlab slab;
+
+    KeyedCountMinStore(int depth, int width, long seed) {
+        Preconditions.checkArgument(depth > 0 && width > 0, "depth > 0 && width > 0");
+        Preconditions.checkArgument((long) depth * width <= 1 << 21, "depth * width <= 2^21");
+
+        this.depth = depth;
+        this.width = width;
+        this.seed = seed;
+        this.slab = new SketchSlab((depth * width + 1) / 2);
+    }
+
+    void inc(long key, String e) {
+        addHash(key, Hashes.hash64(e));
+    }
+
+    void inc(long key, long e) {
+        addHash(key, Hashes.hash64(e));
+    }
+
+    long count(long key, String e) {
+        return countHash(key, Hashes.hash64(e));
+    }
+
+    long count(long key, long e) {
+        return countHash(key, Hashes.hash64(e));
+    }
+
+    /**
+     * Count of e over the union of the given keys: per row the sum of the keys' counters, then the minimum over rows,
+     * i.e. the count of the merge of their sketches. Keys that were never added are skipped.
+     */
+    long unionCount(String e, long... keys) {
+        return unionCountHash(Hashes.hash64(e), keys);
+    }
+
+    long unionCount(long e, long... keys) {
+        return unionCountHash(Hashes.hash64(e), keys);
+    }
+
+    private void addHash(long key, long hash) {
+        int slot = slab.slotOrCreate(key);
+        long[] page = slab.page(slot);
+        int offset = slab.offset(slot);
+        long h1 = Hashes.fmix64(hash ^ seed);
+        long h2 = Hashes.rehash(h1) | 1;
+        for (int row = 0; row < depth; row++) {
+            int counter = row * width + ConcurrentCountMinSketch.column(h1 + row * h2, width);
+            int word = offset + (counter >>> 1);
+            int shift = (counter & 1) * Integer.SIZE;
+            long bits = page[word];
+            if (((bits >>> shift) & COUNTER_MASK) != COUNTER_MASK) {
+                page[word] = bits + (1L << shift);
+            }
+        }
+    }
+
+    /**
+     * 0 for a key that was never added
+     */
+    private long countHash(long key, long hash) {
+        int slot = slab.slot(key);
+        if (slot < 0) {
+            return 0;
+        }
+        long[] page = slab.page(slot);
+        int offset = slab.offset(slot);
+        long h1 = Hashes.fmix64(hash ^ seed);
+        long h2 = Hashes.rehash(h1) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int counter = row * width + ConcurrentCountMinSketch.column(h1 + row * h2, width);
+            min = Math.min(min, (page[offset + (counter >>> 1)] >>> ((counter & 1) * Integer.SIZE)) & COUNTER_MASK);
+        }
+        return min;
+    }
+
+    /**
+     * Keys are looked up once, then every row sums their counters
+     */
+    private long unionCountHash(long hash, long... keys) {
+        long[][] pages = new long[keys.length][];
+        int[] offsets = new int[keys.length];
+        int found = 0;
+        for (long key : keys) {
+            int slot = slab.slot(key);
+            if (slot >= 0) {
+                pages[found] = slab.page(slot);
+                offsets[found++] = slab.offset(slot);
+            }
+        }
+
+        long h1 = Hashes.fmix64(hash ^ seed);
+        long h2 = Hashes.rehash(h1) | 1;
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int counter = row * width + ConcurrentCountMinSketch.column(h1 + row * h2, width);
+            int shift = (counter & 1) * Integer.SIZE;
+            long sum = 0;
+            for (int i = 0; i < found; i++) {
+                sum += (pages[i][offsets[i] + (counter >>> 1)] >>> shift) & COUNTER_MASK;
+            }
+            min = Math.min(min, sum);
+        }
+        return min;
+    }
+
+    /**
+     * Number of keys
+     */
+    int size() {
+        return slab.size();
+    }
+
+    long[] keys() {
+        return slab.keys();
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(2 * Integer.BYTES + Long.BYTES + ObjectLayout.REFERENCE) + slab.heapBytes();
+    }
+
+    @Override
+    public long serializedBytes() {
+        return 2 * Integer.BYTES + Long.BYTES + slab.serializedBytes();
+    }
+}
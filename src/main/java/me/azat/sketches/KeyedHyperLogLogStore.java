@@ -0,0 +1,134 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Distinct count per long key, e.g. distinct users per page, for millions of keys: one dense HyperLogLog per key in
+ * a {@link SketchSlab} slot, registers packed 5 bits each, 12 to a long, as stream-lib packs them into ints.
+ * <p>
+ * Ranks are capped at 31, so a key's sketch is the dense {@link HyperLogLogPlusPlus} of the same precision over hashes
+ * of 30 + p bits: its estimate is the standalone sketch's until some register would pass 31, which takes about
+ * 2^30 distinct elements per register. A precision of 10 (3.25% error) takes 86 longs, 688 bytes per key.
+ * <p>
+ * The store is a map of sketches rather than one, so it does not implement {@link HyperLogLogApp.CardinalityEstimator}:
+ * add and cardinality take the key, and a per-key view would cost an object per key. Not thread-safe.
+ */
+class KeyedHyperLogLogStore implements MemoryFootprint {
+    private static final int REGISTER_BITS = 5;
+    private static final int REGISTERS_PER_WORD = Long.SIZE / REGISTER_BITS;
+    private static final long REGISTER_MASK = (1L << REGISTER_BITS) - 1;
+    private static final int MAX_RANK = (int) REGISTER_MASK;
+
+    private final int p;
+    private final int m;
+    private final SketchSlab slab;
+
+    /**
+     * @param error relative standard error of each key's sketch, 1.04 / sqrt(m)
+     */
+    KeyedHyperLogLogStore(double error) {
+        this(HyperLogLogPlusPlus.precisionFor(error));
+    }
+
+    KeyedHyperLogLogStore(int precision) {
+        Preconditions.checkArgument(
+                precision >= HyperLogLogPlusPlus.MIN_PRECISION && precision <= HyperLogLogPlusPlus.MAX_PRECISION,
+                "MIN_PRECISION <= precision <= MAX_PRECISION");
+
+        this.p = precision;
+        this.m = 1 << precision;
+        this.slab = new SketchSlab((m + REGISTERS_PER_WORD - 1) / REGISTERS_PER_WORD);
+    }
+
+    void add(long key, String e) {
+        addHash(key, Hashes.hash64(e));
+    }
+
+    void add(long key, long e) {
+        addHash(key, Hashes.hash64(e));
+    }
+
+    void addHash(long key, long hash) {
+        int slot = slab.slotOrCreate(key);
+        long[] page = slab.page(slot);
+        int register = (int) (hash >>> (64 - p));
+        long rank = Math.min(MAX_RANK, Long.numberOfLeadingZeros((hash << p) | (1L << (p - 1))) + 1);
+
+        int word = slab.offset(slot) + register / REGISTERS_PER_WORD;
+        int shift = (register % REGISTERS_PER_WORD) * REGISTER_BITS;
+        long bits = page[word];
+        if (rank > ((bits >>> shift) & REGISTER_MASK)) {
+            page[word] = (bits & ~(REGISTER_MASK << shift)) | (rank << shift);
+        }
+    }
+
+    /**
+     * 0 for a key that was never added
+     */
+    double cardinality(long key) {
+        int slot = slab.slot(key);
+        if (slot < 0) {
+            return 0.0;
+        }
+        int[] histogram = new int[MAX_RANK + 1];
+        long[] page = slab.page(slot);
+        int offset = slab.offset(slot);
+        for (int register = 0; register < m; register++) {
+            histogram[register(page, offset, register)]++;
+        }
+        return HyperLogLogPlusPlus.estimate(histogram, m, MAX_RANK - 1);
+    }
+
+    /**
+     * Distinct count of the union of the given keys' elements: register-wise max of their sketches.
+     * Keys that were never added are skipped.
+     */
+    double unionCardinality(long... keys) {
+        byte[] union = new byte[m];
+        for (long key : keys) {
+            int slot = slab.slot(key);
+            if (slot < 0) {
+                continue;
+            }
+            long[] page = slab.page(slot);
+            int offset = slab.offset(slot);
+            for (int register = 0; register < m; register++) {
+                int value = register(page, offset, register);
+                if (value > union[register]) {
+                    union[register] = (byte) value;
+                }
+            }
+        }
+        int[] histogram = new int[MAX_RANK + 1];
+        for (byte register : union) {
+            histogram[register]++;
+        }
+        return HyperLogLogPlusPlus.estimate(histogram, m, MAX_RANK - 1);
+    }
+
+    private static int register(long[] page, int offset, int register) {
+        long bits = page[offset + register / REGISTERS_PER_WORD];
+        return (int) ((bits >>> ((register % REGISTERS_PER_WORD) * REGISTER_BITS)) & REGISTER_MASK);
+    }
+
+    /**
+     * Number of keys
+     */
+    int size() {
+        return slab.size();
+    }
+
+    long[] keys() {
+        return slab.keys();
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(2 * Integer.BYTES + ObjectLayout.REFERENCE) + slab.heapBytes();
+    }
+
+    @Override
+    public long serializedBytes() {
+        return Integer.BYTES + slab.serializedBytes();
+    }
+}
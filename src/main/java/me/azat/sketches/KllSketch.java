@@ -0,0 +1,306 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * KLL quantile sketch (Karnin, Lang, Liberty): a stack of compactors, level h holding items of weight 2^h.
+ * When the sketch is full, the lowest level over its capacity is sorted and every other item, starting at a random
+ * offset, is promoted to the next level with twice the weight; the rest are dropped.
+ * <p>
+ * The top level holds k items, each level below 2/3 of the one above, but at least 8, so about 3k items are retained
+ * and the normalized rank error is about 1.65 / k for any stream length. Levels are primitive double[] compactors:
+ * an add writes into level 0, arrays grow only while the number of levels grows. Not thread-safe.
+ */
+class KllSketch implements QuantileApp.QuantileEstimator {
+    static final int DEFAULT_K = 200;
+    private static final int MIN_CAPACITY = 8;
+    private static final double CAPACITY_RATIO = 2.0 / 3.0;
+
+    private final int k;
+
+    private double[][] levels;
+    private int[] sizes;
+    private int numLevels;
+    private int retained;
+    private int totalCapacity;
+
+    private long count;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private long random = 12345;
+
+    // sorted view of all retained items for quantile(), rebuilt after adds
+    private double[] sortedItems;
+    private long[] cumulativeWeights;
+    private int sortedCount = -1;
+
+    KllSketch() {
+        this(DEFAULT_K);
+    }
+
+    KllSketch(int k) {
+        Preconditions.checkArgument(k >= MIN_CAPACITY && k <= 1 << 16, "8 <= k <= 65536");
+        this.k = k;
+        this.levels = new double[1][];
+        this.sizes = new int[1];
+        this.levels[0] = new double[k];
+        this.numLevels = 1;
+        this.totalCapacity = k;
+    }
+
+    @Override
+    public void add(double e) {
+        Preconditions.checkArgument(!Double.isNaN(e), "NaN can't be added");
+        if (count == 0) {
+            min = e;
+            max = e;
+        } else if (e < min) {
+            min = e;
+        } else if (e > max) {
+            max = e;
+        }
+        count++;
+
+        double[] level = levels[0];
+        if (sizes[0] == level.length) {
+            levels[0] = level = Arrays.copyOf(level, 2 * level.length);
+        }
+        level[sizes[0]++] = e;
+        retained++;
+        sortedCount = -1;
+        if (retained >= totalCapacity) {
+            compress();
+        }
+    }
+
+    /**
+     * Smallest retained item whose weight, added to the weights of all smaller items, reaches q * count
+     */
+    @Override
+    public double quantile(double q) {
+        Preconditions.checkArgument(q >= 0.0 && q <= 1.0, "0 <= q <= 1");
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (q == 0.0) {
+            return min;
+        }
+        if (q == 1.0) {
+            return max;
+        }
+        sort();
+        long rank = (long) Math.ceil(q * count);
+        int i = Arrays.binarySearch(cumulativeWeights, 0, sortedCount, rank);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return sortedItems[Math.min(i, sortedCount - 1)];
+    }
+
+    @Override
+    public double rank(double e) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long weight = 0;
+        for (int h = 0; h < numLevels; h++) {
+            double[] level = levels[h];
+            int lessOrEqual = 0;
+            for (int i = 0; i < sizes[h]; i++) {
+                if (level[i] <= e) {
+                    lessOrEqual++;
+                }
+            }
+            weight += (long) lessOrEqual << h;
+        }
+        return (double) weight / count;
+    }
+
+    @Override
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Appends other's levels to the levels of the same weight, then compacts until the sketch fits again.
+     * Sketches must have the same k.
+     */
+    @Override
+    public void merge(QuantileApp.QuantileEstimator estimator) {
+        Preconditions.checkArgument(estimator instanceof KllSketch, "can't merge %s into KllSketch", estimator);
+        KllSketch other = (KllSketch) estimator;
+        Preconditions.checkArgument(k == other.k, "can merge only sketches with the same k");
+        if (other.count == 0) {
+            return;
+        }
+
+        while (numLevels < other.numLevels) {
+            addLevel();
+        }
+        for (int h = 0; h < other.numLevels; h++) {
+            int size = other.sizes[h];
+            ensureCapacity(h, sizes[h] + size);
+            System.arraycopy(other.levels[h], 0, levels[h], sizes[h], size);
+            sizes[h] += size;
+            retained += size;
+            if (h > 0) {
+                // levels above 0 stay sorted
+                Arrays.sort(levels[h], 0, sizes[h]);
+            }
+        }
+        min = count == 0 ? other.min : Math.min(min, other.min);
+        max = count == 0 ? other.max : Math.max(max, other.max);
+        count += other.count;
+        sortedCount = -1;
+        while (retained >= totalCapacity) {
+            compress();
+        }
+    }
+
+    int retained() {
+        return retained;
+    }
+
+    /**
+     * Compacts the lowest level at or over its capacity. One exists whenever retained >= totalCapacity.
+     */
+    private void compress() {
+        for (int h = 0; h < numLevels; h++) {
+            if (sizes[h] >= capacity(h)) {
+                compact(h);
+                return;
+            }
+        }
+        throw new IllegalStateException("no level to compact");
+    }
+
+    /**
+     * Halves level h into level h + 1, leaving its smallest item behind if the level has an odd size
+     */
+    private void compact(int h) {
+        if (h + 1 == numLevels) {
+            addLevel();
+        }
+        double[] level = levels[h];
+        int size = sizes[h];
+        if (h == 0) {
+            Arrays.sort(level, 0, size);
+        }
+
+        int start = size & 1;
+        int offset = (int) (nextRandom() >>> 63);
+        int promoted = (size - start) / 2;
+        for (int i = 0; i < promoted; i++) {
+            level[start + i] = level[start + offset + 2 * i];
+        }
+        sizes[h] = start;
+        retained -= size - start - promoted;
+
+        // merge promoted items into the sorted level above, from the back
+        int above = sizes[h + 1];
+        ensureCapacity(h + 1, above + promoted);
+        double[] target = levels[h + 1];
+        int i = start + promoted - 1;
+        int j = above - 1;
+        for (int out = above + promoted - 1; i >= start; out--) {
+            target[out] = j >= 0 && target[j] > level[i] ? target[j--] : level[i--];
+        }
+        sizes[h + 1] = above + promoted;
+    }
+
+    private void addLevel() {
+        levels = Arrays.copyOf(levels, numLevels + 1);
+        sizes = Arrays.copyOf(sizes, numLevels + 1);
+        levels[numLevels] = new double[k];
+        numLevels++;
+        totalCapacity = 0;
+        for (int h = 0; h < numLevels; h++) {
+            totalCapacity += capacity(h);
+        }
+    }
+
+    /**
+     * k at the top level, 2/3 of the level above below it, but at least MIN_CAPACITY
+     */
+    private int capacity(int h) {
+        return Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_RATIO, numLevels - 1 - h)));
+    }
+
+    private void ensureCapacity(int h, int size) {
+        if (levels[h].length < size) {
+            levels[h] = Arrays.copyOf(levels[h], Math.max(size, 2 * levels[h].length));
+        }
+    }
+
+    /**
+     * Merges the sorted levels, lowest weight first, into sortedItems with running weights
+     */
+    private void sort() {
+        if (sortedCount >= 0) {
+            return;
+        }
+        Arrays.sort(levels[0], 0, sizes[0]);
+        double[] items = new double[retained];
+        long[] weights = new long[retained]; // plain weights until the end
+        double[] mergedItems = new double[retained];
+        long[] mergedWeights = new long[retained];
+        int n = 0;
+        for (int h = 0; h < numLevels; h++) {
+            double[] level = levels[h];
+            int i = 0;
+            int j = 0;
+            int out = 0;
+            while (i < n || j < sizes[h]) {
+                if (j == sizes[h] || (i < n && items[i] <= level[j])) {
+                    mergedItems[out] = items[i];
+                    mergedWeights[out++] = weights[i++];
+                } else {
+                    mergedItems[out] = level[j++];
+                    mergedWeights[out++] = 1L << h;
+                }
+            }
+            n = out;
+            double[] swapItems = items;
+            items = mergedItems;
+            mergedItems = swapItems;
+            long[] swapWeights = weights;
+            weights = mergedWeights;
+            mergedWeights = swapWeights;
+        }
+        for (int i = 1; i < n; i++) {
+            weights[i] += weights[i - 1];
+        }
+        sortedItems = items;
+        cumulativeWeights = weights;
+        sortedCount = n;
+    }
+
+    private long nextRandom() {
+        random = Hashes.hash64(random);
+        return random;
+    }
+
+    @Override
+    public long heapBytes() {
+        long bytes = ObjectLayout.object(4 * ObjectLayout.REFERENCE + 5 * Integer.BYTES + 4 * Long.BYTES)
+                + ObjectLayout.referenceArray(levels.length)
+                + ObjectLayout.intArray(sizes.length);
+        for (int h = 0; h < numLevels; h++) {
+            bytes += ObjectLayout.doubleArray(levels[h].length);
+        }
+        if (sortedItems != null) {
+            bytes += ObjectLayout.doubleArray(sortedItems.length) + ObjectLayout.longArray(cumulativeWeights.length);
+        }
+        return bytes;
+    }
+
+    /**
+     * k, count, min, max, number of levels, level sizes, retained items
+     */
+    @Override
+    public long serializedBytes() {
+        return 2 * Integer.BYTES + Long.BYTES + 2 * Double.BYTES + (long) numLevels * Integer.BYTES + (long) retained * Double.BYTES;
+    }
+}
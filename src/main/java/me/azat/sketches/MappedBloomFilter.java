@@ -0,0 +1,260 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Blocked Bloom filter whose bits live in a memory-mapped file, for key sets whose filter does not fit in the heap.
+ * <p>
+ * The file is a {@link SketchFormat} Bloom file, mapped in 1 GB segments so that it can grow past the 2 GB limit of
+ * a single mapping; a block never crosses a segment. Blocks and probes are the same as in {@link BlockedBloomFilter},
+ * so either class opens files of the other. The OS pages bits in and out, the heap holds only segment handles.
+ * Changes reach the file when the OS writes pages back, or on {@link #force()}.
+ * <p>
+ * {@link #close()} unmaps the segments right away, through the JDK's own unmapper, and so frees the disk space of a
+ * temporary filter; without it mappings live until the filter is collected. A closed filter throws
+ * IllegalStateException rather than touch unmapped memory. Not thread-safe.
+ */
+class MappedBloomFilter implements BloomFilterApp.MembershipEstimator, BloomFilterApp.LongMembershipEstimator, Closeable {
+    private static final int SEGMENT_SHIFT = 24; // blocks per segment
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+    private static final MethodHandle UNMAP = unmapper();
+
+    private final MappedByteBuffer[] segments;
+    private final int blocks;
+    private final int hashCount;
+    private boolean closed;
+
+    private MappedBloomFilter(FileChannel channel, int blocks, int hashCount) throws IOException {
+        this.blocks = blocks;
+        this.hashCount = hashCount;
+
+        long payloadBytes = (long) blocks * BlockedBloomFilter.BLOCK_BYTES;
+        this.segments = new MappedByteBuffer[(int) ((payloadBytes + SketchFormat.SEGMENT_BYTES - 1) / SketchFormat.SEGMENT_BYTES)];
+        for (int i = 0; i < segments.length; i++) {
+            long offset = (long) i * SketchFormat.SEGMENT_BYTES;
+            long size = Math.min(SketchFormat.SEGMENT_BYTES, payloadBytes - offset);
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, SketchFormat.HEADER_BYTES + offset, size);
+            segments[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    /**
+     * Creates a new zeroed file, sparse where the file system supports it
+     */
+    static MappedBloomFilter create(Path path, long expectedInsertions, double fpp) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return create(channel, expectedInsertions, fpp);
+        }
+    }
+
+    /**
+     * Filter over a temporary file, which is deleted right after it is mapped: pages stay reachable through the mapping
+     * until the filter is closed or collected. Throws UncheckedIOException, so that it fits {@link BloomFilterApp.EstimatorFactory}.
+     */
+    static MappedBloomFilter createTemporary(long expectedInsertions, double fpp) {
+        try {
+            Path path = Files.createTempFile("bloom", ".skch");
+            try (FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+                return create(channel, expectedInsertions, fpp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reopens a file written by this class, or by {@link SketchFormat#write(BlockedBloomFilter, Path)}
+     */
+    static MappedBloomFilter open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = SketchFormat.readHeader(channel, path, SketchFormat.BLOOM);
+            int blocks = header.getInt();
+            int hashCount = header.getInt();
+            Preconditions.checkArgument(blocks > 0 && hashCount > 0, "corrupted Bloom filter in %s", path);
+            Preconditions.checkArgument(
+                    channel.size() == SketchFormat.HEADER_BYTES + (long) blocks * BlockedBloomFilter.BLOCK_BYTES,
+                    "%s is truncated or corrupted", path);
+            return new MappedBloomFilter(channel, blocks, hashCount);
+        }
+    }
+
+    private static MappedBloomFilter create(FileChannel channel, long expectedInsertions, double fpp) throws IOException {
+        Preconditions.checkArgument(expectedInsertions >= 0, "expectedInsertions >= 0");
+        Preconditions.checkArgument(fpp > 0.0 && fpp < 1.0, "0 < fpp < 1");
+        long blocks = BlockedBloomFilter.blocksFor(expectedInsertions, fpp);
+        Preconditions.checkArgument(blocks <= Integer.MAX_VALUE, "filter exceeds 2^31 blocks");
+        int hashCount = BlockedBloomFilter.hashCountFor(fpp);
+
+        ByteBuffer header = SketchFormat.header(SketchFormat.BLOOM);
+        header.putInt((int) blocks).putInt(hashCount);
+        SketchFormat.writeHeader(channel, header);
+        // extend the file with its last byte, the rest is a hole read as zeros
+        channel.write(ByteBuffer.allocate(1), SketchFormat.HEADER_BYTES + blocks * BlockedBloomFilter.BLOCK_BYTES - 1);
+        return new MappedBloomFilter(channel, (int) blocks, hashCount);
+    }
+
+    @Override
+    public void add(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(String e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(long e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(long e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    @Override
+    public boolean contains(ByteBuffer bytes, int offset, int length) {
+        return containsHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    private void addHash(long hash) {
+        checkOpen();
+        long block = block(hash);
+        BlockedBloomFilter.addToBlock(segment(block), offset(block), hash, hashCount);
+    }
+
+    private boolean containsHash(long hash) {
+        checkOpen();
+        long block = block(hash);
+        return BlockedBloomFilter.blockContains(segment(block), offset(block), hash, hashCount);
+    }
+
+    /**
+     * Same multiply-shift as {@link BlockedBloomFilter}, in long arithmetic since blocks may exceed a single buffer
+     */
+    private long block(long hash) {
+        return ((hash >>> 32) * blocks) >>> 32;
+    }
+
+    private ByteBuffer segment(long block) {
+        return segments[(int) (block >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long block) {
+        return (int) (block & SEGMENT_MASK) * BlockedBloomFilter.BLOCK_BYTES;
+    }
+
+    @Override
+    public void merge(BloomFilterApp.MembershipEstimator other) {
+        Preconditions.checkArgument(other instanceof MappedBloomFilter, "can't merge %s into MappedBloomFilter", other);
+        MappedBloomFilter that = (MappedBloomFilter) other;
+        Preconditions.checkArgument(
+                blocks == that.blocks && hashCount == that.hashCount,
+                "can merge only filters with the same blocks and hashCount");
+        checkOpen();
+        that.checkOpen();
+
+        for (int s = 0; s < segments.length; s++) {
+            MappedByteBuffer segment = segments[s];
+            MappedByteBuffer otherSegment = that.segments[s];
+            for (int i = 0; i < segment.capacity(); i += Long.BYTES) {
+                segment.putLong(i, segment.getLong(i) | otherSegment.getLong(i));
+            }
+        }
+    }
+
+    /**
+     * Checkpoint: writes all changed pages to the file, returns once they are on the storage device
+     */
+    void force() {
+        checkOpen();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    int hashCount() {
+        return hashCount;
+    }
+
+    /**
+     * Unmaps the segments, without forcing them: call {@link #force()} first for a checkpoint. Closing twice is a no-op.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (int i = 0; i < segments.length; i++) {
+            if (UNMAP != null) {
+                try {
+                    UNMAP.invoke(segments[i]);
+                } catch (Throwable e) {
+                    throw new IllegalStateException("can't unmap a segment", e);
+                }
+            }
+            segments[i] = null;
+        }
+    }
+
+    private void checkOpen() {
+        Preconditions.checkState(!closed, "filter is closed");
+    }
+
+    /**
+     * sun.misc.Unsafe.invokeCleaner, the only way to unmap a buffer before it is collected. Unsafe lives in the
+     * jdk.unsupported module, which a custom runtime image may leave out, so this is null when it is missing;
+     * then mappings are released on GC.
+     */
+    private static MethodHandle unmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Mapped pages live in the page cache, not on the heap
+     */
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(2 * Integer.BYTES + 1 + ObjectLayout.REFERENCE)
+                + ObjectLayout.referenceArray(segments.length)
+                + segments.length * ObjectLayout.object(48); // fields of a MappedByteBuffer, roughly
+    }
+
+    @Override
+    public long serializedBytes() {
+        return SketchFormat.HEADER_BYTES + (long) blocks * BlockedBloomFilter.BLOCK_BYTES;
+    }
+}
@@ -0,0 +1,18 @@
+package me.azat.sketches;
+
+/**
+ * Memory taken by an estimator, computed in O(1) from its structure parameters,
+ * so that it can be exported as a live metric without serializing or walking the structure.
+ */
+interface MemoryFootprint {
+
+    /**
+     * Bytes retained by the estimator: heap estimated with {@link ObjectLayout}, plus off-heap memory if it has any
+     */
+    long heapBytes();
+
+    /**
+     * Bytes of the estimator's persisted form: its library's own serialization for wrappers, raw arrays for our sketches
+     */
+    long serializedBytes();
+}
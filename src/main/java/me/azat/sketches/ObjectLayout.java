@@ -0,0 +1,77 @@
+package me.azat.sketches;
+
+/**
+ * Sizes of JVM objects for footprint estimates. Assumes a 64-bit JVM with compressed oops and class pointers,
+ * the default below 32 GB of heap: 12-byte object headers, 16-byte array headers, 4-byte references, 8-byte alignment.
+ */
+final class ObjectLayout {
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+
+    /**
+     * Java serialization of a trove set or map: stream header, versions, load factors and size
+     */
+    static final int TROVE_SERIALIZATION_OVERHEAD = 21;
+
+    private ObjectLayout() {
+    }
+
+    static long object(long fieldBytes) {
+        return align(OBJECT_HEADER + fieldBytes);
+    }
+
+    static long byteArray(long length) {
+        return align(ARRAY_HEADER + length);
+    }
+
+    static long intArray(long length) {
+        return align(ARRAY_HEADER + length * Integer.BYTES);
+    }
+
+    static long longArray(long length) {
+        return align(ARRAY_HEADER + length * Long.BYTES);
+    }
+
+    static long doubleArray(long length) {
+        return align(ARRAY_HEADER + length * Double.BYTES);
+    }
+
+    static long referenceArray(long length) {
+        return align(ARRAY_HEADER + length * REFERENCE);
+    }
+
+    /**
+     * count Latin-1 strings (as the decimal strings of StreamGenerator) of chars in total: String objects plus their byte[],
+     * array padding is taken as 4 bytes on average
+     */
+    static long latin1Strings(long count, long chars) {
+        return count * (object(REFERENCE + Integer.BYTES + 2) + ARRAY_HEADER + 4) + chars;
+    }
+
+    /**
+     * Trove open-addressing set of the given capacity, without its elements
+     */
+    static long troveSet(int capacity) {
+        return object(6 * Integer.BYTES + 2 + REFERENCE) + referenceArray(capacity);
+    }
+
+    /**
+     * Trove open-addressing object-to-int map of the given capacity, without its keys
+     */
+    static long troveObjectIntMap(int capacity) {
+        return troveSet(capacity) + intArray(capacity) + REFERENCE + Integer.BYTES;
+    }
+
+    /**
+     * Trove open-addressing long-to-int map of the given capacity: keys, values and a state byte per slot
+     */
+    static long troveLongIntMap(int capacity) {
+        return object(6 * Integer.BYTES + 2 + 3 * REFERENCE + Long.BYTES + Integer.BYTES)
+                + longArray(capacity) + intArray(capacity) + byteArray(capacity);
+    }
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
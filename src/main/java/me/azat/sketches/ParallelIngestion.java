@@ -0,0 +1,135 @@
+package me.azat.sketches;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Splits elements between the workers of a fork-join pool, about parallelism chunks, builds one sketch per chunk
+ * and unions them pairwise on the way back up.
+ * <p>
+ * Works for any sketch whose merge is exact (Bloom OR, count-min sum, HyperLogLog max):
+ * the result is then the same as feeding all elements into a single sketch.
+ */
+final class ParallelIngestion {
+
+    private ParallelIngestion() {
+    }
+
+    static BloomFilterApp.MembershipEstimator ingestMembership(
+            ForkJoinPool pool, String[] elements, Supplier<BloomFilterApp.MembershipEstimator> factory) {
+        return ingest(pool, elements, factory, BloomFilterApp.MembershipEstimator::add, BloomFilterApp.MembershipEstimator::merge);
+    }
+
+    static CountMinSketchApp.HeavyHittersEstimator ingestCounts(
+            ForkJoinPool pool, String[] elements, Supplier<CountMinSketchApp.HeavyHittersEstimator> factory) {
+        return ingest(pool, elements, factory, CountMinSketchApp.HeavyHittersEstimator::inc, CountMinSketchApp.HeavyHittersEstimator::merge);
+    }
+
+    static HyperLogLogApp.CardinalityEstimator ingestCardinality(
+            ForkJoinPool pool, String[] elements, Supplier<HyperLogLogApp.CardinalityEstimator> factory) {
+        return ingest(pool, elements, factory, HyperLogLogApp.CardinalityEstimator::add, HyperLogLogApp.CardinalityEstimator::merge);
+    }
+
+    static BloomFilterApp.MembershipEstimator ingestMembership(
+            ForkJoinPool pool, KeyFile keys, Supplier<BloomFilterApp.MembershipEstimator> factory) throws IOException {
+        return ingest(pool, keys, factory, BloomFilterApp.MembershipEstimator::add, BloomFilterApp.MembershipEstimator::merge);
+    }
+
+    static CountMinSketchApp.HeavyHittersEstimator ingestCounts(
+            ForkJoinPool pool, KeyFile keys, Supplier<CountMinSketchApp.HeavyHittersEstimator> factory) throws IOException {
+        return ingest(pool, keys, factory, CountMinSketchApp.HeavyHittersEstimator::inc, CountMinSketchApp.HeavyHittersEstimator::merge);
+    }
+
+    static HyperLogLogApp.CardinalityEstimator ingestCardinality(
+            ForkJoinPool pool, KeyFile keys, Supplier<HyperLogLogApp.CardinalityEstimator> factory) throws IOException {
+        return ingest(pool, keys, factory, HyperLogLogApp.CardinalityEstimator::add, HyperLogLogApp.CardinalityEstimator::merge);
+    }
+
+    /**
+     * @param add adds one element into a sketch
+     * @param merge merges second sketch into the first one
+     */
+    static <S> S ingest(ForkJoinPool pool, String[] elements, Supplier<S> factory, BiConsumer<S, String> add, BiConsumer<S, S> merge) {
+        int chunk = Math.max(1, (elements.length + pool.getParallelism() - 1) / pool.getParallelism());
+        return pool.invoke(new IngestTask<>(0, elements.length, chunk, factory, (sketch, from, to) -> {
+            for (int i = from; i < to; i++) {
+                add.accept(sketch, elements[i]);
+            }
+        }, merge));
+    }
+
+    /**
+     * Same as {@link #ingest(ForkJoinPool, String[], Supplier, BiConsumer, BiConsumer)}, but every split of the file
+     * is read by its own task, keys go into sketches as slices of the mapped file
+     */
+    static <S> S ingest(ForkJoinPool pool, KeyFile keys, Supplier<S> factory, SliceAdder<S> add, BiConsumer<S, S> merge) throws IOException {
+        List<KeyFile.Split> splits = keys.split(pool.getParallelism());
+        try {
+            return pool.invoke(new IngestTask<>(0, splits.size(), 1, factory, (sketch, from, to) -> {
+                for (int i = from; i < to; i++) {
+                    try {
+                        splits.get(i).forEach((bytes, offset, length) -> add.add(sketch, bytes, offset, length));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }, merge));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+
+    interface SliceAdder<S> {
+        void add(S sketch, ByteBuffer bytes, int offset, int length);
+    }
+
+
+    /**
+     * Feeds elements [from, to) of the source into a sketch
+     */
+    private interface RangeFeeder<S> {
+        void feed(S sketch, int from, int to);
+    }
+
+
+    @SuppressWarnings("serial")
+    private static class IngestTask<S> extends RecursiveTask<S> {
+        private final int from;
+        private final int to;
+        private final int chunk;
+        private final Supplier<S> factory;
+        private final RangeFeeder<S> feeder;
+        private final BiConsumer<S, S> merge;
+
+        IngestTask(int from, int to, int chunk, Supplier<S> factory, RangeFeeder<S> feeder, BiConsumer<S, S> merge) {
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.factory = factory;
+            this.feeder = feeder;
+            this.merge = merge;
+        }
+
+        @Override
+        protected S compute() {
+            if (to - from <= chunk) {
+                S sketch = factory.get();
+                feeder.feed(sketch, from, to);
+                return sketch;
+            }
+            int middle = (from + to) >>> 1;
+            IngestTask<S> right = new IngestTask<>(middle, to, chunk, factory, feeder, merge);
+            right.fork();
+            S sketch = new IngestTask<>(from, middle, chunk, factory, feeder, merge).compute();
+            merge.accept(sketch, right.join());
+            return sketch;
+        }
+    }
+}
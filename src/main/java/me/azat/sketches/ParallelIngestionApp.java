@@ -0,0 +1,109 @@
+package me.azat.sketches;
+
+import com.google.common.base.Stopwatch;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Feeds the same stream into a single sketch, and then through ParallelIngestion with 1, 2, 4, ... cores.
+ * Checks that merged sketches answer exactly as the sequential one, and reports throughput.
+ */
+public class ParallelIngestionApp {
+
+    public static void main(String[] args) {
+        int testCardinality = 1_000_000;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+
+        StreamGenerator gen = new StreamGenerator(12345, testCardinality);
+        String[] uniform = gen.uniformStream(testCardinality, testCardinality * 3).toArray(String[]::new);
+        String[] zipf = gen.zipfStream(testCardinality, 0.5, testCardinality * 3).toArray(String[]::new);
+
+        System.out.println("--- Bloom filter, fpp = 0.01 ---");
+        testMembership(uniform, () -> new BloomFilterApp.StreamLibBloomEstimator(testCardinality, 0.01), maxThreads);
+
+        System.out.println("--- Count-min sketch, depth = 3, width = 32000 ---");
+        testCounts(zipf, () -> new CountMinSketchApp.StreamLibEstimator(3, 32000, 12345), maxThreads);
+
+        System.out.println("--- HyperLogLog++, error = 0.01 ---");
+        testCardinality(uniform, () -> new HyperLogLogPlusPlus(0.01), maxThreads);
+    }
+
+    private static void testMembership(String[] elements, Supplier<BloomFilterApp.MembershipEstimator> factory, int maxThreads) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        BloomFilterApp.MembershipEstimator sequential = factory.get();
+        for (String e : elements) {
+            sequential.add(e);
+        }
+        report("sequential", elements.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+
+        for (int threads = 1; threads <= maxThreads; threads = Workers.nextThreadCount(threads, maxThreads)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            stopwatch = Stopwatch.createStarted();
+            BloomFilterApp.MembershipEstimator parallel = ParallelIngestion.ingestMembership(pool, elements, factory);
+            report("threads: " + threads, elements.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+            pool.shutdown();
+
+            for (String e : elements) {
+                if (!parallel.contains(e)) {
+                    throw new AssertionError("false negative after merge: " + e);
+                }
+            }
+            for (int i = 0; i < 1_000_000; i++) {
+                String probe = "absent-" + i;
+                if (parallel.contains(probe) != sequential.contains(probe)) {
+                    throw new AssertionError("merged filter differs from sequential one on " + probe);
+                }
+            }
+        }
+    }
+
+    private static void testCounts(String[] elements, Supplier<CountMinSketchApp.HeavyHittersEstimator> factory, int maxThreads) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        CountMinSketchApp.HeavyHittersEstimator sequential = factory.get();
+        for (String e : elements) {
+            sequential.inc(e);
+        }
+        report("sequential", elements.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+
+        for (int threads = 1; threads <= maxThreads; threads = Workers.nextThreadCount(threads, maxThreads)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            stopwatch = Stopwatch.createStarted();
+            CountMinSketchApp.HeavyHittersEstimator parallel = ParallelIngestion.ingestCounts(pool, elements, factory);
+            report("threads: " + threads, elements.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+            pool.shutdown();
+
+            for (String e : elements) {
+                if (parallel.count(e) != sequential.count(e)) {
+                    throw new AssertionError("merged count differs from sequential one on " + e);
+                }
+            }
+        }
+    }
+
+    private static void testCardinality(String[] elements, Supplier<HyperLogLogApp.CardinalityEstimator> factory, int maxThreads) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        HyperLogLogApp.CardinalityEstimator sequential = factory.get();
+        for (String e : elements) {
+            sequential.add(e);
+        }
+        report("sequential", elements.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+
+        for (int threads = 1; threads <= maxThreads; threads = Workers.nextThreadCount(threads, maxThreads)) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            stopwatch = Stopwatch.createStarted();
+            HyperLogLogApp.CardinalityEstimator parallel = ParallelIngestion.ingestCardinality(pool, elements, factory);
+            report("threads: " + threads, elements.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+            pool.shutdown();
+
+            if (parallel.cardinality() != sequential.cardinality()) {
+                throw new AssertionError("merged cardinality " + parallel.cardinality() + " differs from sequential " + sequential.cardinality());
+            }
+        }
+    }
+
+    private static void report(String mode, int elements, long nanos) {
+        System.out.printf("%s, elements: %d, throughput: %.1f Mops/s\n", mode, elements, elements * 1000.0 / nanos);
+    }
+}
@@ -0,0 +1,94 @@
+package me.azat.sketches;
+
+import com.google.common.base.Stopwatch;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the same stream through a SketchPipeline and, one sketch at a time, through a Bloom filter, a count-min sketch
+ * and a HyperLogLog built with the same parameters. Checks that hashing once gives exactly the same sketches,
+ * and reports throughput of both.
+ */
+public class PipelineApp {
+    private static final double FPP = 0.01;
+    private static final int DEPTH = 3;
+    private static final int WIDTH = 32000;
+    private static final long SEED = 12345;
+    private static final double ERROR = 0.01;
+
+    public static void main(String[] args) {
+        int testCardinality = 1_000_000;
+
+        StreamGenerator gen = new StreamGenerator(12345, testCardinality);
+        String[] zipf = gen.zipfStream(testCardinality, 0.5, testCardinality * 3).toArray(String[]::new);
+        long[] keys = new Random(12345).longs(testCardinality * 3L, 0, testCardinality).toArray();
+
+        System.out.println("--- Strings, zipf stream ---");
+        testStrings(zipf, testCardinality);
+
+        System.out.println("--- Long keys, batches ---");
+        testKeys(keys, testCardinality);
+    }
+
+    private static void testStrings(String[] elements, int expectedInsertions) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        BlockedBloomFilter filter = new BlockedBloomFilter(expectedInsertions, FPP);
+        ConcurrentCountMinSketch counts = new ConcurrentCountMinSketch(DEPTH, WIDTH, SEED);
+        HyperLogLogPlusPlus distinct = new HyperLogLogPlusPlus(ERROR);
+        for (String e : elements) {
+            filter.add(e);
+            counts.inc(e);
+            distinct.add(e);
+        }
+        report("separate", elements.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+
+        stopwatch = Stopwatch.createStarted();
+        SketchPipeline pipeline = new SketchPipeline(expectedInsertions, FPP, DEPTH, WIDTH, SEED, ERROR);
+        for (String e : elements) {
+            pipeline.add(e);
+        }
+        report("pipeline", elements.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+
+        check(pipeline, filter, counts, distinct);
+    }
+
+    private static void testKeys(long[] keys, int expectedInsertions) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        BlockedBloomFilter filter = new BlockedBloomFilter(expectedInsertions, FPP);
+        ConcurrentCountMinSketch counts = new ConcurrentCountMinSketch(DEPTH, WIDTH, SEED);
+        HyperLogLogPlusPlus distinct = new HyperLogLogPlusPlus(ERROR);
+        filter.addAll(keys, 0, keys.length);
+        counts.incAll(keys, 0, keys.length);
+        distinct.addAll(keys, 0, keys.length);
+        report("separate", keys.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+
+        stopwatch = Stopwatch.createStarted();
+        SketchPipeline pipeline = new SketchPipeline(expectedInsertions, FPP, DEPTH, WIDTH, SEED, ERROR);
+        pipeline.addAll(keys, 0, keys.length);
+        report("pipeline", keys.length, stopwatch.elapsed(TimeUnit.NANOSECONDS));
+
+        check(pipeline, filter, counts, distinct);
+    }
+
+    private static void check(SketchPipeline pipeline, BlockedBloomFilter filter, ConcurrentCountMinSketch counts, HyperLogLogPlusPlus distinct) {
+        if (!pipeline.filter().bits().equals(filter.bits())) {
+            throw new AssertionError("pipeline Bloom filter bits differ from the separate filter");
+        }
+        if (!Arrays.equals(pipeline.counts().table(), counts.table())) {
+            throw new AssertionError("pipeline count-min table differs from the separate sketch");
+        }
+        if (!Arrays.equals(pipeline.distinct().registers(), distinct.registers())) {
+            throw new AssertionError("pipeline HyperLogLog registers differ from the separate sketch");
+        }
+        if (pipeline.distinct().cardinality() != distinct.cardinality()) {
+            throw new AssertionError("pipeline cardinality differs from the separate sketch");
+        }
+        System.out.printf("same sketches, cardinality: %.0f\n", distinct.cardinality());
+    }
+
+    private static void report(String mode, int elements, long nanos) {
+        System.out.printf("%s, elements: %d, throughput: %.1f Mops/s\n", mode, elements, elements * 1000.0 / nanos);
+    }
+}
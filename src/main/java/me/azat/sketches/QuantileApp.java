@@ -0,0 +1,224 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Quantiles of a stream of doubles, e.g. latency percentiles, against the exact quantiles of the sorted stream
+ */
+public class QuantileApp {
+    private static final double[] QUANTILES = { 0.001, 0.01, 0.05, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999 };
+    private static final int MERGED_PARTS = 16;
+
+    public static void main(String[] args) {
+        for (String distribution : new String[]{ "uniform", "latency" }) {
+            for (int size : new int[]{ 50, 200 }) {
+                System.out.printf("--- Test KLL with k = %d, %s values ---\n", size, distribution);
+                testEstimator(1_000_000, size, distribution, KllSketch::new);
+
+                System.out.printf("--- Test t-digest with compression = %d, %s values ---\n", size, distribution);
+                testEstimator(1_000_000, size, distribution, TDigest::new);
+            }
+        }
+    }
+
+    /**
+     * For each tested quantile q the rank error is |trueRank(estimatedQuantile(q)) - q|, reported is the maximum over
+     * QUANTILES, for the sketch of the whole stream and for a merge of MERGED_PARTS sketches of its parts.
+     * p99 error is the relative error of the estimated 99th percentile value.
+     */
+    private static void testEstimator(int maxCount, int size, String distribution, EstimatorFactory factory) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+
+        for (int testCount = 1000; testCount <= maxCount; testCount *= 10) {
+            for (int i = 0; i < 3; i++) {
+                double[] values = values(distribution, testCount, i);
+
+                QuantileEstimator estimator = factory.create(size);
+                QuantileEstimator trueEstimator = new SortedArrayEstimator();
+                QuantileEstimator merged = factory.create(size);
+                QuantileEstimator[] parts = new QuantileEstimator[MERGED_PARTS];
+                for (int part = 0; part < MERGED_PARTS; part++) {
+                    parts[part] = factory.create(size);
+                }
+
+                // store
+                for (int j = 0; j < values.length; j++) {
+                    estimator.add(values[j]);
+                    trueEstimator.add(values[j]);
+                    parts[j % MERGED_PARTS].add(values[j]);
+                }
+                for (QuantileEstimator part : parts) {
+                    merged.merge(part);
+                }
+
+                // test
+                double trueP99 = trueEstimator.quantile(0.99);
+                System.out.printf(
+                        "count: %d, maxRankError: %.3f%%, mergedMaxRankError: %.3f%%, p99: %.4g, trueP99: %.4g, p99Error: %.3f%%, estimatorSize: %d, estimatorHeap: %d, trueSize: %d, trueHeap: %d\n",
+                        testCount,
+                        100 * maxRankError(estimator, trueEstimator),
+                        100 * maxRankError(merged, trueEstimator),
+                        estimator.quantile(0.99),
+                        trueP99,
+                        100 * Math.abs(estimator.quantile(0.99) - trueP99) / trueP99,
+                        estimator.serializedBytes(),
+                        estimator.heapBytes(),
+                        trueEstimator.serializedBytes(),
+                        trueEstimator.heapBytes());
+            }
+        }
+        System.out.printf("Finished in %s\n", stopwatch);
+    }
+
+    static double maxRankError(QuantileEstimator estimator, QuantileEstimator trueEstimator) {
+        double maxError = 0;
+        for (double q : QUANTILES) {
+            maxError = Math.max(maxError, Math.abs(trueEstimator.rank(estimator.quantile(q)) - q));
+        }
+        return maxError;
+    }
+
+    /**
+     * uniform in [0, 1), or latency: log-normal around 10 ms with a long tail
+     */
+    private static double[] values(String distribution, int count, long seed) {
+        Random rnd = new Random(seed);
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            switch (distribution) {
+                case "uniform":
+                    values[i] = rnd.nextDouble();
+                    break;
+                case "latency":
+                    values[i] = Math.exp(Math.log(10) + 0.8 * rnd.nextGaussian());
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown distribution: " + distribution);
+            }
+        }
+        return values;
+    }
+
+
+    interface QuantileEstimator extends MemoryFootprint {
+        void add(double e);
+
+        /**
+         * Value at normalized rank q in [0, 1]: the smallest added value with at least q of all values less than or
+         * equal to it, approximately for sketches. q = 0 and q = 1 give the exact min and max. NaN if nothing was added.
+         */
+        double quantile(double q);
+
+        /**
+         * Fraction of added values less than or equal to e. NaN if nothing was added.
+         */
+        double rank(double e);
+
+        long count();
+
+        /**
+         * Adds all values of other estimator into this one. Other must be of the same class, otherwise
+         * IllegalArgumentException is thrown.
+         */
+        void merge(QuantileEstimator other);
+    }
+
+
+    interface EstimatorFactory {
+        /**
+         * @param size accuracy parameter: k for KLL, compression for t-digest
+         */
+        QuantileEstimator create(int size);
+    }
+
+
+    /**
+     * Exact: all values, sorted on the first query after adds
+     */
+    static class SortedArrayEstimator implements QuantileEstimator {
+        private double[] values = new double[16];
+        private int count;
+        private boolean sorted = true;
+
+        @Override
+        public void add(double e) {
+            Preconditions.checkArgument(!Double.isNaN(e), "NaN can't be added");
+            if (count == values.length) {
+                values = Arrays.copyOf(values, 2 * count);
+            }
+            values[count++] = e;
+            sorted = false;
+        }
+
+        @Override
+        public double quantile(double q) {
+            Preconditions.checkArgument(q >= 0.0 && q <= 1.0, "0 <= q <= 1");
+            if (count == 0) {
+                return Double.NaN;
+            }
+            sort();
+            return values[Math.max(0, (int) Math.ceil(q * count) - 1)];
+        }
+
+        @Override
+        public double rank(double e) {
+            if (count == 0) {
+                return Double.NaN;
+            }
+            sort();
+            // first index of a value greater than e
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[mid] <= e) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return (double) low / count;
+        }
+
+        @Override
+        public long count() {
+            return count;
+        }
+
+        @Override
+        public void merge(QuantileEstimator other) {
+            Preconditions.checkArgument(other instanceof SortedArrayEstimator, "can't merge %s into SortedArrayEstimator", other);
+            SortedArrayEstimator o = (SortedArrayEstimator) other;
+            if (count + o.count > values.length) {
+                values = Arrays.copyOf(values, Math.max(count + o.count, 2 * values.length));
+            }
+            System.arraycopy(o.values, 0, values, count, o.count);
+            count += o.count;
+            sorted = false;
+        }
+
+        private void sort() {
+            if (!sorted) {
+                Arrays.sort(values, 0, count);
+                sorted = true;
+            }
+        }
+
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.object(ObjectLayout.REFERENCE + Integer.BYTES + 1) + ObjectLayout.doubleArray(values.length);
+        }
+
+        /**
+         * count and the values
+         */
+        @Override
+        public long serializedBytes() {
+            return Integer.BYTES + (long) count * Double.BYTES;
+        }
+    }
+}
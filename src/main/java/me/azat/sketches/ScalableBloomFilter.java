@@ -0,0 +1,160 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bloom filter for an unknown number of keys: a chain of classic filter stages, a new one is started
+ * whenever the last one is full. Stage i holds initialCapacity * 2^i keys at fpp * (1 - r) * r^i with r = 1/2,
+ * so false-positive rates of all stages sum up to less than fpp however many stages there are,
+ * and the number of stages grows as log2 of the overshoot.
+ * <p>
+ * Stages are {@link ConcurrentBloomFilter}s rather than {@link BlockedBloomFilter}s: a blocked filter does not get
+ * below about 3e-4 however many bits it is given, so tightening blocked stages would not bound the sum.
+ * Keys are hashed once for all stages. Contains checks every stage, newest first.
+ * A key already found in some stage is not added again, so that repeated keys do not fill stages.
+ * Not thread-safe.
+ */
+class ScalableBloomFilter implements BloomFilterApp.MembershipEstimator, BloomFilterApp.LongMembershipEstimator {
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.5;
+
+    private final int initialCapacity;
+    private final double fpp;
+    private final List<ConcurrentBloomFilter> stages = new ArrayList<>();
+
+    private long count; // keys in the last stage
+
+    /**
+     * @param initialCapacity keys of the first stage, a guess that may be off by orders of magnitude
+     * @param fpp target false-positive rate of the whole chain
+     */
+    ScalableBloomFilter(int initialCapacity, double fpp) {
+        Preconditions.checkArgument(initialCapacity > 0, "initialCapacity > 0");
+        Preconditions.checkArgument(fpp > 0.0 && fpp < 1.0, "0 < fpp < 1");
+
+        this.initialCapacity = initialCapacity;
+        this.fpp = fpp;
+        stages.add(newStage(0));
+    }
+
+    @Override
+    public void add(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(String e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(long e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public boolean contains(long e) {
+        return containsHash(Hashes.hash64(e));
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    @Override
+    public boolean contains(ByteBuffer bytes, int offset, int length) {
+        return containsHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    private void addHash(long hash) {
+        if (containsHash(hash)) {
+            return;
+        }
+        if (count >= capacity(stages.size() - 1)) {
+            stages.add(newStage(stages.size()));
+            count = 0;
+        }
+        stages.get(stages.size() - 1).addHash(hash);
+        count++;
+    }
+
+    private boolean containsHash(long hash) {
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            if (stages.get(i).containsHash(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ConcurrentBloomFilter newStage(int stage) {
+        long capacity = capacity(stage);
+        Preconditions.checkState(capacity <= Integer.MAX_VALUE, "stage %s of %s keys is too large", stage, capacity);
+        return new ConcurrentBloomFilter((int) capacity, fpp * (1 - TIGHTENING) * Math.pow(TIGHTENING, stage));
+    }
+
+    private long capacity(int stage) {
+        return initialCapacity * (long) Math.pow(GROWTH, stage);
+    }
+
+    int stages() {
+        return stages.size();
+    }
+
+    /**
+     * ORs stages of the same index, copies stages other has beyond this one's. Filters must have the same
+     * initialCapacity and fpp. Stages that end up holding more than their capacity exceed their fpp share,
+     * so merging filters that each grew large may overshoot the target.
+     */
+    @Override
+    public void merge(BloomFilterApp.MembershipEstimator estimator) {
+        Preconditions.checkArgument(estimator instanceof ScalableBloomFilter, "can't merge %s into ScalableBloomFilter", estimator);
+        ScalableBloomFilter other = (ScalableBloomFilter) estimator;
+        Preconditions.checkArgument(
+                initialCapacity == other.initialCapacity && fpp == other.fpp,
+                "can merge only filters with the same initialCapacity and fpp");
+
+        int common = Math.min(stages.size(), other.stages.size());
+        for (int i = 0; i < common; i++) {
+            stages.get(i).merge(other.stages.get(i));
+        }
+        if (other.stages.size() > stages.size()) {
+            for (int i = common; i < other.stages.size(); i++) {
+                ConcurrentBloomFilter stage = newStage(i);
+                stage.merge(other.stages.get(i));
+                stages.add(stage);
+            }
+            count = other.count;
+        } else if (other.stages.size() == stages.size()) {
+            count += other.count;
+        }
+    }
+
+    @Override
+    public long heapBytes() {
+        long bytes = ObjectLayout.object(Integer.BYTES + Double.BYTES + Long.BYTES + ObjectLayout.REFERENCE)
+                + ObjectLayout.object(Integer.BYTES + ObjectLayout.REFERENCE) // ArrayList
+                + ObjectLayout.referenceArray(stages.size());
+        for (ConcurrentBloomFilter stage : stages) {
+            bytes += stage.heapBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Bits of all stages and the count of the last one
+     */
+    @Override
+    public long serializedBytes() {
+        long bytes = Long.BYTES;
+        for (ConcurrentBloomFilter stage : stages) {
+            bytes += stage.serializedBytes();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,195 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Blocking client of a {@link SketchServer}. Requests are pipelined: {@link #send} only buffers a request,
+ * {@link #flush()} writes every buffered one, and {@link #receive()} reads the next response in request order.
+ * The one-request methods, e.g. {@link #count}, send, flush and receive at once. Not thread-safe.
+ */
+final class SketchClient implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final SocketChannel channel;
+    private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+    SketchClient(InetSocketAddress address) throws IOException {
+        this.channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        in.flip();
+    }
+
+    /**
+     * Buffers a request of keys[from, from + length) against the sketch. Flushing requests without receiving their
+     * responses blocks once the server holds {@link SketchProtocol#MAX_PENDING_OUTPUT} bytes of them: bound the
+     * {@link SketchProtocol#responseBytes} in flight below that.
+     */
+    void send(byte op, String sketch, String[] keys, int from, int length) {
+        Preconditions.checkArgument(op != SketchProtocol.CARDINALITY, "cardinality takes no keys");
+        int frame = beginFrame(op, sketch);
+        ensureOutput(Integer.BYTES);
+        out.putInt(length);
+        for (int i = from; i < from + length; i++) {
+            putKey(keys[i]);
+        }
+        endFrame(frame);
+    }
+
+    void sendCardinality(String sketch) {
+        endFrame(beginFrame(SketchProtocol.CARDINALITY, sketch));
+    }
+
+    void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Payload of the next response, positioned after its OK status; valid until the next receive
+     *
+     * @throws IOException with the server's message if the request failed
+     */
+    ByteBuffer receive() throws IOException {
+        fill(Integer.BYTES);
+        int length = in.getInt();
+        Preconditions.checkState(length > 0, "response of %s bytes", length);
+        fill(length);
+        ByteBuffer payload = in.slice();
+        payload.limit(length);
+        in.position(in.position() + length);
+        if (payload.get() == SketchProtocol.ERROR) {
+            throw new IOException("sketch server: " + KeyFile.decode(payload, payload.position(), payload.remaining()));
+        }
+        return payload;
+    }
+
+    void add(String sketch, String... keys) throws IOException {
+        send(SketchProtocol.ADD, sketch, keys, 0, keys.length);
+        flush();
+        receive();
+    }
+
+    boolean[] contains(String sketch, String... keys) throws IOException {
+        send(SketchProtocol.CONTAINS, sketch, keys, 0, keys.length);
+        flush();
+        ByteBuffer payload = receive();
+        boolean[] result = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = (payload.get(payload.position() + (i >>> 3)) & (1 << (i & 7))) != 0;
+        }
+        return result;
+    }
+
+    void inc(String sketch, String... keys) throws IOException {
+        send(SketchProtocol.INC, sketch, keys, 0, keys.length);
+        flush();
+        receive();
+    }
+
+    long[] count(String sketch, String... keys) throws IOException {
+        send(SketchProtocol.COUNT, sketch, keys, 0, keys.length);
+        flush();
+        ByteBuffer payload = receive();
+        long[] result = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = payload.getLong();
+        }
+        return result;
+    }
+
+    double cardinality(String sketch) throws IOException {
+        sendCardinality(sketch);
+        flush();
+        return receive().getDouble();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int beginFrame(byte op, String sketch) {
+        byte[] name = sketch.getBytes(StandardCharsets.UTF_8);
+        Preconditions.checkArgument(name.length <= SketchProtocol.MAX_NAME, "name of at most 255 bytes");
+        ensureOutput(Integer.BYTES + 2 + name.length);
+        int frame = out.position();
+        out.putInt(0);
+        out.put(op);
+        out.put((byte) name.length);
+        out.put(name);
+        return frame;
+    }
+
+    private void endFrame(int frame) {
+        int length = out.position() - frame - Integer.BYTES;
+        Preconditions.checkArgument(length <= SketchProtocol.MAX_FRAME, "request of more than MAX_FRAME bytes");
+        out.putInt(frame, length);
+    }
+
+    /**
+     * ASCII keys, e.g. numbers, are copied char by char, others encoded to UTF-8
+     */
+    private void putKey(String key) {
+        int n = key.length();
+        ensureOutput(Short.BYTES + n);
+        int start = out.position();
+        out.putShort((short) 0);
+        int i = 0;
+        while (i < n && key.charAt(i) < 0x80) {
+            out.put((byte) key.charAt(i++));
+        }
+        if (i < n) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            out.position(start + Short.BYTES);
+            ensureOutput(bytes.length);
+            out.put(bytes);
+        }
+        int length = out.position() - start - Short.BYTES;
+        Preconditions.checkArgument(length <= SketchProtocol.MAX_KEY, "key of at most 65535 bytes");
+        out.putShort(start, (short) length);
+    }
+
+    private void ensureOutput(int bytes) {
+        if (out.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * out.capacity(), out.position() + bytes));
+            out.flip();
+            grown.put(out);
+            out = grown;
+        }
+    }
+
+    /**
+     * Reads until at least n bytes are unread
+     */
+    private void fill(int n) throws IOException {
+        if (in.remaining() >= n) {
+            return;
+        }
+        if (in.capacity() < n) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * in.capacity(), n));
+            grown.put(in);
+            in = grown;
+        } else {
+            in.compact();
+        }
+        while (in.position() < n) {
+            if (channel.read(in) < 0) {
+                throw new EOFException("sketch server closed the connection");
+            }
+        }
+        in.flip();
+    }
+}
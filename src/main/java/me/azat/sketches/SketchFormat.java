@@ -0,0 +1,349 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One binary layout for our Bloom, count-min and HyperLogLog sketches: a 64-byte header followed by the raw
+ * bits, counters or registers, all little-endian.
+ * <pre>
+ *  0  int    magic "SKCH"
+ *  4  short  version
+ *  6  short  type: 1 Bloom, 2 count-min, 3 HyperLogLog
+ *  8  ...    parameters of the type: blocks and hashCount; depth, width and seed; precision, estimator and layout
+ * 64  ...    payload: 64-byte blocks of bits; depth x width row-major long counters; 2^precision byte registers
+ *            or sorted int sparse entries
+ * </pre>
+ * A file is queried in place through read-only mappings, nothing is deserialized onto the heap, so opening even
+ * a large snapshot costs a header read, and processes mapping the same file share it through the page cache.
+ * Payload starts at a cache-line offset of the page-aligned file, which keeps Bloom blocks aligned.
+ * Count-min tables are mapped in 1 GB segments, past the 2 GB limit of a single mapping; a {@link BlockedBloomFilter}
+ * needs one buffer, so a Bloom file beyond that is opened with {@link MappedBloomFilter}.
+ * <p>
+ * A HyperLogLog file records the estimator of the sketch it was written from, so that the view answers as that
+ * sketch does: Ertl's for {@link HyperLogLogPlusPlus}, raw HLL with linear counting for {@link IncrementalHyperLogLog}.
+ * A sparse HyperLogLog++ keeps its sparse entries, and with them its precision at small cardinalities.
+ */
+final class SketchFormat {
+    static final int MAGIC = 0x534B4348; // SKCH
+    static final short VERSION = 1;
+    static final short BLOOM = 1;
+    static final short COUNT_MIN = 2;
+    static final short HYPER_LOG_LOG = 3;
+    static final int HEADER_BYTES = 64;
+    static final int SEGMENT_BYTES = 1 << 30;
+
+    // HyperLogLog estimators and layouts, zero is what files without them hold
+    static final short ERTL = 0;
+    static final short CLASSIC = 1;
+    static final short DENSE = 0;
+    static final short SPARSE = 1;
+
+    private static final int SEGMENT_LONGS_SHIFT = 27; // longs per segment
+    private static final int SEGMENT_LONGS_MASK = (1 << SEGMENT_LONGS_SHIFT) - 1;
+
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    private SketchFormat() {
+    }
+
+    static void write(BlockedBloomFilter filter, Path path) throws IOException {
+        ByteBuffer header = header(BLOOM);
+        header.putInt(filter.blocks()).putInt(filter.hashCount());
+        write(path, header, filter.bits());
+    }
+
+    /**
+     * Stripes are summed, so the file holds a single table
+     */
+    static void write(ConcurrentCountMinSketch sketch, Path path) throws IOException {
+        ByteBuffer header = header(COUNT_MIN);
+        header.putInt(sketch.depth()).putInt(sketch.width()).putLong(sketch.seed());
+
+        long[] table = sketch.table();
+        try (FileChannel channel = create(path)) {
+            writeHeader(channel, header);
+            ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (long counter : table) {
+                if (!chunk.hasRemaining()) {
+                    writeFully(channel, chunk);
+                }
+                chunk.putLong(counter);
+            }
+            writeFully(channel, chunk);
+        }
+    }
+
+    /**
+     * A sparse sketch is written as its sparse entries
+     */
+    static void write(HyperLogLogPlusPlus sketch, Path path) throws IOException {
+        int[] entries = sketch.sparseEntries();
+        if (entries == null) {
+            writeHyperLogLog(sketch.precision(), ERTL, DENSE, ByteBuffer.wrap(sketch.registers()), path);
+            return;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(entries.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        payload.asIntBuffer().put(entries);
+        writeHyperLogLog(sketch.precision(), ERTL, SPARSE, payload, path);
+    }
+
+    static void write(IncrementalHyperLogLog sketch, Path path) throws IOException {
+        writeHyperLogLog(sketch.precision(), CLASSIC, DENSE, ByteBuffer.wrap(sketch.registers()), path);
+    }
+
+    /**
+     * The filter runs over the read-only mapping: contains works, add and merge into it throw ReadOnlyBufferException
+     */
+    static BlockedBloomFilter mapBloomFilter(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, path, BLOOM);
+            int blocks = header.getInt(8);
+            int hashCount = header.getInt(12);
+            long payloadBytes = (long) blocks * BlockedBloomFilter.BLOCK_BYTES;
+            checkPayload(channel, payloadBytes, path);
+            Preconditions.checkArgument(payloadBytes <= Integer.MAX_VALUE,
+                    "%s does not fit in a single mapping, open it with MappedBloomFilter", path);
+            return new BlockedBloomFilter(map(channel, HEADER_BYTES, payloadBytes), blocks, hashCount);
+        }
+    }
+
+    static CountMinView mapCountMinSketch(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, path, COUNT_MIN);
+            int depth = header.getInt(8);
+            int width = header.getInt(12);
+            long seed = header.getLong(16);
+            Preconditions.checkArgument(depth > 0 && width > 0, "corrupted count-min sketch in %s", path);
+            long payloadBytes = (long) depth * width * Long.BYTES;
+            checkPayload(channel, payloadBytes, path);
+
+            ByteBuffer[] segments = new ByteBuffer[(int) ((payloadBytes + SEGMENT_BYTES - 1) / SEGMENT_BYTES)];
+            for (int i = 0; i < segments.length; i++) {
+                long offset = (long) i * SEGMENT_BYTES;
+                segments[i] = map(channel, HEADER_BYTES + offset, Math.min(SEGMENT_BYTES, payloadBytes - offset));
+            }
+            return new CountMinView(segments, depth, width, seed);
+        }
+    }
+
+    static HyperLogLogView mapHyperLogLog(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = readHeader(channel, path, HYPER_LOG_LOG);
+            int precision = header.getInt(8);
+            short estimator = header.getShort(12);
+            short layout = header.getShort(14);
+            Preconditions.checkArgument(
+                    precision >= HyperLogLogPlusPlus.MIN_PRECISION && precision <= HyperLogLogPlusPlus.MAX_PRECISION
+                            && (estimator == ERTL || estimator == CLASSIC)
+                            && (layout == DENSE || layout == SPARSE && estimator == ERTL),
+                    "corrupted HyperLogLog in %s", path);
+            // sparse entries are as many as the file holds, at most m / 4 of them
+            long payloadBytes = layout == DENSE ? 1L << precision : channel.size() - HEADER_BYTES;
+            Preconditions.checkArgument(layout == DENSE || payloadBytes % Integer.BYTES == 0
+                    && payloadBytes / Integer.BYTES < 1L << (precision - 2), "corrupted HyperLogLog in %s", path);
+            checkPayload(channel, payloadBytes, path);
+            return new HyperLogLogView(map(channel, HEADER_BYTES, payloadBytes), precision, estimator, layout);
+        }
+    }
+
+
+    /**
+     * Read-only count-min sketch over a mapped table, answers exactly as the {@link ConcurrentCountMinSketch} it was written from
+     */
+    static class CountMinView implements MemoryFootprint {
+        private final ByteBuffer[] segments;
+        private final int depth;
+        private final int width;
+        private final long seed;
+
+        /**
+         * @param segments the table in segments of SEGMENT_BYTES, the last one may be shorter
+         */
+        CountMinView(ByteBuffer[] segments, int depth, int width, long seed) {
+            this.segments = segments;
+            this.depth = depth;
+            this.width = width;
+            this.seed = seed;
+        }
+
+        long count(String e) {
+            return countHash(Hashes.hash64(e));
+        }
+
+        long count(long e) {
+            return countHash(Hashes.hash64(e));
+        }
+
+        private long countHash(long hash) {
+            long h1 = Hashes.fmix64(hash ^ seed);
+            long h2 = Hashes.rehash(h1) | 1;
+
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                long index = (long) row * width + ConcurrentCountMinSketch.column(h1 + row * h2, width);
+                ByteBuffer segment = segments[(int) (index >>> SEGMENT_LONGS_SHIFT)];
+                min = Math.min(min, segment.getLong((int) (index & SEGMENT_LONGS_MASK) * Long.BYTES));
+            }
+            return min;
+        }
+
+        /**
+         * Mapped pages live in the page cache, not on the heap
+         */
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.object(2 * Integer.BYTES + Long.BYTES + ObjectLayout.REFERENCE)
+                    + ObjectLayout.referenceArray(segments.length);
+        }
+
+        @Override
+        public long serializedBytes() {
+            return HEADER_BYTES + (long) depth * width * Long.BYTES;
+        }
+    }
+
+
+    /**
+     * Read-only HyperLogLog over mapped registers or sparse entries. Cardinality scans registers into a histogram for
+     * the estimator of the written sketch, so it matches that sketch: exactly for {@link HyperLogLogPlusPlus}, up to
+     * rounding of the running sum for {@link IncrementalHyperLogLog}. Sparse entries need only their count.
+     */
+    static class HyperLogLogView implements MemoryFootprint {
+        private final ByteBuffer payload;
+        private final int p;
+        private final short estimator;
+        private final short layout;
+
+        HyperLogLogView(ByteBuffer payload, int precision, short estimator, short layout) {
+            this.payload = payload;
+            this.p = precision;
+            this.estimator = estimator;
+            this.layout = layout;
+        }
+
+        double cardinality() {
+            if (layout == SPARSE) {
+                return HyperLogLogPlusPlus.sparseEstimate(payload.capacity() / Integer.BYTES);
+            }
+            int m = 1 << p;
+            int q = 64 - p;
+            int[] histogram = new int[q + 2];
+            for (int i = 0; i < m; i++) {
+                histogram[payload.get(i)]++;
+            }
+            if (estimator == ERTL) {
+                return HyperLogLogPlusPlus.estimate(histogram, m, q);
+            }
+            double inverseSum = 0;
+            for (int k = 0; k < histogram.length; k++) {
+                inverseSum += Math.scalb((double) histogram[k], -k);
+            }
+            return IncrementalHyperLogLog.estimate(inverseSum, histogram[0], m);
+        }
+
+        boolean isSparse() {
+            return layout == SPARSE;
+        }
+
+        @Override
+        public long heapBytes() {
+            return ObjectLayout.object(Integer.BYTES + 2 * Short.BYTES + ObjectLayout.REFERENCE);
+        }
+
+        @Override
+        public long serializedBytes() {
+            return HEADER_BYTES + payload.capacity();
+        }
+    }
+
+
+    private static void writeHyperLogLog(int precision, short estimator, short layout, ByteBuffer payload, Path path)
+            throws IOException {
+        ByteBuffer header = header(HYPER_LOG_LOG);
+        header.putInt(precision).putShort(estimator).putShort(layout);
+        write(path, header, payload);
+    }
+
+    /**
+     * Header of the type, positioned to put its parameters
+     */
+    static ByteBuffer header(short type) {
+        return ByteBuffer.allocate(HEADER_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort(type);
+    }
+
+    private static void write(Path path, ByteBuffer header, ByteBuffer payload) throws IOException {
+        try (FileChannel channel = create(path)) {
+            writeHeader(channel, header);
+            while (payload.hasRemaining()) {
+                channel.write(payload);
+            }
+        }
+    }
+
+    private static FileChannel create(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Writes all 64 bytes of the header at the current position of the channel, however many of them the parameters took
+     */
+    static void writeHeader(FileChannel channel, ByteBuffer header) throws IOException {
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    /**
+     * Reads and checks the header of the type, the result is positioned at its parameters
+     */
+    static ByteBuffer readHeader(FileChannel channel, Path path, short type) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IllegalArgumentException(path + " is not a sketch file");
+            }
+        }
+        header.flip();
+
+        Preconditions.checkArgument(header.getInt() == MAGIC, "%s is not a sketch file", path);
+        short version = header.getShort();
+        Preconditions.checkArgument(version == VERSION, "%s has unsupported version %s", path, version);
+        short actualType = header.getShort();
+        Preconditions.checkArgument(actualType == type, "%s holds sketch of type %s, not %s", path, actualType, type);
+        return header;
+    }
+
+    /**
+     * Writes the buffer up to its position and clears it for reuse
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Maps size bytes at the offset read-only. The mapping stays valid after the channel is closed.
+     */
+    private static ByteBuffer map(FileChannel channel, long offset, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void checkPayload(FileChannel channel, long payloadBytes, Path path) throws IOException {
+        Preconditions.checkArgument(channel.size() - HEADER_BYTES == payloadBytes, "%s is truncated or corrupted", path);
+    }
+}
@@ -0,0 +1,94 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Membership, frequency and distinct count of one stream, with one hash per element instead of one per sketch.
+ * <p>
+ * The hand-written sketches derive everything they need from the same 64-bit {@link Hashes} value, so the pipeline
+ * hashes a key once and hands the hash to all three:
+ * the Bloom filter takes its block from the high half and k probes a + i * b from a rehash (Kirsch-Mitzenmacher),
+ * the count-min sketch takes row columns h1 + row * h2 from the hash mixed with its seed,
+ * and the HyperLogLog takes its register from the top bits and the rank from the rest.
+ * Queries go to the sketches themselves. Not thread-safe, as the Bloom filter and HyperLogLog are not.
+ */
+class SketchPipeline implements MemoryFootprint {
+    private final BlockedBloomFilter filter;
+    private final ConcurrentCountMinSketch counts;
+    private final HyperLogLogPlusPlus distinct;
+
+    SketchPipeline(int expectedInsertions, double fpp, int depth, int width, long seed, double error) {
+        this(new BlockedBloomFilter(expectedInsertions, fpp), new ConcurrentCountMinSketch(depth, width, seed), new HyperLogLogPlusPlus(error));
+    }
+
+    /**
+     * Over existing, e.g. restored, sketches
+     */
+    SketchPipeline(BlockedBloomFilter filter, ConcurrentCountMinSketch counts, HyperLogLogPlusPlus distinct) {
+        this.filter = Preconditions.checkNotNull(filter);
+        this.counts = Preconditions.checkNotNull(counts);
+        this.distinct = Preconditions.checkNotNull(distinct);
+    }
+
+    void add(String e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    void add(long e) {
+        addHash(Hashes.hash64(e));
+    }
+
+    void add(ByteBuffer bytes, int offset, int length) {
+        addHash(Hashes.hash64(bytes, offset, length));
+    }
+
+    /**
+     * Adds keys[offset, offset + length), hashing a batch of keys before updating the sketches
+     */
+    void addAll(long[] keys, int offset, int length) {
+        for (Hashes.Rounds round = Hashes.rounds(keys, offset, length); round.next(); ) {
+            for (int i = 0; i < round.size(); i++) {
+                addHash(round.hash(i));
+            }
+        }
+    }
+
+    private void addHash(long hash) {
+        filter.addHash(hash);
+        counts.addHash(hash, 1);
+        distinct.addHash(hash);
+    }
+
+    BlockedBloomFilter filter() {
+        return filter;
+    }
+
+    ConcurrentCountMinSketch counts() {
+        return counts;
+    }
+
+    HyperLogLogPlusPlus distinct() {
+        return distinct;
+    }
+
+    /**
+     * Merges sketch by sketch, with the same requirements as their own merges
+     */
+    void merge(SketchPipeline other) {
+        filter.merge(other.filter);
+        counts.merge(other.counts);
+        distinct.merge(other.distinct);
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(3 * ObjectLayout.REFERENCE) + filter.heapBytes() + counts.heapBytes() + distinct.heapBytes();
+    }
+
+    @Override
+    public long serializedBytes() {
+        return filter.serializedBytes() + counts.serializedBytes() + distinct.serializedBytes();
+    }
+}
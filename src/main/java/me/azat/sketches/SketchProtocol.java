@@ -0,0 +1,49 @@
+package me.azat.sketches;
+
+/**
+ * Wire format of {@link SketchServer}: frames of a 4-byte big-endian payload length and the payload.
+ * <p>
+ * Request: op, sketch name as a 1-byte length and its bytes, then for every op but cardinality a 4-byte key count
+ * and each key as a 2-byte length and its bytes, UTF-8 as in a {@link KeyFile}. A request is a batch of keys against
+ * one sketch. Keys are hashed as bytes, as keys read from a {@link KeyFile} are: the same as the String for ASCII keys.
+ * <p>
+ * Response: status, then if OK the op's result: nothing for add and inc, a bit per key for contains (lowest bit of
+ * the first byte first), an 8-byte count per key for count, an 8-byte double for cardinality; if ERROR, a UTF-8 message.
+ * Requests may be pipelined: responses on a connection come back in request order. A server stops reading
+ * a connection while MAX_PENDING_OUTPUT bytes of its responses are unsent, so a client that writes without reading
+ * must keep less than that in flight, or both sides block on a full socket.
+ */
+final class SketchProtocol {
+    static final byte ADD = 1;
+    static final byte CONTAINS = 2;
+    static final byte INC = 3;
+    static final byte COUNT = 4;
+    static final byte CARDINALITY = 5;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    static final int MAX_FRAME = 1 << 20;
+    static final int MAX_NAME = 255;
+    static final int MAX_KEY = 65535;
+    static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    private SketchProtocol() {
+    }
+
+    /**
+     * Length of the frame of an OK response to the op over the given number of keys
+     */
+    static int responseBytes(byte op, int keys) {
+        switch (op) {
+            case CONTAINS:
+                return Integer.BYTES + 1 + (keys + 7) / 8;
+            case COUNT:
+                return Integer.BYTES + 1 + keys * Long.BYTES;
+            case CARDINALITY:
+                return Integer.BYTES + 1 + Double.BYTES;
+            default:
+                return Integer.BYTES + 1;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Embedded server of named sketches, speaking {@link SketchProtocol} over non-blocking NIO.
+ * <p>
+ * One selector thread serves all connections and runs every command, so sketches need not be thread-safe and
+ * a batch of keys costs one frame and one lookup of its sketch. Keys are handed to the estimators as slices of the
+ * connection's read buffer, which hand-written sketches hash in place. A connection is not read while
+ * {@link SketchProtocol#MAX_PENDING_OUTPUT} bytes of its responses are unsent, so a client that does not read can't
+ * grow the server's buffers.
+ * A malformed frame or a failed command gets an ERROR response; a frame length over MAX_FRAME closes the connection.
+ */
+final class SketchServer implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_ERROR_BYTES = 1024;
+
+    private final Map<String, Object> sketches = new ConcurrentHashMap<>();
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread loop;
+    private volatile boolean running = true;
+
+    /**
+     * Binds the address, e.g. loopback with port 0 for any free port; requests are served after {@link #start()}
+     */
+    SketchServer(InetSocketAddress address) throws IOException {
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(address);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.loop = new Thread(this::run, "sketch-server");
+        loop.setDaemon(true);
+    }
+
+    SketchServer register(String name, BloomFilterApp.MembershipEstimator estimator) {
+        return registerSketch(name, estimator);
+    }
+
+    SketchServer register(String name, CountMinSketchApp.HeavyHittersEstimator estimator) {
+        return registerSketch(name, estimator);
+    }
+
+    SketchServer register(String name, HyperLogLogApp.CardinalityEstimator estimator) {
+        return registerSketch(name, estimator);
+    }
+
+    private SketchServer registerSketch(String name, Object estimator) {
+        Preconditions.checkArgument(name.getBytes(StandardCharsets.UTF_8).length <= SketchProtocol.MAX_NAME, "name of at most 255 bytes");
+        Preconditions.checkArgument(sketches.putIfAbsent(name, Preconditions.checkNotNull(estimator)) == null, "sketch %s already exists", name);
+        return this;
+    }
+
+    void start() {
+        loop.start();
+    }
+
+    InetSocketAddress address() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (loop.isAlive()) {
+            try {
+                loop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        ((Connection) key.attachment()).read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        ((Connection) key.attachment()).flush();
+                    }
+                } catch (IOException e) {
+                    close(key);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private static void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+    }
+
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * Runs every complete frame read so far, then sends what it can of the responses
+         */
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close(key);
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= Integer.BYTES) {
+                int length = in.getInt(in.position());
+                if (length < 0 || length > SketchProtocol.MAX_FRAME) {
+                    close(key);
+                    return;
+                }
+                if (in.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+                int start = in.position() + Integer.BYTES;
+                respond(start, start + length);
+                in.position(start + length);
+            }
+            in.compact();
+            if (!in.hasRemaining()) {
+                // a frame larger than the buffer
+                in = grow(in, 2 * in.capacity());
+            }
+            flush();
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            int ops = out.position() > 0 ? SelectionKey.OP_WRITE : 0;
+            if (out.position() < SketchProtocol.MAX_PENDING_OUTPUT) {
+                ops |= SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Writes the response to the request in[start, end) into out
+         */
+        private void respond(int start, int end) {
+            ensureOutput(Integer.BYTES + 1 + MAX_ERROR_BYTES);
+            int frame = out.position();
+            out.putInt(0);
+            out.put(SketchProtocol.OK);
+            try {
+                execute(start, end);
+            } catch (RuntimeException e) {
+                out.position(frame + Integer.BYTES);
+                out.put(SketchProtocol.ERROR);
+                byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+                out.put(message, 0, Math.min(message.length, MAX_ERROR_BYTES));
+            }
+            out.putInt(frame, out.position() - frame - Integer.BYTES);
+        }
+
+        private void execute(int start, int end) {
+            int p = start;
+            Preconditions.checkArgument(end - p >= 2, "frame too short");
+            byte op = in.get(p++);
+            int nameLength = in.get(p++) & 0xFF;
+            Preconditions.checkArgument(end - p >= nameLength, "frame too short");
+            String name = KeyFile.decode(in, p, nameLength);
+            p += nameLength;
+            Object sketch = sketches.get(name);
+            Preconditions.checkArgument(sketch != null, "unknown sketch %s", name);
+
+            if (op == SketchProtocol.CARDINALITY) {
+                Preconditions.checkArgument(p == end, "cardinality takes no keys");
+                Preconditions.checkArgument(sketch instanceof HyperLogLogApp.CardinalityEstimator, "%s has no cardinality", name);
+                out.putDouble(((HyperLogLogApp.CardinalityEstimator) sketch).cardinality());
+                return;
+            }
+
+            Preconditions.checkArgument(end - p >= Integer.BYTES, "frame too short");
+            int count = in.getInt(p);
+            Preconditions.checkArgument(count >= 0, "count >= 0");
+            p += Integer.BYTES;
+            int q = p;
+            for (int i = 0; i < count; i++) {
+                Preconditions.checkArgument(end - q >= Short.BYTES, "frame too short for %s keys", count);
+                int length = in.getShort(q) & 0xFFFF;
+                q += Short.BYTES;
+                Preconditions.checkArgument(end - q >= length, "frame too short for %s keys", count);
+                q += length;
+            }
+            Preconditions.checkArgument(q == end, "bytes after %s keys", count);
+            // at most 8 bytes of result per key, keys take at least 2 bytes of the frame
+            ensureOutput(count * Long.BYTES);
+
+            switch (op) {
+                case SketchProtocol.ADD:
+                    if (sketch instanceof BloomFilterApp.MembershipEstimator) {
+                        BloomFilterApp.MembershipEstimator filter = (BloomFilterApp.MembershipEstimator) sketch;
+                        for (int i = 0; i < count; i++) {
+                            int length = in.getShort(p) & 0xFFFF;
+                            filter.add(in, p + Short.BYTES, length);
+                            p += Short.BYTES + length;
+                        }
+                    } else {
+                        Preconditions.checkArgument(sketch instanceof HyperLogLogApp.CardinalityEstimator, "can't add to %s", name);
+                        HyperLogLogApp.CardinalityEstimator hll = (HyperLogLogApp.CardinalityEstimator) sketch;
+                        for (int i = 0; i < count; i++) {
+                            int length = in.getShort(p) & 0xFFFF;
+                            hll.add(in, p + Short.BYTES, length);
+                            p += Short.BYTES + length;
+                        }
+                    }
+                    break;
+                case SketchProtocol.CONTAINS:
+                    Preconditions.checkArgument(sketch instanceof BloomFilterApp.MembershipEstimator, "%s has no contains", name);
+                    BloomFilterApp.MembershipEstimator filter = (BloomFilterApp.MembershipEstimator) sketch;
+                    int bits = 0;
+                    for (int i = 0; i < count; i++) {
+                        int length = in.getShort(p) & 0xFFFF;
+                        if (filter.contains(in, p + Short.BYTES, length)) {
+                            bits |= 1 << (i & 7);
+                        }
+                        p += Short.BYTES + length;
+                        if ((i & 7) == 7 || i == count - 1) {
+                            out.put((byte) bits);
+                            bits = 0;
+                        }
+                    }
+                    break;
+                case SketchProtocol.INC:
+                    Preconditions.checkArgument(sketch instanceof CountMinSketchApp.HeavyHittersEstimator, "can't inc %s", name);
+                    CountMinSketchApp.HeavyHittersEstimator counts = (CountMinSketchApp.HeavyHittersEstimator) sketch;
+                    for (int i = 0; i < count; i++) {
+                        int length = in.getShort(p) & 0xFFFF;
+                        counts.inc(in, p + Short.BYTES, length);
+                        p += Short.BYTES + length;
+                    }
+                    break;
+                case SketchProtocol.COUNT:
+                    Preconditions.checkArgument(sketch instanceof CountMinSketchApp.HeavyHittersEstimator, "%s has no count", name);
+                    CountMinSketchApp.HeavyHittersEstimator sketchCounts = (CountMinSketchApp.HeavyHittersEstimator) sketch;
+                    for (int i = 0; i < count; i++) {
+                        int length = in.getShort(p) & 0xFFFF;
+                        out.putLong(sketchCounts.count(in, p + Short.BYTES, length));
+                        p += Short.BYTES + length;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown op " + op);
+            }
+        }
+
+        private void ensureOutput(int bytes) {
+            if (out.remaining() < bytes) {
+                out = grow(out, Math.max(2 * out.capacity(), out.position() + bytes));
+            }
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
@@ -0,0 +1,139 @@
+package me.azat.sketches;
+
+import com.google.common.base.Stopwatch;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for {@link SketchServer} over loopback: throughput in keys per second and latency of a batch, from
+ * sending it to reading its response, per op.
+ * <p>
+ * Each client connection cycles through add to "seen" and "users", inc of "counts", contains in "seen" and count of
+ * "counts", with batches of keys drawn from its own uniform stream. Up to a pipeline depth of batches are in flight
+ * on a connection, so latency includes the wait behind earlier batches: a depth of 1 measures round trips.
+ * Fewer are in flight if their responses would reach the server's {@link SketchProtocol#MAX_PENDING_OUTPUT}.
+ */
+public class SketchServerApp {
+    private static final byte[] OPS = {
+            SketchProtocol.ADD, SketchProtocol.ADD, SketchProtocol.INC, SketchProtocol.CONTAINS, SketchProtocol.COUNT };
+    private static final String[] SKETCHES = { "seen", "users", "counts", "seen", "counts" };
+    private static final String[] NAMES = { "add seen", "add users", "inc counts", "contains seen", "count counts" };
+    private static final int KEY_POOL = 1 << 16;
+
+    /**
+     * -Dserver.clients connections, each sending -Dserver.batches batches of -Dserver.batch keys,
+     * at most -Dserver.pipeline of them in flight
+     */
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        int clients = Integer.getInteger("server.clients", 4);
+        int batches = Integer.getInteger("server.batches", 50_000);
+        int batch = Integer.getInteger("server.batch", 100);
+        int pipeline = Integer.getInteger("server.pipeline", 16);
+
+        try (SketchServer server = new SketchServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            server.register("seen", new BlockedBloomFilter(1_000_000, 0.01))
+                    .register("counts", new ConcurrentCountMinSketch(3, 32000, 12345))
+                    .register("users", new HyperLogLogPlusPlus(0.01));
+            server.start();
+            InetSocketAddress address = server.address();
+
+            // warm-up run, then the measured one
+            runClients(address, clients, batches / 10, batch, pipeline);
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            List<TDigest[]> latencies = runClients(address, clients, batches, batch, pipeline);
+            double seconds = stopwatch.elapsed(TimeUnit.NANOSECONDS) / 1e9;
+
+            System.out.printf("clients: %d, batch: %d, pipeline: %d, %.2f s, %.0f batches/s, %.0f keys/s%n",
+                    clients, batch, pipeline, seconds, (double) clients * batches / seconds,
+                    (double) clients * batches * batch / seconds);
+            for (int op = 0; op < OPS.length; op++) {
+                TDigest merged = new TDigest();
+                for (TDigest[] client : latencies) {
+                    merged.merge(client[op]);
+                }
+                System.out.printf("%-13s batches: %7d, latency p50: %7.1f us, p99: %7.1f us, max: %8.1f us%n",
+                        NAMES[op], merged.count(), merged.quantile(0.5), merged.quantile(0.99), merged.quantile(1.0));
+            }
+
+            try (SketchClient client = new SketchClient(address)) {
+                System.out.printf("users cardinality: %.0f, count of key 0: %d, contains key 0: %b%n",
+                        client.cardinality("users"), client.count("counts", "0")[0], client.contains("seen", "0")[0]);
+            }
+        }
+    }
+
+    private static List<TDigest[]> runClients(InetSocketAddress address, int clients, int batches, int batch, int pipeline)
+            throws InterruptedException, ExecutionException {
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<TDigest[]>> futures = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                int client = i;
+                futures.add(executor.submit(() -> runClient(address, client, batches, batch, pipeline)));
+            }
+            List<TDigest[]> latencies = new ArrayList<>();
+            for (Future<TDigest[]> future : futures) {
+                latencies.add(future.get());
+            }
+            return latencies;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Latency in microseconds of the client's batches, a digest per op
+     */
+    private static TDigest[] runClient(InetSocketAddress address, int client, int batches, int batch, int pipeline)
+            throws IOException {
+        String[] keys = new StreamGenerator(client, 1_000_000).uniformSampler(1_000_000, client)
+                .stream(KEY_POOL)
+                .mapToObj(String::valueOf)
+                .toArray(String[]::new);
+        TDigest[] latencies = new TDigest[OPS.length];
+        for (int op = 0; op < OPS.length; op++) {
+            latencies[op] = new TDigest();
+        }
+
+        int[] responseBytes = new int[OPS.length];
+        for (int op = 0; op < OPS.length; op++) {
+            responseBytes[op] = SketchProtocol.responseBytes(OPS[op], batch);
+        }
+
+        long[] sentAt = new long[pipeline];
+        try (SketchClient connection = new SketchClient(address)) {
+            int sent = 0;
+            int received = 0;
+            long inFlightBytes = 0;
+            while (received < batches) {
+                boolean sending = false;
+                while (sent < batches && sent - received < pipeline && (sent == received
+                        || inFlightBytes + responseBytes[sent % OPS.length] < SketchProtocol.MAX_PENDING_OUTPUT)) {
+                    int op = sent % OPS.length;
+                    connection.send(OPS[op], SKETCHES[op], keys, (int) ((long) sent * batch % (KEY_POOL - batch)), batch);
+                    sentAt[sent % pipeline] = System.nanoTime();
+                    inFlightBytes += responseBytes[op];
+                    sent++;
+                    sending = true;
+                }
+                if (sending) {
+                    connection.flush();
+                }
+                connection.receive();
+                inFlightBytes -= responseBytes[received % OPS.length];
+                latencies[received % OPS.length].add((System.nanoTime() - sentAt[received % pipeline]) / 1e3);
+                received++;
+            }
+        }
+        return latencies;
+    }
+}
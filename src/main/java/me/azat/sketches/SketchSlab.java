@@ -0,0 +1,106 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size slots of long words for many small sketches keyed by long, e.g. one per page or tenant:
+ * a trove open-addressing long -> slot index, and slots laid out back to back in pages of long[].
+ * A million sketches are a few dozen arrays instead of a million objects with their headers and pointers.
+ * <p>
+ * Slots are never freed. Pages are filled in slot order and a slot never spans two pages. Not thread-safe.
+ */
+final class SketchSlab implements MemoryFootprint {
+    private static final int PAGE_WORDS = 1 << 20;
+    private static final int NO_SLOT = -1;
+
+    private final int slotWords;
+    private final int slotsPerPage;
+    private final TLongIntHashMap index = new TLongIntHashMap(16, 0.5f, 0, NO_SLOT);
+    private long[][] pages = new long[0][];
+    private int slots;
+
+    SketchSlab(int slotWords) {
+        Preconditions.checkArgument(slotWords >= 1 && slotWords <= PAGE_WORDS, "1 <= slotWords <= 2^20");
+        this.slotWords = slotWords;
+        this.slotsPerPage = PAGE_WORDS / slotWords;
+    }
+
+    /**
+     * Slot of the key, or -1 if it has none
+     */
+    int slot(long key) {
+        return index.get(key);
+    }
+
+    /**
+     * Slot of the key, a new zeroed one if it has none
+     */
+    int slotOrCreate(long key) {
+        int slot = index.get(key);
+        if (slot != NO_SLOT) {
+            return slot;
+        }
+        Preconditions.checkState(slots < Integer.MAX_VALUE, "slab is full");
+        slot = slots++;
+        int page = slot / slotsPerPage;
+        if (page == pages.length) {
+            pages = Arrays.copyOf(pages, page + 1);
+            // the last page is grown as slots are taken, so a few sketches don't take a whole page
+            pages[page] = new long[Math.min(PAGE_WORDS, 16 * slotWords)];
+        }
+        int end = offset(slot) + slotWords;
+        if (pages[page].length < end) {
+            pages[page] = Arrays.copyOf(pages[page], Math.min(slotsPerPage * slotWords, Math.max(end, 2 * pages[page].length)));
+        }
+        index.put(key, slot);
+        return slot;
+    }
+
+    /**
+     * Page of the slot: its words are page(slot)[offset(slot), offset(slot) + slotWords)
+     */
+    long[] page(int slot) {
+        return pages[slot / slotsPerPage];
+    }
+
+    int offset(int slot) {
+        return (slot % slotsPerPage) * slotWords;
+    }
+
+    int slotWords() {
+        return slotWords;
+    }
+
+    /**
+     * Number of keys
+     */
+    int size() {
+        return slots;
+    }
+
+    long[] keys() {
+        return index.keys();
+    }
+
+    @Override
+    public long heapBytes() {
+        long bytes = ObjectLayout.object(3 * Integer.BYTES + 2 * ObjectLayout.REFERENCE)
+                + ObjectLayout.troveLongIntMap(index.capacity())
+                + ObjectLayout.referenceArray(pages.length);
+        for (long[] page : pages) {
+            bytes += ObjectLayout.longArray(page.length);
+        }
+        return bytes;
+    }
+
+    /**
+     * Number of slots, then key and words of every slot
+     */
+    @Override
+    public long serializedBytes() {
+        return Integer.BYTES + (long) slots * (Long.BYTES + (long) slotWords * Long.BYTES);
+    }
+}
@@ -0,0 +1,170 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Ring of sketches, one per time bucket, plus the union of all of them. Elements go into both the bucket of the current
+ * time and the union, and queries go to the union only, so they cost as much as on a single unbounded sketch.
+ * The window covers the current bucket and buckets - 1 full buckets before it. Works for any sketch with an exact
+ * merge: Bloom OR, HyperLogLog max. Not thread-safe.
+ * <p>
+ * Expiry is two stacks of unions. Older buckets have cumulative unions, from the youngest of them to each older one,
+ * built once every buckets rotations; newer buckets are merged into a running union as each one completes. On entering
+ * a new bucket, the union is the cumulative union of the older buckets still in the window, the running union and
+ * the current bucket: a few merges of one sketch, plus the rebuild amortized over buckets rotations, instead of
+ * a merge of all buckets. The cumulative unions take about as much memory as the buckets themselves.
+ */
+final class SlidingWindow<S extends MemoryFootprint> implements MemoryFootprint {
+    private final S[] ring;
+    private final long bucketMillis;
+    private final LongSupplier clock;
+    private final Supplier<S> factory;
+    private final BiConsumer<S, S> merge;
+
+    private final S[] older; // older[k]: union of the k buckets after the current one at the last rebuild
+    private S newer; // union of buckets completed since the last rebuild
+    private S union;
+    private int current;
+    private int rotations; // since the last rebuild
+    private long bucketStart;
+
+    /**
+     * @param clock milliseconds, e.g. System::currentTimeMillis
+     * @param merge merges second sketch into the first one
+     */
+    @SuppressWarnings("unchecked")
+    SlidingWindow(int buckets, long bucketMillis, LongSupplier clock, Supplier<S> factory, BiConsumer<S, S> merge) {
+        Preconditions.checkArgument(buckets > 0, "buckets > 0");
+        Preconditions.checkArgument(bucketMillis > 0, "bucketMillis > 0");
+
+        this.ring = (S[]) new MemoryFootprint[buckets];
+        this.older = (S[]) new MemoryFootprint[buckets];
+        this.bucketMillis = bucketMillis;
+        this.clock = clock;
+        this.factory = factory;
+        this.merge = merge;
+        for (int i = 0; i < buckets; i++) {
+            ring[i] = factory.get();
+        }
+        this.newer = factory.get();
+        this.union = factory.get();
+        this.bucketStart = Math.floorDiv(clock.getAsLong(), bucketMillis) * bucketMillis;
+    }
+
+    /**
+     * Moves to the bucket of the current time, expiring buckets that fell out of the window
+     */
+    void advance() {
+        long elapsed = Math.floorDiv(clock.getAsLong() - bucketStart, bucketMillis);
+        if (elapsed <= 0) {
+            return;
+        }
+        int expired = (int) Math.min(elapsed, ring.length);
+        for (int i = 0; i < expired; i++) {
+            merge.accept(newer, ring[current]);
+            current = (current + 1) % ring.length;
+            ring[current] = factory.get();
+            if (++rotations == ring.length) {
+                rebuild();
+            }
+        }
+        bucketStart += elapsed * bucketMillis;
+        refreshUnion();
+    }
+
+    /**
+     * Cumulative unions of all buckets but the current one, starting a new run of rotations
+     */
+    private void rebuild() {
+        older[0] = null;
+        for (int k = 1; k < ring.length; k++) {
+            S cumulative = factory.get();
+            if (k > 1) {
+                merge.accept(cumulative, older[k - 1]);
+            }
+            merge.accept(cumulative, ring[Math.floorMod(current - k, ring.length)]);
+            older[k] = cumulative;
+        }
+        newer = factory.get();
+        rotations = 0;
+    }
+
+    /**
+     * The older buckets still in the window are the ones rotations did not expire yet
+     */
+    private void refreshUnion() {
+        union = factory.get();
+        S oldest = older[ring.length - 1 - rotations];
+        if (oldest != null) {
+            merge.accept(union, oldest);
+        }
+        merge.accept(union, newer);
+        merge.accept(union, ring[current]);
+    }
+
+    /**
+     * Sketch of the current bucket, as of the last {@link #advance()}
+     */
+    S bucket() {
+        return ring[current];
+    }
+
+    /**
+     * Union of all buckets of the window, as of the last {@link #advance()}
+     */
+    S union() {
+        return union;
+    }
+
+    /**
+     * Merges bucket by bucket of the same age. Windows must have the same buckets and bucket length.
+     */
+    void merge(SlidingWindow<S> other) {
+        Preconditions.checkArgument(
+                ring.length == other.ring.length && bucketMillis == other.bucketMillis,
+                "can merge only windows with the same buckets and bucketMillis");
+        advance();
+        other.advance();
+        Preconditions.checkArgument(bucketStart == other.bucketStart, "can merge only windows on the same clock");
+
+        for (int age = 0; age < ring.length; age++) {
+            merge.accept(ring[Math.floorMod(current - age, ring.length)], other.ring[Math.floorMod(other.current - age, ring.length)]);
+        }
+        // the other window's unions start at another rotation, so both stacks are rebuilt from the merged buckets
+        rebuild();
+        refreshUnion();
+    }
+
+    @Override
+    public long heapBytes() {
+        long bytes = ObjectLayout.object(3 * Integer.BYTES + 2 * Long.BYTES + 7 * ObjectLayout.REFERENCE)
+                + 2 * ObjectLayout.referenceArray(ring.length)
+                + union.heapBytes()
+                + newer.heapBytes();
+        for (S bucket : ring) {
+            bytes += bucket.heapBytes();
+        }
+        for (S cumulative : older) {
+            if (cumulative != null) {
+                bytes += cumulative.heapBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Buckets only, the unions can be rebuilt from them
+     */
+    @Override
+    public long serializedBytes() {
+        long bytes = 0;
+        for (S bucket : ring) {
+            bytes += bucket.serializedBytes();
+        }
+        return bytes;
+    }
+}
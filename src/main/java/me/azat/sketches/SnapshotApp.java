@@ -0,0 +1,171 @@
+package me.azat.sketches;
+
+import com.google.common.base.Stopwatch;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Writes sketches in {@link SketchFormat}, maps them back and checks that mapped sketches answer exactly as the ones
+ * they were written from. Reports write and open times: opening does not depend on the size of a sketch.
+ * HyperLogLogs are checked dense and sparse, and with the estimator of {@link IncrementalHyperLogLog}.
+ */
+public class SnapshotApp {
+
+    public static void main(String[] args) throws IOException {
+        int testCardinality = 1_000_000;
+        StreamGenerator gen = new StreamGenerator(12345, testCardinality);
+        String[] uniform = gen.uniformStream(testCardinality, testCardinality * 3).toArray(String[]::new);
+        String[] zipf = gen.zipfStream(testCardinality, 0.5, testCardinality * 3).toArray(String[]::new);
+
+        Path dir = Files.createTempDirectory("sketches");
+        Path[] files = { dir.resolve("bloom.skch"), dir.resolve("cms.skch"), dir.resolve("hll.skch"),
+                dir.resolve("sparse-hll.skch"), dir.resolve("incremental-hll.skch") };
+        try {
+            testBloomFilter(uniform, testCardinality, files[0]);
+            testCountMinSketch(zipf, files[1]);
+            testHyperLogLog(uniform, files[2]);
+            testSparseHyperLogLog(Arrays.copyOf(uniform, 1000), files[3]);
+            testIncrementalHyperLogLog(uniform, files[4]);
+        } finally {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static void testBloomFilter(String[] elements, int expectedInsertions, Path path) throws IOException {
+        System.out.println("--- Blocked Bloom filter, fpp = 0.01 ---");
+        BlockedBloomFilter filter = new BlockedBloomFilter(expectedInsertions, 0.01);
+        for (String e : elements) {
+            filter.add(e);
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        SketchFormat.write(filter, path);
+        report("written", path, stopwatch);
+
+        stopwatch = Stopwatch.createStarted();
+        BlockedBloomFilter mapped = SketchFormat.mapBloomFilter(path);
+        report("mapped", path, stopwatch);
+
+        for (String e : elements) {
+            if (!mapped.contains(e)) {
+                throw new AssertionError("false negative in mapped filter: " + e);
+            }
+        }
+        for (int i = 0; i < 1_000_000; i++) {
+            String probe = "absent-" + i;
+            if (mapped.contains(probe) != filter.contains(probe)) {
+                throw new AssertionError("mapped filter differs from the written one on " + probe);
+            }
+        }
+    }
+
+    private static void testCountMinSketch(String[] elements, Path path) throws IOException {
+        System.out.println("--- Count-min sketch, depth = 3, width = 32000 ---");
+        ConcurrentCountMinSketch sketch = new ConcurrentCountMinSketch(3, 32000, 12345);
+        for (String e : elements) {
+            sketch.inc(e);
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        SketchFormat.write(sketch, path);
+        report("written", path, stopwatch);
+
+        stopwatch = Stopwatch.createStarted();
+        SketchFormat.CountMinView mapped = SketchFormat.mapCountMinSketch(path);
+        report("mapped", path, stopwatch);
+
+        for (String e : elements) {
+            if (mapped.count(e) != sketch.count(e)) {
+                throw new AssertionError("mapped count differs from the written one on " + e);
+            }
+        }
+    }
+
+    private static void testHyperLogLog(String[] elements, Path path) throws IOException {
+        System.out.println("--- HyperLogLog++, error = 0.01 ---");
+        HyperLogLogPlusPlus sketch = new HyperLogLogPlusPlus(0.01);
+        for (String e : elements) {
+            sketch.add(e);
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        SketchFormat.write(sketch, path);
+        report("written", path, stopwatch);
+
+        stopwatch = Stopwatch.createStarted();
+        SketchFormat.HyperLogLogView mapped = SketchFormat.mapHyperLogLog(path);
+        report("mapped", path, stopwatch);
+
+        if (mapped.cardinality() != sketch.cardinality()) {
+            throw new AssertionError("mapped cardinality " + mapped.cardinality() + " differs from written " + sketch.cardinality());
+        }
+    }
+
+    /**
+     * Few enough elements for the sketch to stay sparse: the file keeps its entries, so the mapped sketch has the
+     * precision of the sparse one, not of its dense registers
+     */
+    private static void testSparseHyperLogLog(String[] elements, Path path) throws IOException {
+        System.out.printf("--- HyperLogLog++, error = 0.01, sparse, %d elements ---\n", elements.length);
+        HyperLogLogPlusPlus sketch = new HyperLogLogPlusPlus(0.01);
+        for (String e : elements) {
+            sketch.add(e);
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        SketchFormat.write(sketch, path);
+        report("written", path, stopwatch);
+
+        stopwatch = Stopwatch.createStarted();
+        SketchFormat.HyperLogLogView mapped = SketchFormat.mapHyperLogLog(path);
+        report("mapped", path, stopwatch);
+
+        if (!sketch.isSparse() || !mapped.isSparse()) {
+            throw new AssertionError("sparse sketch was mapped back dense");
+        }
+        if (mapped.cardinality() != sketch.cardinality()) {
+            throw new AssertionError("mapped cardinality " + mapped.cardinality() + " differs from written " + sketch.cardinality());
+        }
+
+        byte[] registers = sketch.registers();
+        int q = 64 - sketch.precision();
+        int[] histogram = new int[q + 2];
+        for (byte register : registers) {
+            histogram[register]++;
+        }
+        System.out.printf("distinct: %d, mapped cardinality: %.2f, of dense registers: %.2f\n",
+                Arrays.stream(elements).distinct().count(), mapped.cardinality(),
+                HyperLogLogPlusPlus.estimate(histogram, registers.length, q));
+    }
+
+    private static void testIncrementalHyperLogLog(String[] elements, Path path) throws IOException {
+        System.out.println("--- Incremental HyperLogLog, error = 0.01 ---");
+        IncrementalHyperLogLog sketch = new IncrementalHyperLogLog(0.01);
+        for (String e : elements) {
+            sketch.add(e);
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        SketchFormat.write(sketch, path);
+        report("written", path, stopwatch);
+
+        stopwatch = Stopwatch.createStarted();
+        SketchFormat.HyperLogLogView mapped = SketchFormat.mapHyperLogLog(path);
+        report("mapped", path, stopwatch);
+
+        // the sketch sums 2^-register as registers change, the view in histogram order
+        if (Math.abs(mapped.cardinality() - sketch.cardinality()) > 1e-9 * sketch.cardinality()) {
+            throw new AssertionError("mapped cardinality " + mapped.cardinality() + " differs from written " + sketch.cardinality());
+        }
+    }
+
+    private static void report(String action, Path path, Stopwatch stopwatch) throws IOException {
+        System.out.printf("%s %s, fileSize: %d, in %s\n", action, path.getFileName(), Files.size(path), stopwatch);
+    }
+}
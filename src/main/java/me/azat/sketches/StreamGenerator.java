@@ -6,11 +6,16 @@ import org.apache.commons.math3.distribution.ZipfDistribution;
 import org.apache.commons.math3.random.JDKRandomGenerator;
 
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 /**
  * Generates elements on construction, and then streams them
  * (first `cardinality` of them) with uniform or zipf distribution.
+ * <p>
+ * Streams of {@link #zipfLongStream} and {@link #uniformLongStream} draw every element through one commons-math
+ * generator, so they are sequential only. {@link #zipfSampler} and {@link #uniformSampler} are the fast mode: sized
+ * streams that split for parallel use, or batches filled into a long[], the same for a given seed however generated.
  */
 class StreamGenerator {
     private final long[] universe; // only this elements are streamed
@@ -31,6 +36,13 @@ class StreamGenerator {
      * @param length stream length
      */
     Stream<String> zipfStream(int cardinality, double exponent, long length) {
+        return zipfLongStream(cardinality, exponent, length).mapToObj(String::valueOf);
+    }
+
+    /**
+     * Same as {@link #zipfStream(int, double, long)}, but streams raw elements, without creating a String per element
+     */
+    LongStream zipfLongStream(int cardinality, double exponent, long length) {
         Preconditions.checkArgument(
                 cardinality >= 0 && cardinality <= maxCardinality,
                 "0 <= cardinality <= maxCardinality");
@@ -38,10 +50,90 @@ class StreamGenerator {
         ZipfDistribution distribution = new ZipfDistribution(cardinality - 1, exponent);
         return IntStream
                 .generate(distribution::sample)
-                .mapToObj(x -> String.valueOf(universe[x]))
+                .mapToLong(x -> universe[x])
                 .limit(length);
     }
 
+    /**
+     * Zipf distribution over the first cardinality elements of universe, the k-th one with probability proportional
+     * to 1 / k^exponent, sampled from an alias table: one table read per element.
+     *
+     * @param streamSeed element i of the stream depends only on streamSeed and i
+     */
+    Sampler zipfSampler(int cardinality, double exponent, long streamSeed) {
+        Preconditions.checkArgument(
+                cardinality >= 1 && cardinality <= maxCardinality,
+                "1 <= cardinality <= maxCardinality");
+        Preconditions.checkArgument(exponent >= 0, "exponent >= 0");
+
+        double[] weights = new double[cardinality];
+        for (int k = 0; k < cardinality; k++) {
+            weights[k] = Math.pow(k + 1, -exponent);
+        }
+        return new Sampler(universe, cardinality, aliasTable(weights), streamSeed);
+    }
+
+    /**
+     * Uniform distribution over the first cardinality elements of universe
+     *
+     * @param streamSeed element i of the stream depends only on streamSeed and i
+     */
+    Sampler uniformSampler(int cardinality, long streamSeed) {
+        Preconditions.checkArgument(
+                cardinality >= 1 && cardinality <= maxCardinality,
+                "1 <= cardinality <= maxCardinality");
+
+        return new Sampler(universe, cardinality, null, streamSeed);
+    }
+
+    /**
+     * Vose's alias table: column k keeps k with probability threshold / 2^32 and gives its alias otherwise,
+     * packed as alias << 32 | threshold
+     */
+    private static long[] aliasTable(double[] weights) {
+        int n = weights.length;
+        double sum = 0;
+        for (double w : weights) {
+            sum += w;
+        }
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallSize = 0;
+        int largeSize = 0;
+        for (int k = 0; k < n; k++) {
+            scaled[k] = weights[k] * n / sum;
+            if (scaled[k] < 1.0) {
+                small[smallSize++] = k;
+            } else {
+                large[largeSize++] = k;
+            }
+        }
+
+        long[] table = new long[n];
+        while (smallSize > 0 && largeSize > 0) {
+            int less = small[--smallSize];
+            int more = large[--largeSize];
+            table[less] = (long) more << 32 | (long) (scaled[less] * 0x1.0p32);
+            scaled[more] += scaled[less] - 1.0;
+            if (scaled[more] < 1.0) {
+                small[smallSize++] = more;
+            } else {
+                large[largeSize++] = more;
+            }
+        }
+        // the rest are full up to rounding: their own alias
+        while (largeSize > 0) {
+            int k = large[--largeSize];
+            table[k] = (long) k << 32;
+        }
+        while (smallSize > 0) {
+            int k = small[--smallSize];
+            table[k] = (long) k << 32;
+        }
+        return table;
+    }
+
     /**
      * Stream elements with uniform distribution
      *
@@ -49,6 +141,13 @@ class StreamGenerator {
      * @param length stream length
      */
     Stream<String> uniformStream(int cardinality, long length) {
+        return uniformLongStream(cardinality, length).mapToObj(String::valueOf);
+    }
+
+    /**
+     * Same as {@link #uniformStream(int, long)}, but streams raw elements, without creating a String per element
+     */
+    LongStream uniformLongStream(int cardinality, long length) {
         Preconditions.checkArgument(
                 cardinality >= 0 && cardinality <= maxCardinality,
                 "0 <= cardinality <= maxCardinality");
@@ -56,7 +155,70 @@ class StreamGenerator {
         UniformIntegerDistribution distribution = new UniformIntegerDistribution(rnd, 0, cardinality - 1);
         return IntStream
                 .generate(distribution::sample)
-                .mapToObj(x -> String.valueOf(universe[x]))
+                .mapToLong(x -> universe[x])
                 .limit(length);
     }
+
+    /**
+     * Element i of the stream comes from the i-th output of a {@link java.util.SplittableRandom} seeded with streamSeed,
+     * mix(streamSeed + (i + 1) * gamma), computed for i directly: streams split at any index without changing
+     * an element, so parallel, batched and sequential generation give the same stream.
+     * High 32 bits of the output pick a column, low 32 bits decide between the column and its alias.
+     * Immutable, thread-safe.
+     */
+    static final class Sampler {
+        private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+        private final long[] universe;
+        private final int cardinality;
+        private final long[] aliasTable; // null for uniform
+        private final long seed;
+
+        private Sampler(long[] universe, int cardinality, long[] aliasTable, long seed) {
+            this.universe = universe;
+            this.cardinality = cardinality;
+            this.aliasTable = aliasTable;
+            this.seed = seed;
+        }
+
+        /**
+         * Element index of the stream
+         */
+        long get(long index) {
+            long random = mix64(seed + (index + 1) * GOLDEN_GAMMA);
+            int column = (int) (((random >>> 32) * cardinality) >>> 32);
+            if (aliasTable != null) {
+                long entry = aliasTable[column];
+                if ((random & 0xFFFFFFFFL) >= (entry & 0xFFFFFFFFL)) {
+                    column = (int) (entry >>> 32);
+                }
+            }
+            return universe[column];
+        }
+
+        /**
+         * First length elements: a sized stream, parallel() splits it into the same elements
+         */
+        LongStream stream(long length) {
+            return LongStream.range(0, length).map(this::get);
+        }
+
+        /**
+         * Elements from, from + 1, ... into out[offset, offset + length)
+         */
+        void fill(long from, long[] out, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                out[offset + i] = get(from + i);
+            }
+        }
+
+        /**
+         * SplittableRandom's mix64, a variant of the murmur3 finalizer
+         */
+        private static long mix64(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+    }
 }
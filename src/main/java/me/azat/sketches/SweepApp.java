@@ -0,0 +1,398 @@
+package me.azat.sketches;
+
+import com.google.common.base.Stopwatch;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.hash.THashSet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
+
+/**
+ * Accuracy, speed and footprint of estimators over a grid of implementations x parameters x cardinalities x seeds,
+ * run in parallel and written to CSV and JSON, one row per cell.
+ * <p>
+ * Cells that share a stream (same family, cardinality and seed) run as one task: the stream and the truth are built
+ * once and every implementation and parameter is measured on them. Tasks run on a fixed pool, one per core by default.
+ * A task's seed comes from its cardinality and replicate number only, so all implementations see the same streams,
+ * and reruns reproduce them whatever the thread count.
+ * <p>
+ * nsPerOp is a single timed pass of adds over the materialized stream, estimator only. It is good enough to compare
+ * implementations and sizes, the JMH benchmarks give precise numbers. Parallel tasks compete for caches and memory
+ * bandwidth, so run with -Dsweep.threads=1 for clean timings.
+ */
+public class SweepApp {
+    private static final String[] COLUMNS = {
+            "family", "estimator", "fpp", "targetError", "depth", "width", "cardinality", "replicate", "seed",
+            "nsPerOp", "metric", "measured", "estimatorSize", "estimatorHeap" };
+    private static final int WARM_UP_ADDS = 100_000;
+    private static final long MIN_TIMED_NANOS = 20_000_000;
+
+    /**
+     * Writes [prefix].csv and [prefix].json, prefix "sweep" by default.
+     * -Dsweep.threads, -Dsweep.seeds and -Dsweep.maxCardinality narrow or widen the grid.
+     */
+    public static void main(String[] args) throws IOException {
+        String prefix = args.length > 0 ? args[0] : "sweep";
+        int threads = Integer.getInteger("sweep.threads", Runtime.getRuntime().availableProcessors());
+        int replicates = Integer.getInteger("sweep.seeds", 3);
+        int maxCardinality = Integer.getInteger("sweep.maxCardinality", 1_000_000);
+
+        Map<String, BloomFilterApp.EstimatorFactory> filters = new LinkedHashMap<>();
+        filters.put("streamlib", BloomFilterApp.StreamLibBloomEstimator::new);
+        filters.put("blocked", BlockedBloomFilter::new);
+        filters.put("cuckoo", CuckooFilter::new);
+
+        Map<String, CountMinSketchApp.EstimatorFactory> sketches = new LinkedHashMap<>();
+        sketches.put("streamlib", (depth, width) -> new CountMinSketchApp.StreamLibEstimator(depth, width, 12345));
+        sketches.put("concurrent", (depth, width) -> new ConcurrentCountMinSketch(depth, width, 12345));
+        sketches.put("topn", (depth, width) -> new TopNCountMinSketch(depth, width, 12345, 100));
+
+        Map<String, HyperLogLogApp.EstimatorFactory> counters = new LinkedHashMap<>();
+        counters.put("streamlib", HyperLogLogApp.StreamLibEstimator::new);
+        counters.put("hllpp", HyperLogLogPlusPlus::new);
+        counters.put("incremental", IncrementalHyperLogLog::new);
+
+        List<Task> tasks = new ArrayList<>();
+        for (int cardinality = 1000; cardinality <= maxCardinality; cardinality *= 10) {
+            for (int replicate = 0; replicate < replicates; replicate++) {
+                tasks.add(membershipTask(filters, new double[]{ 0.1, 0.05, 0.03, 0.01 }, cardinality, replicate));
+                tasks.add(cardinalityTask(counters, new double[]{ 0.1, 0.05, 0.01 }, cardinality, replicate));
+                tasks.add(heavyHittersTask(sketches, new int[]{ 3, 5 }, new double[]{ 0.03, 0.1, 0.3 }, cardinality, replicate));
+            }
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        List<Result> results = run(tasks, threads);
+        writeCsv(results, Paths.get(prefix + ".csv"));
+        writeJson(results, Paths.get(prefix + ".json"));
+        System.out.printf("%d cells in %d tasks on %d threads in %s, written to %s.csv and %s.json\n",
+                results.size(), tasks.size(), threads, stopwatch, prefix, prefix);
+    }
+
+
+    /**
+     * Runs tasks on a pool of threads, prints each cell as it is done
+     *
+     * @return results of all cells in task order
+     */
+    static List<Result> run(List<Task> tasks, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<List<Result>>> callables = new ArrayList<>();
+            for (Task task : tasks) {
+                callables.add(() -> {
+                    List<Result> results = task.run();
+                    for (Result result : results) {
+                        System.out.println(result);
+                    }
+                    return results;
+                });
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Future<List<Result>> future : executor.invokeAll(callables)) {
+                results.addAll(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+
+    /**
+     * Stores a uniform stream of 5 * cardinality over cardinality keys, sizing filters for cardinality,
+     * then tests a uniform stream over twice as many keys. Measured is the fp rate among keys that were not stored.
+     */
+    static Task membershipTask(Map<String, BloomFilterApp.EstimatorFactory> impls, double[] fpps, int cardinality, int replicate) {
+        return () -> {
+            int seed = seed(cardinality, replicate);
+            StreamGenerator gen = new StreamGenerator(seed, 2 * cardinality);
+            String[] store = materialize(gen.uniformSampler(cardinality, seed).stream(5L * cardinality), cardinality);
+            String[] test = materialize(gen.uniformSampler(2 * cardinality, seed + 1).stream(5L * cardinality), 2 * cardinality);
+            THashSet<String> truth = new THashSet<>();
+            for (String e : store) {
+                truth.add(e);
+            }
+            int negatives = 0;
+            for (String e : test) {
+                if (!truth.contains(e)) {
+                    negatives++;
+                }
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Map.Entry<String, BloomFilterApp.EstimatorFactory> impl : impls.entrySet()) {
+                for (double fpp : fpps) {
+                    BloomFilterApp.MembershipEstimator estimator = impl.getValue().create(cardinality, fpp);
+                    double nsPerOp = fill(estimator, () -> impl.getValue().create(cardinality, fpp), BloomFilterApp.MembershipEstimator::add, store);
+
+                    int falsePositives = 0;
+                    for (String e : test) {
+                        if (estimator.contains(e) && !truth.contains(e)) {
+                            falsePositives++;
+                        }
+                    }
+                    results.add(new Result("membership", impl.getKey(), fpp, null, null, null, cardinality, replicate, seed,
+                            nsPerOp, "fpRate", (double) falsePositives / negatives, estimator));
+                }
+            }
+            return results;
+        };
+    }
+
+    /**
+     * Counts a zipf stream (exponent 0.5) of 10 * cardinality, as CountMinSketchApp does, with sketches of every depth
+     * and of every width per key: width is that fraction of cardinality, so sizes scale to any cardinality, as filters
+     * do with fpp. Measured is the sum of errors over the true top10 relative to their true counts, and for estimators
+     * that list their own top10, in a second row, the fraction of the true top10 that they list.
+     */
+    static Task heavyHittersTask(Map<String, CountMinSketchApp.EstimatorFactory> impls, int[] depths, double[] widthsPerKey,
+                                 int cardinality, int replicate) {
+        return () -> {
+            int seed = seed(cardinality, replicate);
+            StreamGenerator gen = new StreamGenerator(seed, cardinality);
+            String[] stream = materialize(gen.zipfSampler(cardinality, 0.5, seed).stream(10L * cardinality), cardinality);
+            CountMinSketchApp.HashMapEstimator truth = new CountMinSketchApp.HashMapEstimator();
+            for (String e : stream) {
+                truth.inc(e);
+            }
+            TObjectIntHashMap<String> trueTop10 = truth.topN(10);
+
+            List<Result> results = new ArrayList<>();
+            for (Map.Entry<String, CountMinSketchApp.EstimatorFactory> impl : impls.entrySet()) {
+                for (int depth : depths) {
+                    for (double widthPerKey : widthsPerKey) {
+                        int width = Math.max(1, Math.toIntExact(Math.round(widthPerKey * cardinality)));
+                        CountMinSketchApp.HeavyHittersEstimator estimator = impl.getValue().create(depth, width);
+                        double nsPerOp = fill(estimator, () -> impl.getValue().create(depth, width), CountMinSketchApp.HeavyHittersEstimator::inc, stream);
+
+                        results.add(new Result("heavyHitters", impl.getKey(), null, null, depth, width, cardinality, replicate, seed,
+                                nsPerOp, "top10SumError",
+                                CountMinSketchApp.top10SumError(estimator, truth, trueTop10.keySet()), estimator));
+                        if (estimator instanceof CountMinSketchApp.TopNEstimator) {
+                            results.add(new Result("heavyHitters", impl.getKey(), null, null, depth, width, cardinality, replicate, seed,
+                                    nsPerOp, "top10Recall",
+                                    (double) CountMinSketchApp.top10Hits(estimator, trueTop10.keySet()) / trueTop10.size(), estimator));
+                        }
+                    }
+                }
+            }
+            return results;
+        };
+    }
+
+    /**
+     * Counts distinct keys of a uniform stream of 10 * cardinality, as HyperLogLogApp does. Measured is the relative error.
+     */
+    static Task cardinalityTask(Map<String, HyperLogLogApp.EstimatorFactory> impls, double[] errors, int cardinality, int replicate) {
+        return () -> {
+            int seed = seed(cardinality, replicate);
+            StreamGenerator gen = new StreamGenerator(seed, cardinality);
+            String[] stream = materialize(gen.uniformSampler(cardinality, seed).stream(10L * cardinality), cardinality);
+            THashSet<String> truth = new THashSet<>();
+            for (String e : stream) {
+                truth.add(e);
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Map.Entry<String, HyperLogLogApp.EstimatorFactory> impl : impls.entrySet()) {
+                for (double error : errors) {
+                    HyperLogLogApp.CardinalityEstimator estimator = impl.getValue().create(error);
+                    double nsPerOp = fill(estimator, () -> impl.getValue().create(error), HyperLogLogApp.CardinalityEstimator::add, stream);
+
+                    results.add(new Result("cardinality", impl.getKey(), null, error, null, null, cardinality, replicate, seed,
+                            nsPerOp, "relativeError",
+                            Math.abs(estimator.cardinality() - truth.size()) / truth.size(), estimator));
+                }
+            }
+            return results;
+        };
+    }
+
+    /**
+     * Adds the stream into the estimator, timed after an untimed warm-up pass into a fresh one. Short streams are also
+     * added into more fresh estimators until MIN_TIMED_NANOS are timed, so that small cells do not time the JIT.
+     *
+     * @return ns per add
+     */
+    private static <S> double fill(S estimator, Supplier<S> factory, BiConsumer<S, String> add, String[] stream) {
+        S warmUp = factory.get();
+        for (int i = 0; i < Math.min(stream.length, WARM_UP_ADDS); i++) {
+            add.accept(warmUp, stream[i]);
+        }
+
+        long start = System.nanoTime();
+        for (String e : stream) {
+            add.accept(estimator, e);
+        }
+        long nanos = System.nanoTime() - start;
+        long adds = stream.length;
+        while (nanos < MIN_TIMED_NANOS) {
+            S extra = factory.get();
+            start = System.nanoTime();
+            for (String e : stream) {
+                add.accept(extra, e);
+            }
+            nanos += System.nanoTime() - start;
+            adds += stream.length;
+        }
+        return (double) nanos / adds;
+    }
+
+    /**
+     * Same for every family and implementation, independent of the order tasks run in
+     */
+    private static int seed(int cardinality, int replicate) {
+        return (int) Hashes.hash64((long) replicate << 32 | cardinality);
+    }
+
+    /**
+     * Stream as Strings, one String per distinct key, so that adds are timed without creating Strings
+     */
+    private static String[] materialize(LongStream stream, int cardinality) {
+        TLongObjectHashMap<String> strings = new TLongObjectHashMap<>(cardinality);
+        return stream
+                .mapToObj(e -> {
+                    String s = strings.get(e);
+                    if (s == null) {
+                        s = String.valueOf(e);
+                        strings.put(e, s);
+                    }
+                    return s;
+                })
+                .toArray(String[]::new);
+    }
+
+
+    static void writeCsv(List<Result> results, Path path) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            out.write(String.join(",", COLUMNS));
+            out.newLine();
+            for (Result result : results) {
+                Object[] values = result.values();
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        out.write(',');
+                    }
+                    out.write(format(values[i], ""));
+                }
+                out.newLine();
+            }
+        }
+    }
+
+    static void writeJson(List<Result> results, Path path) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            out.write('[');
+            for (int r = 0; r < results.size(); r++) {
+                out.write(r == 0 ? "\n  {" : ",\n  {");
+                Object[] values = results.get(r).values();
+                for (int i = 0; i < values.length; i++) {
+                    out.write(i == 0 ? "\"" : ", \"");
+                    out.write(COLUMNS[i]);
+                    out.write("\": ");
+                    out.write(values[i] instanceof String ? "\"" + values[i] + "\"" : format(values[i], "null"));
+                }
+                out.write('}');
+            }
+            out.write("\n]\n");
+        }
+    }
+
+    /**
+     * Doubles with 6 significant digits, parameters that do not apply (null) and NaN as the given placeholder
+     */
+    private static String format(Object value, String missing) {
+        if (value == null || value instanceof Double && ((Double) value).isNaN()) {
+            return missing;
+        }
+        return value instanceof Double ? String.format(Locale.ROOT, "%.6g", (Double) value) : String.valueOf(value);
+    }
+
+
+    /**
+     * Measures every cell that shares one stream
+     */
+    interface Task {
+        List<Result> run();
+    }
+
+
+    /**
+     * One cell of the grid. Parameters that do not apply to the family are null.
+     */
+    static final class Result {
+        final String family;
+        final String estimator;
+        final Double fpp;
+        final Double targetError;
+        final Integer depth;
+        final Integer width;
+        final int cardinality;
+        final int replicate;
+        final int seed;
+        final double nsPerOp;
+        final String metric;
+        final double measured;
+        final long estimatorSize;
+        final long estimatorHeap;
+
+        Result(String family, String estimator, Double fpp, Double targetError, Integer depth, Integer width,
+               int cardinality, int replicate, int seed, double nsPerOp, String metric, double measured, MemoryFootprint footprint) {
+            this.family = family;
+            this.estimator = estimator;
+            this.fpp = fpp;
+            this.targetError = targetError;
+            this.depth = depth;
+            this.width = width;
+            this.cardinality = cardinality;
+            this.replicate = replicate;
+            this.seed = seed;
+            this.nsPerOp = nsPerOp;
+            this.metric = metric;
+            this.measured = measured;
+            this.estimatorSize = footprint.serializedBytes();
+            this.estimatorHeap = footprint.heapBytes();
+        }
+
+        /**
+         * In the order of COLUMNS
+         */
+        Object[] values() {
+            return new Object[]{ family, estimator, fpp, targetError, depth, width, cardinality, replicate, seed,
+                    nsPerOp, metric, measured, estimatorSize, estimatorHeap };
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "family: %s, estimator: %s, fpp: %s, targetError: %s, depth: %s, width: %s, cardinality: %d, replicate: %d, nsPerOp: %.1f, %s: %.4f%%, estimatorSize: %d, estimatorHeap: %d",
+                    family, estimator, format(fpp, "-"), format(targetError, "-"), format(depth, "-"), format(width, "-"),
+                    cardinality, replicate, nsPerOp, metric, 100 * measured, estimatorSize, estimatorHeap);
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Merging t-digest (Dunning): values are kept as centroids, a mean and a weight each, sorted by mean. Adds go into
+ * a buffer; a full buffer is sorted and merged with the centroids in one pass, which joins neighbours as long as
+ * a centroid spans at most one unit of the scale k(q) = compression / 2pi * asin(2q - 1). The scale is steep at
+ * the tails, so centroids near q = 0 and q = 1 stay small and extreme quantiles are accurate, unlike KLL's uniform
+ * rank error.
+ * <p>
+ * At most compression + 2 centroids are kept. Quantiles and ranks interpolate between centroid centers.
+ * Centroids and the buffer are primitive double[], allocated once. Not thread-safe.
+ */
+class TDigest implements QuantileApp.QuantileEstimator {
+    static final double DEFAULT_COMPRESSION = 100;
+    private static final int BUFFER_FACTOR = 5;
+
+    private final double compression;
+    private final double[] buffer;
+    private int buffered;
+
+    private double[] means;
+    private double[] weights;
+    private int centroids;
+    // output of the merge pass, swapped with means and weights
+    private double[] nextMeans;
+    private double[] nextWeights;
+
+    private long count;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    TDigest() {
+        this(DEFAULT_COMPRESSION);
+    }
+
+    TDigest(double compression) {
+        Preconditions.checkArgument(compression >= 10 && compression <= 1e5, "10 <= compression <= 100000");
+        this.compression = compression;
+        int capacity = 2 * (int) Math.ceil(compression) + 8;
+        this.buffer = new double[BUFFER_FACTOR * (int) Math.ceil(compression)];
+        this.means = new double[capacity];
+        this.weights = new double[capacity];
+        this.nextMeans = new double[capacity];
+        this.nextWeights = new double[capacity];
+    }
+
+    @Override
+    public void add(double e) {
+        Preconditions.checkArgument(!Double.isNaN(e), "NaN can't be added");
+        if (count == 0) {
+            min = e;
+            max = e;
+        } else if (e < min) {
+            min = e;
+        } else if (e > max) {
+            max = e;
+        }
+        count++;
+
+        buffer[buffered++] = e;
+        if (buffered == buffer.length) {
+            flush();
+        }
+    }
+
+    @Override
+    public double quantile(double q) {
+        Preconditions.checkArgument(q >= 0.0 && q <= 1.0, "0 <= q <= 1");
+        flush();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (q == 0.0 || centroids == 1) {
+            return q == 0.0 ? min : min + q * (max - min);
+        }
+        if (q == 1.0) {
+            return max;
+        }
+
+        double index = q * count;
+        double firstCenter = weights[0] / 2;
+        if (index < firstCenter) {
+            return min + (means[0] - min) * index / firstCenter;
+        }
+        double before = 0; // weight of centroids before i
+        for (int i = 0; i < centroids - 1; i++) {
+            double center = before + weights[i] / 2;
+            double nextCenter = before + weights[i] + weights[i + 1] / 2;
+            if (index <= nextCenter) {
+                return means[i] + (means[i + 1] - means[i]) * (index - center) / (nextCenter - center);
+            }
+            before += weights[i];
+        }
+        int last = centroids - 1;
+        double lastCenter = count - weights[last] / 2;
+        return means[last] + (max - means[last]) * (index - lastCenter) / (count - lastCenter);
+    }
+
+    @Override
+    public double rank(double e) {
+        flush();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        if (e < min) {
+            return 0.0;
+        }
+        if (e >= max) {
+            return 1.0;
+        }
+
+        if (e < means[0]) {
+            return weights[0] / 2 * (e - min) / (means[0] - min) / count;
+        }
+        double before = 0;
+        for (int i = 0; i < centroids - 1; i++) {
+            if (e < means[i + 1]) {
+                double center = before + weights[i] / 2;
+                double nextCenter = before + weights[i] + weights[i + 1] / 2;
+                return (center + (nextCenter - center) * (e - means[i]) / (means[i + 1] - means[i])) / count;
+            }
+            before += weights[i];
+        }
+        int last = centroids - 1;
+        double lastCenter = count - weights[last] / 2;
+        return (lastCenter + weights[last] / 2 * (e - means[last]) / (max - means[last])) / count;
+    }
+
+    @Override
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Merges other's centroids as weighted points, in the same pass as the buffer. Compressions may differ,
+     * the result keeps this one's.
+     */
+    @Override
+    public void merge(QuantileApp.QuantileEstimator estimator) {
+        Preconditions.checkArgument(estimator instanceof TDigest, "can't merge %s into TDigest", estimator);
+        TDigest other = (TDigest) estimator;
+        if (other.count == 0) {
+            return;
+        }
+        flush();
+        other.flush();
+        min = count == 0 ? other.min : Math.min(min, other.min);
+        max = count == 0 ? other.max : Math.max(max, other.max);
+        count += other.count;
+        mergePass(other.means, other.weights, other.centroids);
+    }
+
+    int centroids() {
+        flush();
+        return centroids;
+    }
+
+    private void flush() {
+        if (buffered == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, buffered);
+        int n = buffered;
+        buffered = 0;
+        mergePass(buffer, null, n);
+    }
+
+    /**
+     * Merges centroids with incoming points sorted by mean, of weight 1 if incomingWeights is null.
+     * count must already include the incoming weight.
+     */
+    private void mergePass(double[] incomingMeans, double[] incomingWeights, int incoming) {
+        double total = count;
+        int out = 0;
+        int i = 0;
+        int j = 0;
+        double mean = 0;
+        double weight = 0;
+        double weightSoFar = 0;
+        double limit = total * qLimit(0);
+        while (i < centroids || j < incoming) {
+            double pointMean;
+            double pointWeight;
+            if (j == incoming || (i < centroids && means[i] <= incomingMeans[j])) {
+                pointMean = means[i];
+                pointWeight = weights[i++];
+            } else {
+                pointMean = incomingMeans[j];
+                pointWeight = incomingWeights == null ? 1 : incomingWeights[j];
+                j++;
+            }
+
+            if (weight == 0) {
+                mean = pointMean;
+                weight = pointWeight;
+            } else if (weightSoFar + weight + pointWeight <= limit) {
+                weight += pointWeight;
+                mean += (pointMean - mean) * pointWeight / weight;
+            } else {
+                nextMeans[out] = mean;
+                nextWeights[out++] = weight;
+                weightSoFar += weight;
+                limit = total * qLimit(weightSoFar / total);
+                mean = pointMean;
+                weight = pointWeight;
+            }
+        }
+        if (weight > 0) {
+            nextMeans[out] = mean;
+            nextWeights[out++] = weight;
+        }
+
+        double[] swap = means;
+        means = nextMeans;
+        nextMeans = swap;
+        swap = weights;
+        weights = nextWeights;
+        nextWeights = swap;
+        centroids = out;
+    }
+
+    /**
+     * q one unit of k(q) = compression / 2pi * asin(2q - 1) above q0: how far a centroid starting at q0 may extend
+     */
+    private double qLimit(double q0) {
+        double angle = Math.asin(Math.max(-1.0, Math.min(1.0, 2 * q0 - 1))) + 2 * Math.PI / compression;
+        return (Math.sin(Math.min(angle, Math.PI / 2)) + 1) / 2;
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(5 * ObjectLayout.REFERENCE + 2 * Integer.BYTES + 4 * Long.BYTES)
+                + ObjectLayout.doubleArray(buffer.length)
+                + 4 * ObjectLayout.doubleArray(means.length);
+    }
+
+    /**
+     * compression, count, min, max, number of centroids, then mean and weight of each centroid, buffered values
+     * counted as centroids of their own
+     */
+    @Override
+    public long serializedBytes() {
+        return 4 * Double.BYTES + Integer.BYTES + 2L * Double.BYTES * (centroids + buffered);
+    }
+}
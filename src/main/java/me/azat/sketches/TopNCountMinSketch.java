@@ -0,0 +1,218 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.map.hash.TObjectLongHashMap;
+
+/**
+ * Count-min sketch with conservative update, plus a bounded min-heap of candidate heavy hitters,
+ * so that the sketch can list its top elements by itself.
+ * <p>
+ * Conservative update raises only the cells that are below the new estimate, which cuts overestimation
+ * on skewed streams. After every inc the element competes for a place in the heap with its fresh estimate,
+ * evicting the smallest candidate, as in Space-Saving. Memory is fixed by depth, width and capacity,
+ * no matter how many distinct elements are streamed. Not thread-safe.
+ */
+class TopNCountMinSketch implements CountMinSketchApp.TopNEstimator {
+    private final int depth;
+    private final int width;
+    private final long seed;
+    private final long[] table;
+
+    // min-heap of candidates by estimate, plus position of each candidate in it
+    private final String[] heapKeys;
+    private final long[] heapCounts;
+    private final TObjectIntHashMap<String> heapIndex;
+    private int heapSize;
+    private long heapChars; // of candidate strings, for footprint
+
+    /**
+     * @param capacity how many candidates to track, any element more frequent than 1/capacity of the stream is among them
+     */
+    TopNCountMinSketch(int depth, int width, long seed, int capacity) {
+        Preconditions.checkArgument(depth > 0 && width > 0, "depth > 0 && width > 0");
+        Preconditions.checkArgument((long) depth * width <= Integer.MAX_VALUE - 8, "depth * width does not fit in a long[]");
+        Preconditions.checkArgument(capacity > 0, "capacity > 0");
+
+        this.depth = depth;
+        this.width = width;
+        this.seed = seed;
+        this.table = new long[depth * width];
+        this.heapKeys = new String[capacity];
+        this.heapCounts = new long[capacity];
+        this.heapIndex = new TObjectIntHashMap<>(capacity * 2, 0.5f, -1);
+    }
+
+    @Override
+    public void inc(String e) {
+        long h1 = Hashes.fmix64(Hashes.hash64(e) ^ seed);
+        long h2 = Hashes.rehash(h1) | 1;
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, table[row * width + column(h1 + row * h2)]);
+        }
+        estimate++;
+        for (int row = 0; row < depth; row++) {
+            int index = row * width + column(h1 + row * h2);
+            if (table[index] < estimate) {
+                table[index] = estimate;
+            }
+        }
+
+        offer(e, estimate);
+    }
+
+    @Override
+    public long count(String e) {
+        long h1 = Hashes.fmix64(Hashes.hash64(e) ^ seed);
+        long h2 = Hashes.rehash(h1) | 1;
+
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, table[row * width + column(h1 + row * h2)]);
+        }
+        return min;
+    }
+
+    /**
+     * Top n candidates with their estimates, n must not exceed capacity
+     */
+    @Override
+    public TObjectLongHashMap<String> topN(int n) {
+        Preconditions.checkArgument(n >= 0 && n <= heapKeys.length, "0 <= n <= capacity");
+
+        // the heap holds the largest `capacity` estimates, pick the n largest of them
+        int[] order = new int[heapSize];
+        for (int i = 0; i < heapSize; i++) {
+            order[i] = i;
+        }
+        int limit = Math.min(n, heapSize);
+        for (int i = 0; i < limit; i++) {
+            int max = i;
+            for (int j = i + 1; j < heapSize; j++) {
+                if (heapCounts[order[j]] > heapCounts[order[max]]) {
+                    max = j;
+                }
+            }
+            int tmp = order[i];
+            order[i] = order[max];
+            order[max] = tmp;
+        }
+
+        TObjectLongHashMap<String> result = new TObjectLongHashMap<>();
+        for (int i = 0; i < limit; i++) {
+            result.put(heapKeys[order[i]], heapCounts[order[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * Adds counters of other sketch, then re-ranks the candidates of both sketches by their merged estimates.
+     * Sum of conservative-update sketches is still an upper bound of true counts, but it may be higher
+     * than the sketch of the concatenated stream would be.
+     */
+    @Override
+    public void merge(CountMinSketchApp.HeavyHittersEstimator estimator) {
+        Preconditions.checkArgument(estimator instanceof TopNCountMinSketch, "can't merge %s into TopNCountMinSketch", estimator);
+        TopNCountMinSketch other = (TopNCountMinSketch) estimator;
+        Preconditions.checkArgument(
+                depth == other.depth && width == other.width && seed == other.seed,
+                "can merge only sketches with same depth, width and seed");
+
+        for (int i = 0; i < table.length; i++) {
+            table[i] += other.table[i];
+        }
+        for (int i = 0; i < heapSize; i++) {
+            heapCounts[i] = count(heapKeys[i]);
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        for (int i = 0; i < other.heapSize; i++) {
+            offer(other.heapKeys[i], count(other.heapKeys[i]));
+        }
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(3 * Integer.BYTES + 2 * Long.BYTES + 4 * ObjectLayout.REFERENCE)
+                + ObjectLayout.longArray(table.length)
+                + ObjectLayout.referenceArray(heapKeys.length)
+                + ObjectLayout.longArray(heapCounts.length)
+                + ObjectLayout.troveObjectIntMap(heapIndex.capacity())
+                + ObjectLayout.latin1Strings(heapSize, heapChars);
+    }
+
+    /**
+     * Counters, then each candidate as 2-byte length, chars and its estimate
+     */
+    @Override
+    public long serializedBytes() {
+        return (long) table.length * Long.BYTES + heapSize * (2L + Long.BYTES) + heapChars;
+    }
+
+    private void offer(String e, long estimate) {
+        int i = heapIndex.get(e);
+        if (i >= 0) {
+            heapCounts[i] = estimate;
+            siftDown(i);
+        } else if (heapSize < heapKeys.length) {
+            heapChars += e.length();
+            heapKeys[heapSize] = e;
+            heapCounts[heapSize] = estimate;
+            heapIndex.put(e, heapSize);
+            siftUp(heapSize++);
+        } else if (estimate > heapCounts[0]) {
+            heapIndex.remove(heapKeys[0]);
+            heapChars += e.length() - heapKeys[0].length();
+            heapKeys[0] = e;
+            heapCounts[0] = estimate;
+            heapIndex.put(e, 0);
+            siftDown(0);
+        }
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heapCounts[parent] <= heapCounts[i]) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                return;
+            }
+            if (child + 1 < heapSize && heapCounts[child + 1] < heapCounts[child]) {
+                child++;
+            }
+            if (heapCounts[i] <= heapCounts[child]) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        String key = heapKeys[i];
+        heapKeys[i] = heapKeys[j];
+        heapKeys[j] = key;
+        long count = heapCounts[i];
+        heapCounts[i] = heapCounts[j];
+        heapCounts[j] = count;
+        heapIndex.put(heapKeys[i], i);
+        heapIndex.put(heapKeys[j], j);
+    }
+
+    private int column(long hash) {
+        return (int) (((hash >>> 32) * width) >>> 32);
+    }
+}
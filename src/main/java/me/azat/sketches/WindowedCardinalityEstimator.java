@@ -0,0 +1,58 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Distinct elements of the last buckets * bucketMillis: a {@link SlidingWindow} of HyperLogLogs, cardinality is
+ * the estimate of their union. With {@link IncrementalHyperLogLog} buckets it stays O(1).
+ * Adds cost two adds, one into the bucket and one into the union.
+ */
+class WindowedCardinalityEstimator implements HyperLogLogApp.CardinalityEstimator {
+    private final SlidingWindow<HyperLogLogApp.CardinalityEstimator> window;
+
+    WindowedCardinalityEstimator(int buckets, long bucketMillis, LongSupplier clock, Supplier<HyperLogLogApp.CardinalityEstimator> factory) {
+        this.window = new SlidingWindow<>(buckets, bucketMillis, clock, factory, HyperLogLogApp.CardinalityEstimator::merge);
+    }
+
+    @Override
+    public void add(String e) {
+        window.advance();
+        window.bucket().add(e);
+        window.union().add(e);
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        window.advance();
+        window.bucket().add(bytes, offset, length);
+        window.union().add(bytes, offset, length);
+    }
+
+    @Override
+    public double cardinality() {
+        window.advance();
+        return window.union().cardinality();
+    }
+
+    @Override
+    public void merge(HyperLogLogApp.CardinalityEstimator other) {
+        Preconditions.checkArgument(
+                other instanceof WindowedCardinalityEstimator,
+                "can't merge %s into WindowedCardinalityEstimator", other);
+        window.merge(((WindowedCardinalityEstimator) other).window);
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(ObjectLayout.REFERENCE) + window.heapBytes();
+    }
+
+    @Override
+    public long serializedBytes() {
+        return window.serializedBytes();
+    }
+}
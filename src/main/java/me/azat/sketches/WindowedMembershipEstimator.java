@@ -0,0 +1,68 @@
+package me.azat.sketches;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Membership over the last buckets * bucketMillis: a {@link SlidingWindow} of filters, contains checks only their union.
+ * An element is forgotten once the bucket it was last added in leaves the window.
+ * Adds cost two adds, one into the bucket and one into the union.
+ */
+class WindowedMembershipEstimator implements BloomFilterApp.MembershipEstimator {
+    private final SlidingWindow<BloomFilterApp.MembershipEstimator> window;
+
+    /**
+     * @param factory creates filters sized for the elements of the whole window: filters must be alike to be merged,
+     * and the union holds all of them
+     */
+    WindowedMembershipEstimator(int buckets, long bucketMillis, LongSupplier clock, Supplier<BloomFilterApp.MembershipEstimator> factory) {
+        this.window = new SlidingWindow<>(buckets, bucketMillis, clock, factory, BloomFilterApp.MembershipEstimator::merge);
+    }
+
+    @Override
+    public void add(String e) {
+        window.advance();
+        window.bucket().add(e);
+        window.union().add(e);
+    }
+
+    @Override
+    public boolean contains(String e) {
+        window.advance();
+        return window.union().contains(e);
+    }
+
+    @Override
+    public void add(ByteBuffer bytes, int offset, int length) {
+        window.advance();
+        window.bucket().add(bytes, offset, length);
+        window.union().add(bytes, offset, length);
+    }
+
+    @Override
+    public boolean contains(ByteBuffer bytes, int offset, int length) {
+        window.advance();
+        return window.union().contains(bytes, offset, length);
+    }
+
+    @Override
+    public void merge(BloomFilterApp.MembershipEstimator other) {
+        Preconditions.checkArgument(
+                other instanceof WindowedMembershipEstimator,
+                "can't merge %s into WindowedMembershipEstimator", other);
+        window.merge(((WindowedMembershipEstimator) other).window);
+    }
+
+    @Override
+    public long heapBytes() {
+        return ObjectLayout.object(ObjectLayout.REFERENCE) + window.heapBytes();
+    }
+
+    @Override
+    public long serializedBytes() {
+        return window.serializedBytes();
+    }
+}
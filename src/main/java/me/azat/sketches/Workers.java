@@ -0,0 +1,59 @@
+package me.azat.sketches;
+
+import com.google.common.base.Stopwatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Runs a loop over [0, length) split into equal contiguous ranges, one per thread.
+ */
+final class Workers {
+
+    interface RangeTask {
+        void run(int from, int to);
+    }
+
+    private Workers() {
+    }
+
+    /**
+     * @return wall time of the whole run in nanoseconds, thread start-up excluded
+     */
+    static long timeSplit(int threads, int length, RangeTask task) {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads);
+        executor.prestartAllCoreThreads();
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int from = (int)((long) length * t / threads);
+                int to = (int)((long) length * (t + 1) / threads);
+                tasks.add(() -> {
+                    task.run(from, to);
+                    return null;
+                });
+            }
+
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            return stopwatch.elapsed(TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 1, 2, 4, ... up to and including maxThreads
+     */
+    static int nextThreadCount(int threads, int maxThreads) {
+        return threads < maxThreads ? Math.min(threads * 2, maxThreads) : threads + 1;
+    }
+}